@@ -37,10 +37,17 @@ import javax.servlet.http.HttpServletRequest;
 
 import lasp.tss.constraint.Constraint;
 import lasp.tss.constraint.ConstraintExpression;
-import lasp.tss.util.CatalogUtils;
+import lasp.tss.iosp.AbstractIOSP;
+import lasp.tss.util.CatalogIndex;
+import lasp.tss.util.NcmlCache;
 import lasp.tss.util.NestedText;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.RequestTimer;
+import lasp.tss.util.SourceSignature;
 import lasp.tss.variable.CompositeVariable;
+import lasp.tss.variable.IndependentVariable;
 import lasp.tss.variable.TSSVariable;
+import lasp.tss.variable.TimeIndex;
 import lasp.tss.variable.TimeSeries;
 import lasp.tss.variable.TimeVariable;
 import lasp.tss.variable.VariableFactory;
@@ -48,17 +55,12 @@ import lasp.tss.variable.VariableFactory;
 //import org.apache.log4j.Logger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.jdom.Document;
 import org.jdom.Element;
-import org.jdom.input.SAXBuilder;
 
-import thredds.catalog.InvAccess;
-import thredds.catalog.InvCatalogImpl;
-import thredds.catalog.InvDataset;
-import thredds.catalog.ServiceType;
 import ucar.ma2.DataType;
 import ucar.nc2.Attribute;
 import ucar.nc2.Group;
+import ucar.nc2.NetcdfFile;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ncml.NcMLReader;
 import ucar.nc2.util.CancelTask;
@@ -84,6 +86,18 @@ public class TimeSeriesDataset {
     private ConstraintExpression _constraintExpression;
     private String _dds;
     private String _das;
+    private String _ncmlURL;
+    
+    /**
+     * State of the local files this dataset is made from.
+     * Null if any sources are not local files.
+     */
+    private SourceSignature _sourceSignature;
+    
+    /**
+     * Lets the work for the request be stopped if it is no longer wanted.
+     */
+    private RequestCancelTask _cancelTask;
     
   //===========================================================================
     
@@ -91,7 +105,16 @@ public class TimeSeriesDataset {
      * Construct a TimeSeriesDataset given the information from the HTTP request.
      */
     public TimeSeriesDataset(HttpServletRequest request) {
+        this(request, null);
+    }
+    
+    /**
+     * Construct a TimeSeriesDataset given the information from the HTTP request
+     * and a CancelTask that will stop the work if the request is cancelled.
+     */
+    public TimeSeriesDataset(HttpServletRequest request, RequestCancelTask cancelTask) {
         _request = request;
+        _cancelTask = cancelTask;
         
         try {
             //Read the NcML file (not the data) to construct a NetCDF Dataset.
@@ -110,6 +133,9 @@ public class TimeSeriesDataset {
                 throw new TSSException(msg);
             }
 
+            //Let time selections use the index of the times instead of reading them.
+            initTimeIndex();
+
             //Parse and apply the constraint expression if we have one. (maybe read some indep var data)
             applyConstraints();
 
@@ -128,31 +154,31 @@ public class TimeSeriesDataset {
      * Read the NcML file to create a NetcdfDataset.
      */
     private NetcdfDataset readNcML() { 
-        String url = getNcmlURL();
-        return createNetcdfDataset(url);  
+        _ncmlURL = getNcmlURL();
+        return createNetcdfDataset(_ncmlURL);  
     }
 
     /**
      * Construct the NcML file URL.
      */
     private String getNcmlURL() {
+        return findNcmlURL(getName());
+    }
+
+    /**
+     * Construct the NcML file URL for the dataset with the given name.
+     */
+    public static String findNcmlURL(String dsname) {
         String url = null;
-            
-        String path = _request.getPathInfo(); 
-        int index = path.lastIndexOf(".");
-        String dsname = path.substring(1, index); //exclude leading "/"
         
-        //Look for the dataset in the catalog.
+        //Look for the dataset in the catalog index.
         String curl = TSSProperties.getCatalogUrl();
-        _logger.debug("Catalog URL: " + curl);
-        InvCatalogImpl catalog = CatalogUtils.readCatalog(curl);
-        if (catalog != null) {
-        	_logger.debug("Looking in catalog for data set: " + dsname);
-            InvDataset ds = CatalogUtils.findDataset(catalog, dsname);
-            if (ds != null) {
-                InvAccess access = ds.getAccess(ServiceType.NCML);
-                url = access.getStandardUrlName();
-            }
+        _logger.debug("Looking in catalog " + curl + " for data set: " + dsname);
+        RequestTimer.enterPhase(RequestTimer.CATALOG);
+        try {
+            url = CatalogIndex.findNcmlUrl(curl, dsname);
+        } finally {
+            RequestTimer.exitPhase();
         }
         
         //If not found in the catalog, look for ncml in the dataset.dir
@@ -166,11 +192,35 @@ public class TimeSeriesDataset {
         return url;
     }
 
+    /**
+     * Return the state of the local files that the dataset with the given name
+     * is made from without constructing the dataset.
+     * Null if any sources are not local files or the NcML can't be read.
+     */
+    public static SourceSignature findSourceSignature(String dsname) {
+        SourceSignature sig = null;
+        
+        RequestTimer.enterPhase(RequestTimer.NCML);
+        try {
+            String url = findNcmlURL(dsname);
+            File file = NcmlCache.getFile(url);
+            if (file != null && file.isFile()) sig = SourceSignature.fromNcml(url, NcmlCache.getNetcdfElement(url));
+        } catch (Exception e) {
+            _logger.debug("Unable to get the source signature for data set: " + dsname, e);
+        } finally {
+            RequestTimer.exitPhase();
+        }
+        
+        return sig;
+    }
+
     private NetcdfDataset createNetcdfDataset(String ncmlURL) {
         NetcdfDataset dataset = null;
         
+        //Opening the IOSPs (and maybe reading data) happens within this phase.
+        RequestTimer.enterPhase(RequestTimer.NCML);
         try {
-            CancelTask cancelTask = null; //not used
+            CancelTask cancelTask = _cancelTask; //passed on to the IOSPs
             NetcdfDataset.initNetcdfFileCache(10,100,600); 
             //needed to make aggregation not slow, other side effects not clear
             //Should this happen at the server level?
@@ -178,9 +228,9 @@ public class TimeSeriesDataset {
             _logger.debug("Reading NcML: " + ncmlURL);
             
             //HACK the request into ncml so the IOSP can see it.
-            SAXBuilder builder = new SAXBuilder(false);
-            Document doc = builder.build(ncmlURL);
-            Element ncel = doc.getRootElement();
+            //The cache gives us our own copy of the parsed NcML to modify.
+            Element ncel = NcmlCache.getNetcdfElement(ncmlURL);
+            _sourceSignature = SourceSignature.fromNcml(ncmlURL, ncel);
             String req = _request.getQueryString();
             if (req != null) ncel.setAttribute("query", req);
             
@@ -190,6 +240,7 @@ public class TimeSeriesDataset {
             _logger.error(msg);
             throw new TSSPublicException(msg, e);
         } finally {
+            RequestTimer.exitPhase();
             //Shut down the FileCache to see if it reduces Tomcat PermGen memory problems
             //NetcdfDataset.shutdown();
         }
@@ -207,6 +258,44 @@ public class TimeSeriesDataset {
         return timeSeries;
     }     
     
+    /**
+     * Give the time variable the index of the times for this dataset.
+     * Only datasets made from local files can be indexed, and not if
+     * the IOSP's time samples depend on the request's query.
+     */
+    private void initTimeIndex() {
+        IndependentVariable var = _timeSeries.getIndependentVariable();
+        if (! (var instanceof TimeVariable)) return;
+        
+        Object dependent = sendIospMessage(AbstractIOSP.IOSP_MESSAGE_IS_QUERY_DEPENDENT);
+        if (Boolean.TRUE.equals(dependent)) return;
+        
+        TimeIndex index = TimeIndex.getIndex(_ncmlURL, _sourceSignature);
+        ((TimeVariable) var).setTimeIndex(index);
+    }
+    
+    /**
+     * Return the state of the local files this dataset is made from.
+     * Null if any sources are not local files.
+     */
+    public SourceSignature getSourceSignature() {
+        return _sourceSignature;
+    }
+    
+    /**
+     * Return the CancelTask for the request. May be null.
+     */
+    public RequestCancelTask getCancelTask() {
+        return _cancelTask;
+    }
+    
+    /**
+     * Throw a RequestCancelledException if the request has been cancelled.
+     */
+    public void checkCancel() {
+        if (_cancelTask != null) _cancelTask.check();
+    }
+    
   //------------------------------------------------------------------------
     
     /**
@@ -229,12 +318,27 @@ public class TimeSeriesDataset {
         String ce = _request.getQueryString();
         _constraintExpression = new ConstraintExpression(ce); 
         
-        for (Constraint constraint : _constraintExpression.getConstraints()) { //will be empty if no CE was defined
-            constraint.constrain(this);
+        RequestTimer.enterPhase(RequestTimer.CONSTRAIN);
+        try {
+            for (Constraint constraint : _constraintExpression.getConstraints()) { //will be empty if no CE was defined
+                checkCancel();
+                constraint.constrain(this);
+            }
+        } finally {
+            RequestTimer.exitPhase();
         }
     }
   
 
+    /**
+     * Return the constraints of the request in the order they are applied.
+     * Null before they have been parsed.
+     */
+    public List<Constraint> getConstraints() {
+        if (_constraintExpression == null) return null;
+        return _constraintExpression.getConstraints();
+    }
+
     /**
      * Return the variable representing the time.
      */
@@ -299,6 +403,22 @@ public class TimeSeriesDataset {
         return ce;
     }
     
+    /**
+     * Send a message to the IOSP that reads the data for this dataset
+     * (see NetcdfFile.sendIospMessage). Return its answer, null if there
+     * is no IOSP or it doesn't know what to do with the message.
+     */
+    public Object sendIospMessage(Object message) {
+        //The IOSP is in the innermost of the files that the NcML refers to.
+        NetcdfFile ncfile = _ncDataset;
+        while (ncfile instanceof NetcdfDataset) {
+            NetcdfFile ref = ((NetcdfDataset) ncfile).getReferencedFile();
+            if (ref == null || ref == ncfile) break;
+            ncfile = ref;
+        }
+        return ncfile == null ? null : ncfile.sendIospMessage(message);
+    }
+    
     /**
      * Try to close the NetcdfDataset.
      * Ignore Exceptions.
@@ -35,11 +35,24 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import lasp.tss.filter.BinningFilter;
 import lasp.tss.writer.AbstractWriter;
 import lasp.tss.writer.DatasetWriter;
 import lasp.tss.writer.ErrorWriter;
 import lasp.tss.writer.WriterFactory;
+import lasp.tss.util.CachedResponse;
+import lasp.tss.util.CapturingResponse;
+import lasp.tss.util.CountingResponse;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.RequestFlight;
+import lasp.tss.util.ConditionalGet;
+import lasp.tss.util.RequestLane;
+import lasp.tss.util.RequestMetrics;
+import lasp.tss.util.RequestTimer;
 import lasp.tss.util.RequestWrapper;
+import lasp.tss.util.ResponseCache;
+import lasp.tss.util.RollupBuilder;
+import lasp.tss.util.SourceSignature;
 
 //import org.apache.log4j.Logger;
 import org.slf4j.Logger;
@@ -55,12 +68,24 @@ public class TimeSeriesServer extends HttpServlet {
     // Initialize a logger. 
     private static final Logger _logger = LoggerFactory.getLogger(TimeSeriesServer.class);
     
+    // Log a line for each completed request with a breakdown of where the time went.
+    private static final Logger _accessLogger = LoggerFactory.getLogger("lasp.tss.access");
+    
     /**
      * Initialize the Servlet. Load properties.
      */
     public void init() {
         _logger.info("Initializing the TimeSeriesServer Servlet.");
         TSSProperties.makeInstance(getServletConfig());        
+        RollupBuilder.start();
+    }
+    
+    /**
+     * Stop the background work when the Servlet is taken out of service.
+     */
+    public void destroy() {
+        RollupBuilder.stop();
+        BinningFilter.shutdown();
     }
     
     /**
@@ -70,6 +95,33 @@ public class TimeSeriesServer extends HttpServlet {
 
         TimeSeriesDataset dataset = null;
         AbstractWriter writer = null;
+        String type = null;   //requested output type, i.e. "suffix"
+        String dsname = null; //name of the data set
+        
+        //Time the phases of the request and count the bytes we write.
+        RequestTimer timer = new RequestTimer();
+        timer.start();
+        CountingResponse counter = new CountingResponse(response);
+        response = counter;
+        
+        //Keep a copy of the response for the ResponseCache if it can be cached.
+        String cacheKey = null;
+        SourceSignature signature = null;
+        CapturingResponse capture = null;
+        
+        //Identical requests in progress at the same time share the output of the first.
+        RequestFlight flight = null;
+        
+        //Lane that this request is running in, null until it gets in.
+        RequestLane lane = null;
+        int status = HttpServletResponse.SC_OK;
+        
+        //How the request turned out, for the metrics. The error page has a 200 status.
+        String outcome = RequestMetrics.OK;
+        
+        //Let the work for this request be cancelled if the client goes away or it takes too long.
+        RequestCancelTask cancelTask = new RequestCancelTask();
+        cancelTask.start();
         
         //Get the request not including the constraints
         String path = request.getPathInfo();
@@ -83,14 +135,13 @@ public class TimeSeriesServer extends HttpServlet {
 		req.clearLogInfo();
         
         try {            
-            String type = null;   //requested output type, i.e. "suffix"
-            String dsname = null; //name of the data set
-            
             //Get the type for special OPeNDAP requests that are not data set suffixes.
             if (path == null || path.equals("/") || path.equals("/help")) {
                 type = "help";
             } else if (path.equals("/version")) {
                 type = "version";
+            } else if (path.equals("/metrics")) {
+                type = "metrics";
             } else {
                 //Get the type of the output request from the data set suffix.
                 int index = path.lastIndexOf(".");
@@ -102,6 +153,43 @@ public class TimeSeriesServer extends HttpServlet {
             
             //TODO: if url is a directory, display the catalog
             
+            //Get the state of the local files that the dataset is made from, if it is.
+            if (dsname != null) signature = TimeSeriesDataset.findSourceSignature(dsname.substring(1));
+            
+            //Use the state of the sources to validate the response.
+            //If the client already has it, we're done before building the dataset.
+            //The compressed output is a different representation.
+            String encoding = null;
+            if (dsname != null) encoding = WriterFactory.getContentEncoding(type, request);
+            
+            if (signature != null) {
+                String etag = ConditionalGet.makeETag(request, signature, encoding);
+                long lastModified = signature.getLastModified();
+                if (etag != null) response.setHeader("ETag", etag);
+                response.setDateHeader("Last-Modified", lastModified);
+                if (ConditionalGet.isNotModified(request, etag, lastModified)) {
+                    _logger.debug("Response is not modified.");
+                    String cc = WriterFactory.getCacheControl(type);
+                    if (cc != null) response.setHeader("Cache-Control", cc);
+                    status = HttpServletResponse.SC_NOT_MODIFIED;
+                    return;
+                }
+            }
+            
+            //Serve the response from the cache if we have it for the current state of the data.
+            //Only datasets made from local files can be cached.
+            if (signature != null) cacheKey = ResponseCache.makeKey(request, encoding);
+            if (cacheKey != null) {
+                CachedResponse cached = ResponseCache.get(cacheKey, signature);
+                if (cached != null) {
+                    _logger.debug("Writing the cached response.");
+                    cached.write(response);
+                    return;
+                }
+                capture = new CapturingResponse(response, ResponseCache.getMaxEntrySize());
+                response = capture;
+            }
+            
             //Error if output type is not determined.
             if (type == null) {
                 String msg = "No data set suffix is defined in the request: " + path;
@@ -109,6 +197,36 @@ public class TimeSeriesServer extends HttpServlet {
                 throw new TSSPublicException(msg);
             }
             
+            //If the same request is already being handled, write its output as it is produced.
+            //Otherwise let others that come along while we are at it share ours.
+            //Coalescing is done before the lane so followers don't take a turn.
+            String flightKey = null;
+            if (dsname != null && ! "false".equals(TSSProperties.getProperty("writer." + type + ".coalesce"))) {
+                flightKey = RequestFlight.makeKey(request, encoding);
+            }
+            if (flightKey != null) {
+                RequestFlight f = RequestFlight.getFlight(flightKey);
+                if (f != null && f.follow(response, cancelTask)) {
+                    _logger.debug("Wrote the response of an identical request.");
+                    return;
+                }
+                flight = RequestFlight.lead(flightKey);
+                if (flight != null) response = flight.wrap(response);
+            }
+            
+            //Wait for a turn in the lane for this type of request.
+            //Turn the request away if the server is too busy.
+            RequestLane rl = RequestLane.getLane(type);
+            if (! rl.enter()) {
+                _logger.warn("Rejecting request, the " + rl + " request lane is full.");
+                status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                outcome = RequestMetrics.REJECTED;
+                response.reset();
+                response.setHeader("Retry-After", String.valueOf(RequestLane.getRetryAfter()));
+                return;
+            }
+            lane = rl;
+            
             //Construct a Writer to produce the requested output.
             _logger.debug("Constructing a Writer object to handle the output type: " + type);
             writer = WriterFactory.makeWriter(type, request, response);
@@ -118,10 +236,15 @@ public class TimeSeriesServer extends HttpServlet {
                 throw new TSSPublicException(msg);
             }
             
+            //Only cache the output of Writers that depend on the dataset, unless they opt out.
+            if (capture != null) {
+                if (! (writer instanceof DatasetWriter) || "false".equals(writer.getProperty("cache"))) capture.stopCapture();
+            }
+            
             //Construct a Dataset for Writers that need it.
             if (writer instanceof DatasetWriter) {
                 _logger.debug("Constructing a Dataset object for the data set: " + dsname); 
-                dataset = new TimeSeriesDataset(request);
+                dataset = new TimeSeriesDataset(request, cancelTask);
                 if (dataset == null) {
                     String msg = "Unable to construct a Dataset object for the data set: " + dsname;
                     _logger.error(msg);
@@ -133,38 +256,85 @@ public class TimeSeriesServer extends HttpServlet {
             //Initialize the Writer and write the response.
             try {
                 _logger.debug("Initializing the Writer: " + writer.getClass().getName());
+                timer.enter(RequestTimer.ENCODE);
                 writer.init();
                 _logger.debug("Writing the response.");
                 writer.write();
+                timer.exit();
+                timer.enter(RequestTimer.FLUSH);
+                writer.finish();
+                timer.exit();
             } catch (Throwable t) {
                 String msg = "Unable to write the response.";
                 _logger.error(msg, t);
                 throw new TSSPublicException(msg, t);
             }
+            
+            //Don't cache a response that the client didn't get all of.
+            if (capture != null && ! cancelTask.isCancel()) {
+                CachedResponse cached = capture.getCachedResponse();
+                if (cached != null) ResponseCache.put(cacheKey, signature, cached);
+            }
            
         } catch (Throwable t) {
             //Catch any Throwable and write an OPeNDAP error response.
             _logger.error("Catching Throwable.", t);
+            outcome = cancelTask.isCancel() ? RequestMetrics.CANCELLED : RequestMetrics.ERROR;
 
             try {
-                _logger.debug("Writing Error response.");
+                //Let go of the compressor of the output we didn't finish.
+                boolean compressed = false;
+                if (writer != null) {
+                    compressed = writer.isCompressed();
+                    writer.release();
+                    writer = null;
+                }
                 
                 //Clear the header and anything that we tried to write.
                 //It's possible that we are too late. see Javadoc, isCommitted().
+                //Plain text can't be added to compressed output that is on its way,
+                //so the client is left with output that ends early.
                 if (! response.isCommitted()) response.reset();
+                else if (compressed) {
+                    _logger.debug("Unable to write the Error response after compressed output.");
+                    return;
+                }
                 
+                _logger.debug("Writing Error response.");
                 writer = WriterFactory.makeWriter("error", request, response); //use factory to set headers and such
                 ((ErrorWriter) writer).addThrowable(t);
                 writer.write();
+                writer.finish();
             } catch (Throwable t2) {
                 // Try to stop anything else horrible from happening.
                 _logger.error("Failed to write Error page.", t2);
             }
             
         } finally {
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.flushBuffer();
+            response.setStatus(status);
+            timer.enter(RequestTimer.FLUSH);
+            try {
+                response.flushBuffer();
+            } finally {
+                timer.exit();
+                if (flight != null) flight.end(); //let the followers finish
+            }
+            if (writer != null) writer.release(); //Make sure the compressor is released.
             if (dataset != null) dataset.close(); //Make sure Dataset resources are closed.
+            if (lane != null) lane.exit();
+            cancelTask.end();
+            timer.end();
+            
+            //Only label the metrics with names that we know are valid.
+            if (signature == null && dataset == null) dsname = null;
+            if (type != null && TSSProperties.getProperty("writer." + type + ".class") == null) type = null;
+            if (dsname != null) dsname = dsname.substring(1);
+            long bytes = counter.getByteCount();
+            RequestMetrics.record(dsname, type, counter.getStatus(), outcome, timer, bytes);
+            
+            req.setLogInfo();
+            _accessLogger.info(counter.getStatus() + " " + outcome + " " + bytes + " " + timer);
+            req.clearLogInfo();
             //TODO: NetcdfDataset.shutdown() to shut down FileCache?
             _logger.debug("Response is complete.");
         }
@@ -31,6 +31,7 @@ package lasp.tss.constraint;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -144,6 +145,49 @@ public class ConstraintExpression {
         return pc;
     }
     
+    /**
+     * Return a normalized form of the constraint expression so equivalent
+     * requests can be recognized (e.g. by a cache). It is decoded and runs of
+     * adjacent selections, which don't depend on each other's order, are sorted.
+     * Nearest neighbor ("~") selections are left in place since they depend on
+     * the selections before them. The projection and filters keep their order.
+     */
+    public String getCanonicalForm() {
+        StringBuilder sb = new StringBuilder();
+        
+        List<String> selections = new ArrayList<String>();
+        for (Constraint c : _constraints) {
+            if (c instanceof HyperslabConstraint) continue; //part of the projection
+            
+            String s = c.getExpression();
+            if (c instanceof SelectionConstraint && s.indexOf('~') < 0) {
+                selections.add(s);
+                continue;
+            }
+            
+            appendSelections(sb, selections);
+            if (! (c instanceof ProjectionConstraint)) sb.append('&');
+            sb.append(s);
+        }
+        appendSelections(sb, selections);
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Return the canonical form of the given constraint expression, "" if null.
+     */
+    public static String canonicalize(String constraintExpression) {
+        if (constraintExpression == null) return "";
+        return new ConstraintExpression(constraintExpression).getCanonicalForm();
+    }
+    
+    private void appendSelections(StringBuilder sb, List<String> selections) {
+        Collections.sort(selections);
+        for (String s : selections) sb.append('&').append(s);
+        selections.clear();
+    }
+    
     /**
      * Deal with URL encoding (e.g. space = %20)
      */
@@ -36,6 +36,7 @@ import lasp.tss.TimeSeriesDataset;
 import lasp.tss.filter.Filter;
 import lasp.tss.filter.TimeSeriesFilter;
 import lasp.tss.util.RegEx;
+import lasp.tss.util.RequestTimer;
 import lasp.tss.variable.CompositeVariable;
 import lasp.tss.variable.TSSVariable;
 import lasp.tss.variable.TimeSeries;
@@ -70,13 +71,27 @@ public class FilterConstraint extends Constraint {
         
         //If for a time subset, apply to the TimeSeries Sequence
         if (filter instanceof TimeSeriesFilter) {
-            ((TimeSeriesFilter) filter).filter(ts);
+            RequestTimer.enterPhase(RequestTimer.FILTER);
+            try {
+                ((TimeSeriesFilter) filter).setDataset(dataset);
+                ((TimeSeriesFilter) filter).filter(ts);
+            } finally {
+                RequestTimer.exitPhase();
+            }
         } else {
             //hack will ignore the filter we just made
             addFilter(ts); 
         }
     }
     
+    /**
+     * Return the name of the filter, e.g. "binave".
+     */
+    public String getFilterName() {
+        String[] ss = RegEx.match(getExpression(), RegEx.WORD, "\\(", ".*", "\\)");
+        return ss[0];
+    }
+    
     /**
      * Add the Filter to all Variables, recursively.
      * HACK: some filters need access to the Variable
@@ -42,7 +42,9 @@ import lasp.tss.util.RegEx;
 import lasp.tss.variable.CompositeVariable;
 import lasp.tss.variable.SequenceVariable;
 import lasp.tss.variable.TSSVariable;
+import lasp.tss.variable.TimeIndex;
 import lasp.tss.variable.TimeSeries;
+import lasp.tss.variable.TimeVariable;
 
 import org.apache.log4j.Logger;
 
@@ -125,6 +127,13 @@ public class SelectionConstraint extends Constraint {
     }
 
     private Range makeRange(TSSVariable variable) {
+        //Use the time index, if we have one, so we don't have to read all the times.
+        if (variable instanceof TimeVariable) {
+            TimeVariable tvar = (TimeVariable) variable;
+            TimeIndex index = tvar.getTimeIndex();
+            if (index != null) return makeRangeWithTimeIndex(tvar, index);
+        }
+        
         //return makeRangeWithTreeSet(variable);
         return makeRangeWithBinarySearch(variable);
     }
@@ -158,7 +167,7 @@ public class SelectionConstraint extends Constraint {
             int i1 = -1;
             int i2 = -1;
 
-            double[] values = variable.getValues(); //TODO: avoid having to read all values, performance concern
+            double[] values = variable.getValues(); //reads all values, see makeRangeWithTimeIndex
             //If none then return an empty range
             if (values == null) {
                 range = new Range(name, Range.EMPTY);
@@ -213,4 +222,96 @@ public class SelectionConstraint extends Constraint {
         return range;
     }
     
+    /**
+     * Define the index range of times that satisfy the expression using the
+     * time index instead of reading the times. Only the samples around the
+     * matching times will be read. Same semantics as makeRangeWithBinarySearch.
+     */
+    private Range makeRangeWithTimeIndex(TimeVariable variable, TimeIndex index) {
+        Range range = null;
+        String name = variable.getName();
+
+        try {
+            int n = variable.getLength();
+            if (n == 0) return new Range(name, Range.EMPTY);
+            
+            double comparison = variable.parseValue(_value);
+            
+            //Position of the current samples in the unconstrained variable
+            int offset = variable.getIndexOffset();
+
+            //range indices, start with invalid values;
+            int i1 = -1;
+            int i2 = -1;
+            
+            //index of the first sample >= the comparison, relative to the current samples
+            int lower = index.search(comparison, false, variable) - offset;
+            lower = Math.max(0, Math.min(n, lower));
+
+            if (_operator.contains(">")) {
+                i1 = lower;
+                if (_operator.equals(">")) i1 = getUpper(variable, index, comparison, offset, n);
+                i2 = n - 1; //max index is the last sample
+                if (i1 >= n) i1 = -1; //no match
+            } else if (_operator.contains("<")) {
+                i1 = 0;
+                i2 = lower - 1; //exclude the match for "<"
+                if (_operator.equals("<=")) i2 = getUpper(variable, index, comparison, offset, n) - 1;
+            } else if (_operator.equals("=")) {
+                if (lower < getUpper(variable, index, comparison, offset, n)) { //exact match
+                    i1 = lower;
+                    i2 = lower;
+                }
+            } else if (_operator.equals("~")) { //nearest neighbor
+                if (lower == 0) i1 = 0; //cval <= all, use first
+                else if (lower == n) i1 = n - 1; //cval > all, use last
+                else {
+                    double d1 = comparison - index.getTime(offset + lower - 1, variable); //diff from lower bound
+                    double d2 = index.getTime(offset + lower, variable) - comparison; //diff from upper bound
+                    i1 = (d2 <= d1) ? lower : lower - 1; //rounds midpoint up
+                }
+                i2 = i1;
+            }
+
+            //Make a Range for this selection, named for the indep var (i.e. coord var, name=dim)
+            if (i1 != -1 && i2 != -1) range = new Range(name, i1, i2); 
+            else range = new Range(name, Range.EMPTY);
+        } catch (Exception e) {
+            String msg = "Unable to define range for selection: " + toString();
+            _logger.error(msg, e);
+            throw new TSSPublicException(msg, e);
+        } 
+
+        return range;
+    }
+    
+    /**
+     * Return the index of the first sample > the comparison, relative to the current samples.
+     */
+    private int getUpper(TimeVariable variable, TimeIndex index, double comparison, int offset, int n) {
+        int upper = index.search(comparison, true, variable) - offset;
+        return Math.max(0, Math.min(n, upper));
+    }
+    
+    /**
+     * Return the name of the variable being compared.
+     */
+    public String getVariableName() {
+        return _varName;
+    }
+    
+    /**
+     * Return the comparison operator, e.g. ">=".
+     */
+    public String getOperator() {
+        return _operator;
+    }
+    
+    /**
+     * Return the value the variable is compared to, as given.
+     */
+    public String getValue() {
+        return _value;
+    }
+    
 }
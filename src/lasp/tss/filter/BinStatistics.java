@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.filter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import lasp.tss.RequestCancelledException;
+import lasp.tss.TSSException;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.RequestLane;
+
+/**
+ * Running statistics of the samples in each bin: the number of time samples,
+ * the sum of the times, and the sum, min and max of each value. Samples are not kept
+ * so a bin costs the same no matter how many samples fall in it.
+ * A variable may have more than one value per time sample (e.g. a spectrum in
+ * a Sequence). Each of those values has its own statistics.
+ * Large inputs are split into a part for each of the threads that the request may
+ * use (see RequestLane.getParallelism), each with its own statistics. The parts are
+ * binned by a ForkJoinPool shared by all requests and merged back together.
+ */
+class BinStatistics {
+
+    /**
+     * Don't bother with another thread for fewer time samples than this.
+     */
+    private static final int MIN_SAMPLES_PER_TASK = 1 << 16;
+
+    /**
+     * Number of time samples to bin between checks for a cancelled request.
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 1 << 16;
+
+    private static ForkJoinPool _pool;
+
+    private double _binWidth;
+    private double _min;
+    private int _nbin;
+
+    /**
+     * Offset of the first value of each variable among the values of a time sample,
+     * and the total number of values per time sample.
+     */
+    private int[] _offsets;
+    private int _nvalue;
+
+    private int[] _counts;
+    private double[] _tsums;
+
+    /**
+     * Statistics of each value in each bin, indexed by bin * _nvalue + value.
+     */
+    private double[] _sums;
+    private double[] _mins;
+    private double[] _maxes;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Make empty statistics for the given bins and number of values per time sample
+     * of each variable.
+     */
+    BinStatistics(double binWidth, double min, int nbin, int[] widths) {
+        _binWidth = binWidth;
+        _min = min;
+        _nbin = nbin;
+
+        _offsets = new int[widths.length];
+        for (int ivar=0; ivar<widths.length; ivar++) {
+            _offsets[ivar] = _nvalue;
+            _nvalue += widths[ivar];
+        }
+
+        _counts = new int[nbin];
+        _tsums = new double[nbin];
+        _sums = new double[nbin * _nvalue];
+        _mins = new double[nbin * _nvalue];
+        _maxes = new double[nbin * _nvalue];
+        Arrays.fill(_mins, Double.NaN);
+        Arrays.fill(_maxes, Double.NaN);
+    }
+
+    /**
+     * Bin the given samples. Each variable has the values for all time samples
+     * in one array with the time dimension varying slowest.
+     * Samples outside of the bins are left out.
+     */
+    static BinStatistics compute(double binWidth, double min, int nbin,
+            double[] times, double[][] values, int[] widths) {
+        int n = times.length;
+        int nthread = Math.min(RequestLane.getParallelism(), n / MIN_SAMPLES_PER_TASK);
+        
+        //The pool's threads don't know which request they are working for.
+        RequestCancelTask cancelTask = RequestCancelTask.getCurrent();
+
+        if (nthread <= 1) {
+            BinStatistics stats = new BinStatistics(binWidth, min, nbin, widths);
+            stats.add(times, values, 0, n, cancelTask);
+            return stats;
+        }
+
+        //Split into one part per thread.
+        BinTask task = new BinTask(binWidth, min, nbin, times, values, widths, 0, n, nthread, cancelTask);
+        try {
+            return getPool().invoke(task);
+        } catch (RequestCancelledException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new TSSException("Failed to bin the data.", e);
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (_pool == null) {
+            int nthread = Runtime.getRuntime().availableProcessors();
+            _pool = new ForkJoinPool(nthread, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("tss-binning-" + thread.getPoolIndex());
+                    return thread;
+                }
+            }, null, false);
+        }
+        return _pool;
+    }
+
+    /**
+     * Stop the threads of the pool, e.g. when the Servlet is taken out of service.
+     * A new pool is made if more binning is needed.
+     */
+    static synchronized void shutdown() {
+        if (_pool == null) return;
+        _pool.shutdownNow();
+        _pool = null;
+    }
+
+    /**
+     * Bin a range of time samples in the given number of parts, 
+     * splitting it in two to be binned in parallel until there is one part left.
+     */
+    private static class BinTask extends RecursiveTask<BinStatistics> {
+        private double _binWidth;
+        private double _min;
+        private int _nbin;
+        private double[] _times;
+        private double[][] _values;
+        private int[] _widths;
+        private int _from;
+        private int _to;
+        private int _nparts;
+        private RequestCancelTask _cancelTask;
+
+        BinTask(double binWidth, double min, int nbin, double[] times, double[][] values, int[] widths,
+                int from, int to, int nparts, RequestCancelTask cancelTask) {
+            _binWidth = binWidth;
+            _min = min;
+            _nbin = nbin;
+            _times = times;
+            _values = values;
+            _widths = widths;
+            _from = from;
+            _to = to;
+            _nparts = nparts;
+            _cancelTask = cancelTask;
+        }
+
+        protected BinStatistics compute() {
+            if (_nparts <= 1) {
+                BinStatistics stats = new BinStatistics(_binWidth, _min, _nbin, _widths);
+                stats.add(_times, _values, _from, _to, _cancelTask);
+                return stats;
+            }
+
+            int nfirst = _nparts / 2;
+            int middle = _from + (int) ((long) (_to - _from) * nfirst / _nparts);
+            BinTask first = new BinTask(_binWidth, _min, _nbin, _times, _values, _widths, _from, middle, nfirst, _cancelTask);
+            BinTask second = new BinTask(_binWidth, _min, _nbin, _times, _values, _widths, middle, _to, _nparts - nfirst, _cancelTask);
+            first.fork();
+            BinStatistics stats = second.compute();
+            //Merge in order so the sums don't depend on which finished first.
+            BinStatistics firstStats = first.join();
+            firstStats.merge(stats);
+            return firstStats;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Add the time samples from index "from" up to (not including) "to".
+     * Stop with a RequestCancelledException if the given task (which may be null)
+     * has been cancelled.
+     */
+    void add(double[] times, double[][] values, int from, int to, RequestCancelTask cancelTask) {
+        int nvar = _offsets.length;
+
+        for (int i=from; i<to; i++) {
+            if (cancelTask != null && (i - from) % CANCEL_CHECK_INTERVAL == 0) cancelTask.check();
+            double time = times[i];
+            int ibin = (int) Math.floor((time - _min) / _binWidth);
+            if (ibin < 0 || ibin >= _nbin) continue; //exclude samples outside desired range
+
+            _counts[ibin]++;
+            _tsums[ibin] += time;
+
+            for (int ivar=0; ivar<nvar; ivar++) {
+                int width = getWidth(ivar);
+                int index = ibin * _nvalue + _offsets[ivar];
+                double[] vv = values[ivar];
+                for (int j=0, k=i*width; j<width; j++, k++, index++) {
+                    double d = vv[k];
+                    _sums[index] += d;
+                    //NaNs don't count for the min and max
+                    if (d < _mins[index] || (Double.isNaN(_mins[index]) && ! Double.isNaN(d))) _mins[index] = d;
+                    if (d > _maxes[index] || (Double.isNaN(_maxes[index]) && ! Double.isNaN(d))) _maxes[index] = d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the statistics for the same bins from another set of samples.
+     */
+    void merge(BinStatistics other) {
+        for (int ibin=0; ibin<_nbin; ibin++) {
+            _counts[ibin] += other._counts[ibin];
+            _tsums[ibin] += other._tsums[ibin];
+        }
+
+        for (int index=0; index<_sums.length; index++) {
+            _sums[index] += other._sums[index];
+            double d = other._mins[index];
+            if (d < _mins[index] || Double.isNaN(_mins[index])) _mins[index] = d;
+            d = other._maxes[index];
+            if (d > _maxes[index] || Double.isNaN(_maxes[index])) _maxes[index] = d;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    private int getWidth(int ivar) {
+        int next = (ivar+1 < _offsets.length) ? _offsets[ivar+1] : _nvalue;
+        return next - _offsets[ivar];
+    }
+
+    int getBinCount() {
+        return _nbin;
+    }
+
+    /**
+     * Return the time at the center of each bin.
+     */
+    double[] getCenters() {
+        double[] d = new double[_nbin];
+        for (int ibin=0; ibin<_nbin; ibin++) d[ibin] = _min + _binWidth * (0.5 + ibin);
+        return d;
+    }
+
+    /**
+     * Return the number of time samples in each bin.
+     */
+    double[] getCounts() {
+        double[] d = new double[_nbin];
+        for (int ibin=0; ibin<_nbin; ibin++) d[ibin] = _counts[ibin];
+        return d;
+    }
+
+    /**
+     * Return the average time of the samples in each bin, NaN if empty.
+     */
+    double[] getMeanTimes() {
+        double[] d = new double[_nbin];
+        for (int ibin=0; ibin<_nbin; ibin++) {
+            d[ibin] = (_counts[ibin] > 0) ? _tsums[ibin] / _counts[ibin] : Double.NaN;
+        }
+        return d;
+    }
+
+    /**
+     * Return the average of each value of the given variable in each bin,
+     * with the bins varying slowest, NaN if empty.
+     */
+    double[] getMeans(int ivar) {
+        int width = getWidth(ivar);
+        double[] d = new double[_nbin * width];
+        for (int ibin=0; ibin<_nbin; ibin++) {
+            int count = _counts[ibin];
+            int index = ibin * _nvalue + _offsets[ivar];
+            for (int j=0; j<width; j++) {
+                d[ibin*width + j] = (count > 0) ? _sums[index+j] / count : Double.NaN;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Return the minimum of each value of the given variable in each bin.
+     */
+    double[] getMins(int ivar) {
+        return getValues(_mins, ivar);
+    }
+
+    /**
+     * Return the maximum of each value of the given variable in each bin.
+     */
+    double[] getMaxes(int ivar) {
+        return getValues(_maxes, ivar);
+    }
+
+    private double[] getValues(double[] stats, int ivar) {
+        int width = getWidth(ivar);
+        double[] d = new double[_nbin * width];
+        for (int ibin=0; ibin<_nbin; ibin++) {
+            System.arraycopy(stats, ibin * _nvalue + _offsets[ivar], d, ibin * width, width);
+        }
+        return d;
+    }
+}
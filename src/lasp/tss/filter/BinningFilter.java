@@ -1,32 +1,53 @@
 package lasp.tss.filter;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import lasp.tss.TSSProperties;
+import lasp.tss.TSSPublicException;
+import lasp.tss.TimeSeriesDataset;
+import lasp.tss.constraint.Constraint;
+import lasp.tss.constraint.FilterConstraint;
+import lasp.tss.constraint.HyperslabConstraint;
+import lasp.tss.constraint.ProjectionConstraint;
+import lasp.tss.constraint.SelectionConstraint;
+import lasp.tss.iosp.BinAggregation;
+import lasp.tss.util.Rollup;
+import lasp.tss.util.SourceSignature;
 import lasp.tss.variable.ScalarVariable;
+import lasp.tss.variable.SequenceVariable;
 import lasp.tss.variable.StructureVariable;
 import lasp.tss.variable.TSSVariable;
 import lasp.tss.variable.TimeSeries;
+import lasp.tss.variable.TimeVariable;
 
-import org.apache.commons.math.stat.StatUtils;
-import org.apache.commons.math.util.ResizableDoubleArray;
 import org.apache.log4j.Logger;
 
 import ucar.ma2.Array;
 import ucar.ma2.DataType;
 import ucar.nc2.Attribute;
-import ucar.nc2.Structure;
 import ucar.nc2.Variable;
 
 /**
  * Bin data over the time dimension (for now).
  * Yield the average of the data in each bin as defined by the 
- * width (in time units) of the bin. This is designed for a 
- * time series of a single scalar variable. If there are more than one
- * dependent variables, only the first one will be used.
+ * width (in time units) of the bin. Every projected numeric variable is binned,
+ * including the members of Structures and the dependent variables of Sequences
+ * (element by element). String variables are dropped.
  * The resulting time values will be bin centers.
  * This filter will also add the following variables:
  * - mean_time: The average of the time values in each bin.
  * - min: The minimum value in each bin.
  * - max: The maximum value in each bin.
  * - count: The number of samples in each bin.
+ * With more than one variable, min and max are named for each, e.g. "irradiance_min".
+ * Sequences only get the mean.
+ * When there is a single scalar variable and the dataset has a rollup (see Rollup)
+ * with a bin width that divides this one, its bins are combined instead of reading
+ * every sample. Otherwise the IOSP is asked to do the binning (see BinAggregation)
+ * so a database can do it without sending us all the samples. Failing that, it is
+ * done here in a single pass (see BinStatistics), split among threads if there are many.
  */
 public class BinningFilter extends TimeSeriesFilter {
     
@@ -57,149 +78,354 @@ public class BinningFilter extends TimeSeriesFilter {
     @Override
     public void filter(TimeSeries ts) {
         
-        //Get the original data values.
-        double[][] data = new double[2][];
         TSSVariable tvar = ts.getVariables().get(0);
-        data[0] = tvar.getValues(); //times
-        TSSVariable var = ts.getVariables().get(1); //assumes single scalar only
-        if (var.isStructure()) var = ((StructureVariable) var).getVariables().get(0);
-        data[1] = var.getValues();
+        
+        //Find the variables to bin: every projected numeric variable that varies with time.
+        List<TSSVariable> vars = new ArrayList<TSSVariable>();
+        for (TSSVariable var : ts.getVariables()) {
+            if (var != tvar) addVariables(var, vars);
+        }
+        int nvar = vars.size();
+        if (nvar == 0) {
+            String msg = "The BinningFilter requires a numeric variable to bin.";
+            _logger.error(msg);
+            throw new TSSPublicException(msg);
+        }
+        
+        //See if a rollup or the IOSP can bin a lone scalar for us.
+        double[][] binned = null;
+        if (nvar == 1 && vars.get(0).getParent() == ts) {
+            binned = combineRollup(tvar, vars.get(0));
+            if (binned == null) binned = aggregate(vars.get(0));
+        }
+        
+        double[] times;
+        double[][] means = new double[nvar][];
+        double[][] mins = new double[nvar][];
+        double[][] maxes = new double[nvar][];
+        double[] meanTimes;
+        double[] counts;
+        
+        if (binned != null) {
+            times = binned[0];
+            means[0] = binned[1];
+            meanTimes = binned[2];
+            mins[0] = binned[3];
+            maxes[0] = binned[4];
+            counts = binned[5];
+        } else {
+            //Get the original data values.
+            double[] data = tvar.getValues(); //times
+            int ntime = data.length;
+            double[][] values = new double[nvar][];
+            int[] widths = new int[nvar];
+            for (int ivar=0; ivar<nvar; ivar++) {
+                values[ivar] = vars.get(ivar).getValues();
+                widths[ivar] = (ntime == 0) ? 0 : values[ivar].length / ntime; //sequence members have more than one
+            }
 
-        //Define min and max range of times if not entered as arguments.
-        if (Double.isNaN(_min)) _min = data[0][0];
-        if (Double.isNaN(_max)) _max = data[0][data[0].length - 1];
+            //Define min and max range of times if not entered as arguments.
+            double min = Double.isNaN(_min) ? data[0] : _min;
+            double max = Double.isNaN(_max) ? data[ntime - 1] : _max;
                 
-        //Bin the data.
-        double[][] binned = bin(_binWidth, data, _min, _max);
+            //Bin the data.
+            int nbin = getBinCount(_binWidth, min, max);
+            BinStatistics stats = BinStatistics.compute(_binWidth, min, nbin, data, values, widths);
+            times = stats.getCenters();
+            meanTimes = stats.getMeanTimes();
+            counts = stats.getCounts();
+            for (int ivar=0; ivar<nvar; ivar++) {
+                means[ivar] = stats.getMeans(ivar);
+                mins[ivar] = stats.getMins(ivar);
+                maxes[ivar] = stats.getMaxes(ivar);
+            }
+        }
         
         //Number of resulting bins.
-        int n = binned[0].length;
+        int n = times.length;
+        int[] shape = new int[] {n};
+        
+        //The times no longer match the source so the time index doesn't apply.
+        if (tvar instanceof TimeVariable) ((TimeVariable) tvar).setTimeIndex(null);
         
         //replace time in the Nc Variable cache
         Variable ncvar = tvar.getNetcdfVariable();
         ncvar.getDimension(0).setLength(n); 
         ncvar.resetShape();
-        int[] shape = ncvar.getShape();
-        Array array = Array.factory(ncvar.getDataType(), shape, binned[0]);
+        Array array = Array.factory(ncvar.getDataType(), ncvar.getShape(), times);
         ncvar.setCachedData(array);
         
-        //replace data in the Nc Variable cache
-        ncvar = var.getNetcdfVariable();
- //       if (ncvar instanceof Structure) ncvar = ((Structure) ncvar).getVariables().get(0);
-        ncvar.getDimension(0).setLength(n); 
-        ncvar.resetShape();
-        shape = ncvar.getShape();
-        array = Array.factory(ncvar.getDataType(), shape, binned[1]);
-        ncvar.setCachedData(array);
+        //replace data in the Nc Variable cache, as doubles since they are now averages
+        for (int ivar=0; ivar<nvar; ivar++) {
+            ncvar = vars.get(ivar).getNetcdfVariable();
+            ncvar.getDimension(0).setLength(n); 
+            ncvar.resetShape();
+            ncvar.setDataType(DataType.DOUBLE);
+            array = Array.factory(DataType.DOUBLE, ncvar.getShape(), means[ivar]);
+            ncvar.setCachedData(array);
+        }
 
         //add mean time variable
-        ncvar = new Variable(null, ts.getNetcdfGroup(), null, "mean_time");
-        ncvar.setDataType(DataType.DOUBLE);
-        ncvar.setDimensions("time");
-        array = Array.factory(ncvar.getDataType(), shape, binned[2]);
-        ncvar.setCachedData(array);
-        ts.addComponent(new ScalarVariable(ts, ncvar));
-        
-        //add minimum variable
-        ncvar = new Variable(null, ts.getNetcdfGroup(), null, "min");
-        ncvar.setDataType(DataType.DOUBLE);
-        ncvar.setDimensions("time");
-        array = Array.factory(ncvar.getDataType(), shape, binned[3]);
-        ncvar.setCachedData(array);
-        ts.addComponent(new ScalarVariable(ts, ncvar));
+        addVariable(ts, "mean_time", shape, meanTimes);
         
-        //add maximum variable
-        ncvar = new Variable(null, ts.getNetcdfGroup(), null, "max");
-        ncvar.setDataType(DataType.DOUBLE);
-        ncvar.setDimensions("time");
-        array = Array.factory(ncvar.getDataType(), shape, binned[4]);
-        ncvar.setCachedData(array);
-        ts.addComponent(new ScalarVariable(ts, ncvar));
+        //add minimum and maximum variables, named for the variable if there is more than one
+        for (int ivar=0; ivar<nvar; ivar++) {
+            if (mins[ivar].length != n) continue; //not for sequences
+            String prefix = (nvar == 1) ? "" : vars.get(ivar).getName() + "_";
+            addVariable(ts, prefix + "min", shape, mins[ivar]);
+            addVariable(ts, prefix + "max", shape, maxes[ivar]);
+        }
         
         //add count variable
-        ncvar = new Variable(null, ts.getNetcdfGroup(), null, "count");
-        ncvar.setDataType(DataType.DOUBLE);
-        ncvar.setDimensions("time"); //TODO: assumes binning over time
+        ncvar = addVariable(ts, "count", shape, counts); //TODO: assumes binning over time
         //add "precision=0" to attributes since this is an int
         ncvar.addAttribute(new Attribute("precision", "0"));
-        array = Array.factory(ncvar.getDataType(), shape, binned[5]);
+
+    }
+    
+    /**
+     * Add the given variable to the list of those to bin, or the members
+     * of a Structure or the dependent variables of a Sequence.
+     * Strings can't be averaged so they are no longer projected.
+     */
+    private void addVariables(TSSVariable var, List<TSSVariable> vars) {
+        if (var.isStructure()) {
+            for (TSSVariable v : ((StructureVariable) var).getVariables()) addVariables(v, vars);
+        } else if (var instanceof SequenceVariable) {
+            for (TSSVariable v : ((SequenceVariable) var).getDependentVariables()) addVariables(v, vars);
+        } else if (var.isString()) {
+            _logger.debug("Unable to bin a String variable: " + var.getName());
+            var.setProjected(false);
+        } else {
+            vars.add(var);
+        }
+    }
+    
+    /**
+     * Add a variable with the given values to the time series.
+     */
+    private Variable addVariable(TimeSeries ts, String name, int[] shape, double[] values) {
+        Variable ncvar = new Variable(null, ts.getNetcdfGroup(), null, name);
+        ncvar.setDataType(DataType.DOUBLE);
+        ncvar.setDimensions("time");
+        Array array = Array.factory(ncvar.getDataType(), shape, values);
         ncvar.setCachedData(array);
         ts.addComponent(new ScalarVariable(ts, ncvar));
-
+        return ncvar;
     }
     
     /**
-     * Bin the data based on the samples in the first array of doubles, usually time.
-     * Return the reduced set of data including new arrays for:
-     * - mean_time: The average of the time values in each bin.
-     * - min: The minimum value in each bin.
-     * - max: The maximum value in each bin.
-     * - counts: the number of samples found in each bin.
-     * Assumes there are no NaNs in the data.
-     * Does not require samples to be sorted.
-     * Bins are defined as inclusive on the lower end, exclusive on the upper.
-     * New samples will represent the bin centers, not an average of the samples in that bin.
-     * Empty bins will contain NaNs.
+     * Combine the bins of the largest rollup level of the given variable that lines up
+     * with the requested bins. Return the binned data as from bin or null if no
+     * rollup applies: there is none that is current, the times have been constrained
+     * other than by a contiguous range, or the first and last bins of the level
+     * are not wholly within the selected times.
      */
-    public static double[][] bin(double binWidth, double[][] data, double min, double max) {
-        int nvar = 5; //number of dependent variables in the result (not counting time)
-        int n = data[0].length; //number of samples in the original data
+    private double[][] combineRollup(TSSVariable tvar, TSSVariable var) {
+        TimeSeriesDataset dataset = getDataset();
+        if (dataset == null || ! (tvar instanceof TimeVariable)) return null;
+        TimeVariable timeVar = (TimeVariable) tvar;
         
-        int nbin = getBinCount(binWidth, min, max); //number of bins
-        double[][] data2 = new double[nvar+1][nbin]; //data structure for the binned results
+        String dsname = dataset.getName();
+        double[] levels = Rollup.getLevels(dsname);
+        if (levels.length == 0) return null;
+        
+        SourceSignature signature = dataset.getSourceSignature();
+        int n = tvar.getLength();
+        if (signature == null || n <= 0 || ! timeVar.isContiguous()) return null;
+        if (! isRollupConstraint(dataset, tvar.getName())) return null;
+        
+        //First and last of the selected times
+        int offset = timeVar.getIndexOffset();
+        double tfirst = timeVar.readIndexValues(offset, offset)[0];
+        double tlast = timeVar.readIndexValues(offset+n-1, offset+n-1)[0];
+        double min = Double.isNaN(_min) ? tfirst : _min;
+        double max = Double.isNaN(_max) ? tlast : _max;
+        
+        for (double width : levels) {
+            Rollup rollup = Rollup.getRollup(dsname, var.getName(), width);
+            if (rollup == null) continue;
+            if (! rollup.isCurrent(signature)) {
+                rollup.close();
+                continue;
+            }
+            
+            try {
+                double[][] binned = combineRollup(rollup, tfirst, tlast, min, max);
+                if (binned != null) {
+                    _logger.debug("Combined the rollup with bin width " + width + " for " + var.getName());
+                    return binned;
+                }
+            } catch (IOException e) {
+                _logger.warn("Unable to read the rollup with bin width " + width + " for " + var.getName(), e);
+            } finally {
+                rollup.close();
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Combine the bins of the given rollup level into bins of the requested width
+     * for the times from tfirst to tlast. Return null if they don't line up.
+     */
+    private double[][] combineRollup(Rollup rollup, double tfirst, double tlast, double min, double max) throws IOException {
+        double width = rollup.getWidth();
+        double origin = rollup.getOrigin();
+        
+        //The requested bins must be made of whole level bins.
+        long m = Math.round(_binWidth / width);
+        if (m < 1 || Math.abs(m * width - _binWidth) > 1e-9 * _binWidth) return null;
+        long j0 = Math.round((min - origin) / width);
+        if (Math.abs(j0 * width - (min - origin)) > 1e-9 * width) return null;
+        
+        //The level bins with the first and last times must not have samples outside the selection.
+        int jfirst = (int) Math.floor((tfirst - origin) / width);
+        int jlast = (int) Math.floor((tlast - origin) / width);
+        if (jfirst < 0 || jlast >= rollup.getBinCount()) return null;
+        double[][] edge = rollup.read(jfirst, jfirst);
+        if (edge[5][0] != tfirst) return null;
+        edge = rollup.read(jlast, jlast);
+        if (edge[6][0] != tlast) return null;
         
-        //make ResizableDoubleArrays for each bin
-        ResizableDoubleArray[] tbins = new ResizableDoubleArray[nbin]; //for times
-        ResizableDoubleArray[] vbins = new ResizableDoubleArray[nbin]; //for data values
+        int nbin = getBinCount(_binWidth, min, max);
+        double[][] data2 = new double[6][nbin];
         for (int ibin=0; ibin<nbin; ibin++) {
-            tbins[ibin] = new ResizableDoubleArray();
-            vbins[ibin] = new ResizableDoubleArray();
+            data2[0][ibin] = min + _binWidth * (0.5 + ibin);
+            data2[1][ibin] = 0;
+            data2[2][ibin] = 0;
+            data2[3][ibin] = Double.NaN;
+            data2[4][ibin] = Double.NaN;
         }
         
-        //Put each sample into the appropriate bin
-        for (int i=0; i<n; i++) {
-            double sample = data[0][i];
-            int ibin = (int) Math.floor((sample - min) / binWidth);
-            if (ibin < 0 || ibin >= nbin) continue; //exclude samples outside desired range
-            tbins[ibin].addElement(data[0][i]); 
-            vbins[ibin].addElement(data[1][i]); 
+        //Level bins that fall within the requested bins, a block at a time.
+        long first = Math.max(jfirst, j0);
+        long last = Math.min(jlast, j0 + nbin * m - 1);
+        int blockSize = 65536;
+        for (long start=first; start<=last; start+=blockSize) {
+            int end = (int) Math.min(last, start + blockSize - 1);
+            double[][] bins = rollup.read((int) start, end);
+            for (int i=0; i<bins[0].length; i++) {
+                int count = (int) bins[0][i];
+                if (count == 0) continue;
+                int ibin = (int) ((start + i - j0) / m);
+                data2[5][ibin] += count;
+                data2[1][ibin] += bins[1][i];
+                data2[2][ibin] += bins[2][i];
+                double vmin = bins[3][i];
+                double vmax = bins[4][i];
+                if (Double.isNaN(data2[3][ibin]) || vmin < data2[3][ibin]) data2[3][ibin] = vmin;
+                if (Double.isNaN(data2[4][ibin]) || vmax > data2[4][ibin]) data2[4][ibin] = vmax;
+            }
         }
         
-        //Gather results from the bins
+        //Turn the sums into means, empty bins are NaN.
         for (int ibin=0; ibin<nbin; ibin++) {
-            double[] times = tbins[ibin].getElements();
-            double[] values = vbins[ibin].getElements();
-
-            //time: bin center
-            data2[0][ibin] = min + binWidth * (0.5 + ibin); 
-            
-            //counts
-            int count = times.length;
-            data2[5][ibin] = count;
-            
-            //other stats
+            double count = data2[5][ibin];
             if (count > 0) {
-                data2[1][ibin] = StatUtils.mean(values); //mean value
-                data2[2][ibin] = StatUtils.mean(times); //mean time
-                data2[3][ibin] = StatUtils.min(values); //min
-                data2[4][ibin] = StatUtils.max(values); //max
-            } else { //empty bin
+                data2[1][ibin] /= count;
+                data2[2][ibin] /= count;
+            } else {
                 data2[1][ibin] = Double.NaN;
                 data2[2][ibin] = Double.NaN;
-                data2[3][ibin] = Double.NaN;
-                data2[4][ibin] = Double.NaN;
             }
-            
         }
         
         return data2;
     }
     
+    /**
+     * Can a rollup stand in for the samples this filter would see?
+     * The constraints before this one may only project variables, 
+     * subset by index or select a range of times. This must be the only binning.
+     */
+    private boolean isRollupConstraint(TimeSeriesDataset dataset, String timeName) {
+        List<Constraint> constraints = dataset.getConstraints();
+        if (constraints == null) return false;
+        
+        boolean binned = false;
+        for (Constraint constraint : constraints) {
+            if (constraint instanceof FilterConstraint) {
+                String name = ((FilterConstraint) constraint).getFilterName();
+                String className = TSSProperties.getProperty("filter." + name + ".class");
+                boolean isBinning = getClass().getName().equals(className);
+                //The first filter must be this one and there must be no other binning.
+                if (! binned && ! isBinning) return false;
+                if (binned && isBinning) return false;
+                binned = true;
+            } else if (binned) {
+                continue; //applied after this
+            } else if (constraint instanceof SelectionConstraint) {
+                SelectionConstraint selection = (SelectionConstraint) constraint;
+                if (! selection.getVariableName().equals(timeName)) return false;
+                if (selection.getOperator().equals("!=")) return false;
+            } else if (! (constraint instanceof ProjectionConstraint || constraint instanceof HyperslabConstraint)) {
+                return false;
+            }
+        }
+        
+        return binned;
+    }
+    
+    /**
+     * Ask the IOSP to bin the given variable.
+     * Return the binned data as from bin or null if the IOSP can't do it.
+     */
+    private double[][] aggregate(TSSVariable var) {
+        TimeSeriesDataset dataset = getDataset();
+        if (dataset == null) return null;
+        
+        BinAggregation agg = new BinAggregation(var.getName(), _binWidth, _min, _max);
+        Object binned = dataset.sendIospMessage(agg);
+        if (binned instanceof double[][]) {
+            _logger.debug("The IOSP did the " + agg);
+            return (double[][]) binned;
+        }
+        return null;
+    }
+    
+    /**
+     * Bin the data based on the samples in the first array of doubles, usually time.
+     * Return the reduced set of data including new arrays for:
+     * - mean_time: The average of the time values in each bin.
+     * - min: The minimum value in each bin.
+     * - max: The maximum value in each bin.
+     * - counts: the number of samples found in each bin.
+     * A NaN value makes the mean NaN but is left out of the min and max.
+     * Does not require samples to be sorted.
+     * Bins are defined as inclusive on the lower end, exclusive on the upper.
+     * New samples will represent the bin centers, not an average of the samples in that bin.
+     * Empty bins will contain NaNs.
+     */
+    public static double[][] bin(double binWidth, double[][] data, double min, double max) {
+        int nbin = getBinCount(binWidth, min, max); //number of bins
+        double[][] values = new double[][] {data[1]};
+        BinStatistics stats = BinStatistics.compute(binWidth, min, nbin, data[0], values, new int[] {1});
+        
+        double[][] data2 = new double[6][]; //data structure for the binned results
+        data2[0] = stats.getCenters(); //time: bin center
+        data2[1] = stats.getMeans(0); //mean value
+        data2[2] = stats.getMeanTimes(); //mean time
+        data2[3] = stats.getMins(0); //min
+        data2[4] = stats.getMaxes(0); //max
+        data2[5] = stats.getCounts(); //counts
+        
+        return data2;
+    }
+    
     public static double[][] bin(double binWidth, double[][] data) {
         return bin(binWidth, data, data[0][0], data[0][data[0].length -1]);
     }
 
 
+    /**
+     * Stop the threads that bin large time series, see BinStatistics.
+     */
+    public static void shutdown() {
+        BinStatistics.shutdown();
+    }
+
     public static int getBinCount(double binWidth, double min, double max) {
         return (int) Math.floor((max - min) / binWidth) + 1;
     }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lasp.tss.TSSException;
+import lasp.tss.variable.SequenceVariable;
+import lasp.tss.variable.StructureVariable;
+import lasp.tss.variable.TSSVariable;
+import lasp.tss.variable.TimeSeries;
+import lasp.tss.variable.TimeVariable;
+
+import org.apache.log4j.Logger;
+
+import ucar.ma2.Array;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Variable;
+
+/**
+ * Keep only the time samples needed to plot the time series at the given width
+ * in pixels, so the size of the result doesn't depend on the time range.
+ * Unlike the ThinFilter, spikes are not lost between strides.
+ * The arguments are the width and, optionally, the method:
+ * - m4 (default): The first, last, min and max sample in each pixel column.
+ *   A line drawn through these looks the same as one drawn through all the samples.
+ * - lttb: "Largest Triangle Three Buckets", about one sample per pixel column,
+ *   choosing the one that makes the largest triangle with its neighbors.
+ * Each numeric variable (including the members of Structures) chooses its own samples
+ * and the time series keeps all of them, so the other variables (e.g. Strings, Sequences)
+ * are kept for the same times. The samples are not changed.
+ * This assumes the times are sorted.
+ */
+public class DownsampleFilter extends TimeSeriesFilter {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(DownsampleFilter.class);
+
+    private int _width;
+    private boolean _lttb = false;
+
+    public void setArguments(String args) throws IllegalArgumentException {
+        String[] ss = (args == null) ? new String[0] : args.split(",");
+        if (ss.length < 1 || ss.length > 2 || ss[0].trim().length() == 0) {
+            String msg = "The DownsampleFilter requires the width in pixels and optionally the method: m4 or lttb.";
+            throw new IllegalArgumentException(msg);
+        }
+
+        _width = Integer.parseInt(ss[0].trim());
+        if (_width < 1) throw new IllegalArgumentException("The width must be positive: " + _width);
+
+        if (ss.length > 1) {
+            String method = ss[1].trim().toLowerCase();
+            if (method.equals("lttb")) _lttb = true;
+            else if (! method.equals("m4")) throw new IllegalArgumentException("Unknown downsampling method: " + ss[1]);
+        }
+    }
+
+    @Override
+    public void filter(TimeSeries ts) {
+
+        TSSVariable tvar = ts.getVariables().get(0);
+        double[] times = tvar.getValues();
+        int n = (times == null) ? 0 : times.length;
+
+        //Nothing to do if there are no more samples than we would keep.
+        int npoint = _lttb ? Math.max(_width, 3) : 4 * _width;
+        if (n <= npoint) return;
+
+        //Get the values of the variables that can choose samples.
+        List<TSSVariable> vars = new ArrayList<TSSVariable>();
+        for (TSSVariable var : ts.getVariables()) {
+            if (var != tvar) addVariables(var, vars);
+        }
+        List<double[]> values = new ArrayList<double[]>();
+        for (TSSVariable var : vars) {
+            if (var.isString() || var.getNetcdfVariable().getRank() != 1) continue;
+            double[] d = var.getValues();
+            if (d != null && d.length == n) values.add(d);
+        }
+        if (values.isEmpty()) values.add(times); //just spread the times out
+
+        //Choose the samples to keep.
+        boolean[] keep = new boolean[n];
+        if (_lttb) {
+            for (double[] d : values) selectLttb(times, d, Math.max(_width, 3), keep);
+        } else selectM4(times, values, keep);
+
+        int count = 0;
+        for (boolean b : keep) if (b) count++;
+        _logger.debug("Keeping " + count + " of " + n + " samples.");
+
+        //Make sure every variable has a row per time before changing any of them.
+        List<TSSVariable> all = new ArrayList<TSSVariable>();
+        all.add(tvar);
+        all.addAll(vars);
+        List<Array> arrays = new ArrayList<Array>();
+        for (TSSVariable var : all) {
+            Array array = var.read();
+            if (array != null && array.getShape()[0] != n) {
+                String msg = "Unable to downsample variable " + var.getName() + " with " + array.getShape()[0] + " samples instead of " + n;
+                throw new TSSException(msg);
+            }
+            arrays.add(array);
+        }
+
+        //The times no longer match the source so the time index doesn't apply.
+        if (tvar instanceof TimeVariable) ((TimeVariable) tvar).setTimeIndex(null);
+
+        //Replace the data in the Nc Variable cache.
+        for (int i=0; i<all.size(); i++) select(all.get(i), arrays.get(i), keep, count);
+    }
+
+    /**
+     * Add the given variable to the list of those to downsample, or the members
+     * of a Structure or the dependent variables of a Sequence.
+     */
+    private void addVariables(TSSVariable var, List<TSSVariable> vars) {
+        if (var.isStructure()) {
+            for (TSSVariable v : ((StructureVariable) var).getVariables()) addVariables(v, vars);
+        } else if (var instanceof SequenceVariable) {
+            vars.addAll(((SequenceVariable) var).getDependentVariables());
+        } else {
+            vars.add(var);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Keep the first, last, min and max sample of each variable in each pixel column,
+     * in one pass over the samples.
+     */
+    private void selectM4(double[] times, List<double[]> values, boolean[] keep) {
+        int n = times.length;
+        int nvar = values.size();
+        double t0 = times[0];
+        double span = times[n-1] - t0;
+
+        int[] first = new int[_width];
+        int[] last = new int[_width];
+        int[][] mins = new int[nvar][_width];
+        int[][] maxes = new int[nvar][_width];
+        Arrays.fill(first, -1);
+        for (int ivar=0; ivar<nvar; ivar++) {
+            Arrays.fill(mins[ivar], -1);
+            Arrays.fill(maxes[ivar], -1);
+        }
+
+        for (int i=0; i<n; i++) {
+            int column = (span > 0) ? (int) ((times[i] - t0) / span * _width) : 0;
+            if (column < 0) column = 0;
+            else if (column >= _width) column = _width - 1;
+
+            if (first[column] < 0) first[column] = i;
+            last[column] = i;
+
+            for (int ivar=0; ivar<nvar; ivar++) {
+                double[] d = values.get(ivar);
+                double value = d[i];
+                if (Double.isNaN(value)) continue;
+                int[] min = mins[ivar];
+                int[] max = maxes[ivar];
+                if (min[column] < 0 || value < d[min[column]]) min[column] = i;
+                if (max[column] < 0 || value > d[max[column]]) max[column] = i;
+            }
+        }
+
+        for (int column=0; column<_width; column++) {
+            if (first[column] < 0) continue; //empty
+            keep[first[column]] = true;
+            keep[last[column]] = true;
+            for (int ivar=0; ivar<nvar; ivar++) {
+                if (mins[ivar][column] >= 0) keep[mins[ivar][column]] = true;
+                if (maxes[ivar][column] >= 0) keep[maxes[ivar][column]] = true;
+            }
+        }
+    }
+
+    /**
+     * Keep the given number of samples of the given variable with the
+     * "Largest Triangle Three Buckets" algorithm (Steinarsson, 2013).
+     * The first and last samples are always kept. The rest are split into buckets
+     * of equal size and the sample from each that makes the largest triangle with
+     * the sample kept from the bucket before and the average of the bucket after is kept.
+     */
+    private void selectLttb(double[] x, double[] y, int npoint, boolean[] keep) {
+        int n = x.length;
+        keep[0] = true;
+        keep[n-1] = true;
+
+        double every = (double) (n - 2) / (npoint - 2); //bucket size
+        int a = 0; //sample kept from the previous bucket
+
+        for (int ibucket=0; ibucket<npoint-2; ibucket++) {
+            //Average of the next bucket, the last sample for the last bucket
+            int avgStart = (int) Math.floor((ibucket + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((ibucket + 2) * every) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            int count = 0;
+            for (int i=avgStart; i<avgEnd; i++) {
+                if (Double.isNaN(y[i])) continue;
+                avgX += x[i];
+                avgY += y[i];
+                count++;
+            }
+            if (count > 0) {
+                avgX /= count;
+                avgY /= count;
+            } else {
+                avgX = x[Math.min(avgStart, n-1)];
+                avgY = y[a];
+            }
+
+            //The sample in this bucket with the largest triangle
+            int start = (int) Math.floor(ibucket * every) + 1;
+            int end = (int) Math.floor((ibucket + 1) * every) + 1;
+            double xa = x[a];
+            double ya = y[a];
+            double maxArea = -1;
+            int next = start;
+            for (int i=start; i<end; i++) {
+                double area = Math.abs((xa - avgX) * (y[i] - ya) - (xa - x[i]) * (avgY - ya));
+                if (area > maxArea) { //NaN is never larger
+                    maxArea = area;
+                    next = i;
+                }
+            }
+
+            keep[next] = true;
+            a = next;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Replace the data of the given variable, read into the given array,
+     * with the time samples to keep. The array must have a row per sample.
+     * The samples are copied as they are so any type will do.
+     */
+    private void select(TSSVariable var, Array array, boolean[] keep, int count) {
+        if (array == null) return;
+
+        Variable ncvar = var.getNetcdfVariable();
+        int[] shape = array.getShape();
+        int nrow = shape[0];
+        int rowSize = (nrow == 0) ? 0 : (int) (array.getSize() / nrow);
+
+        shape[0] = count;
+        Array array2 = Array.factory(ncvar.getDataType(), shape);
+        IndexIterator from = array.getIndexIterator();
+        IndexIterator to = array2.getIndexIterator();
+        for (int row=0; row<nrow; row++) {
+            boolean b = keep[row];
+            for (int j=0; j<rowSize; j++) {
+                Object o = from.getObjectNext();
+                if (b) to.setObjectNext(o);
+            }
+        }
+
+        ncvar.getDimension(0).setLength(count);
+        ncvar.resetShape();
+        ncvar.setCachedData(array2);
+    }
+}
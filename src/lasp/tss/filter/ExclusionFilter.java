@@ -28,6 +28,7 @@
  */
 package lasp.tss.filter;
 
+import lasp.tss.variable.DataBlock;
 import ucar.ma2.Array;
 import ucar.ma2.ArrayDouble;
 import ucar.ma2.ArrayObject;
@@ -39,7 +40,7 @@ import ucar.ma2.IndexIterator;
  * 
  * @author Doug Lindholm
  */
-public abstract class ExclusionFilter extends AbstractFilter {
+public abstract class ExclusionFilter extends AbstractFilter implements BlockFilter {
 
     protected abstract boolean excludeValue(double value);
     protected abstract boolean excludeString(String string);
@@ -83,4 +84,30 @@ public abstract class ExclusionFilter extends AbstractFilter {
         return a;
     }
 
+    /**
+     * Exclude each time sample in the block for which the exclude method 
+     * evaluates to true for any of its values.
+     */
+    public void filter(DataBlock block) {
+        int n = block.getCount();
+        int size = block.getSampleSize();
+        double[] values = block.getDoubles();
+        Object[] strings = block.getObjects();
+        
+        for (int i=0; i<n; i++) {
+            if (block.isExcluded(i)) continue;
+            int offset = i * size;
+            for (int j=offset; j<offset+size; j++) {
+                boolean excluded = false;
+                if (values != null) excluded = excludeValue(values[j]);
+                else excluded = excludeString((String) strings[j]);
+                
+                if (excluded) {
+                    block.exclude(i);
+                    break;
+                }
+            }
+        }
+    }
+
 }
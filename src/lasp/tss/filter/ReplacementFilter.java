@@ -28,6 +28,7 @@
  */
 package lasp.tss.filter;
 
+import lasp.tss.variable.DataBlock;
 import ucar.ma2.Array;
 import ucar.ma2.ArrayObject;
 import ucar.ma2.DataType;
@@ -38,7 +39,7 @@ import ucar.ma2.IndexIterator;
  * 
  * @author Doug Lindholm
  */
-public class ReplacementFilter extends AbstractFilter {
+public class ReplacementFilter extends AbstractFilter implements BlockFilter {
 
     protected double _oldValue, _newValue;
     
@@ -96,6 +97,23 @@ public class ReplacementFilter extends AbstractFilter {
     }
 
 
+    /**
+     * Run every value in the block through the "replace" filter method,
+     * modifying the values in place.
+     * As with filter(Array), the result will be doubles.
+     */
+    public void filter(DataBlock block) {
+        double[] values = block.getDoubles();
+        if (values == null) return; //e.g. strings or formatted times
+        
+        int n = values.length;
+        for (int i=0; i<n; i++) {
+            values[i] = replaceValue(values[i]);
+        }
+        
+        block.setDataType(DataType.DOUBLE);
+    }
+
     /**
      * No-op. Designed to filter single time samples of dependent variables.
      */
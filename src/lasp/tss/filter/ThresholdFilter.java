@@ -28,6 +28,8 @@
  */
 package lasp.tss.filter;
 
+import lasp.tss.variable.DataBlock;
+
 /**
  * Like the SubsetFilter but for non-sorted, non-independent variables.
  * Each value must be tested. The intent is for the entire time sample
@@ -70,6 +72,45 @@ public class ThresholdFilter extends ExclusionFilter {
         return excluded;
     }
     
+    /**
+     * Could any value from min to max pass? Used to skip a whole run of samples
+     * when its range of values proves that none of them will.
+     * The range is in the order of Double.compare, so NaN is above everything.
+     */
+    public boolean canPass(double min, double max) {
+        if (_lt && Double.compare(min, _threshold) < 0) return true;
+        if (_gt && Double.compare(max, _threshold) > 0) return true;
+        if (_eq && Double.compare(min, _threshold) <= 0 && Double.compare(max, _threshold) >= 0) return true;
+        return false;
+    }
+
+    /**
+     * Override to test numeric values without going through excludeValue.
+     */
+    public void filter(DataBlock block) {
+        double[] values = block.getDoubles();
+        if (values == null) {
+            super.filter(block); //Strings
+            return;
+        }
+        
+        int n = block.getCount();
+        int size = block.getSampleSize();
+        double threshold = _threshold;
+        
+        for (int i=0; i<n; i++) {
+            if (block.isExcluded(i)) continue;
+            int offset = i * size;
+            for (int j=offset; j<offset+size; j++) {
+                int result = Double.compare(values[j], threshold);
+                if (isExcluded(result)) {
+                    block.exclude(i);
+                    break;
+                }
+            }
+        }
+    }
+    
     private boolean isExcluded(int compareResult) {
         boolean excluded = false; 
 
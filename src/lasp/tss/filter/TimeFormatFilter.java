@@ -28,6 +28,7 @@
  */
 package lasp.tss.filter;
 
+import lasp.tss.variable.DataBlock;
 import lasp.tss.variable.TSSVariable;
 import lasp.tss.variable.TimeVariable;
 
@@ -37,7 +38,7 @@ import lasp.tss.variable.TimeVariable;
  * 
  * @author Doug Lindholm
  */
-public class TimeFormatFilter extends AbstractFilter {
+public class TimeFormatFilter extends AbstractFilter implements BlockFilter {
     //TODO: use to format any Variable?
     
     private String _format;
@@ -51,5 +52,10 @@ public class TimeFormatFilter extends AbstractFilter {
             ((TimeVariable) var).setFormat(_format);
         }
     }
+
+    /**
+     * No-op. The data are formatted as they are written.
+     */
+    public void filter(DataBlock block) {}
     
 }
@@ -28,6 +28,7 @@
  */
 package lasp.tss.filter;
 
+import lasp.tss.TimeSeriesDataset;
 import lasp.tss.variable.TimeSeries;
 
 /**
@@ -38,6 +39,22 @@ import lasp.tss.variable.TimeSeries;
  * @author Doug Lindholm
  */
 public abstract class TimeSeriesFilter extends AbstractFilter {
+    
+    private TimeSeriesDataset _dataset;
+        
+    /**
+     * Set the dataset that the TimeSeries belongs to.
+     */
+    public void setDataset(TimeSeriesDataset dataset) {
+        _dataset = dataset;
+    }
+    
+    /**
+     * Return the dataset that the TimeSeries belongs to. May be null.
+     */
+    public TimeSeriesDataset getDataset() {
+        return _dataset;
+    }
         
     /**
      * Subclass to munge the TimeSeries as you see fit.
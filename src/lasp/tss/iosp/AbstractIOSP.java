@@ -28,6 +28,12 @@
  */
 package lasp.tss.iosp;
 
+import lasp.tss.util.JulianDate;
+import lasp.tss.util.RegEx;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.RequestTimer;
+import lasp.tss.variable.TimeVariable;
+
 import org.apache.log4j.Logger;
 import org.jdom.Element;
 import org.jdom.filter.ElementFilter;
@@ -43,10 +49,12 @@ import ucar.nc2.NetcdfFile;
 import ucar.nc2.Structure;
 import ucar.nc2.Variable;
 import ucar.nc2.iosp.AbstractIOServiceProvider;
+import ucar.nc2.units.DateUnit;
 import ucar.nc2.util.CancelTask;
 import ucar.unidata.io.RandomAccessFile;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
@@ -66,6 +74,12 @@ public abstract class AbstractIOSP extends AbstractIOServiceProvider {
     // Initialize a logger.
     private static final Logger _logger = Logger.getLogger(AbstractIOSP.class);
     
+    /**
+     * Message (see TimeSeriesDataset.sendIospMessage) asking whether the time samples
+     * depend on the request's query, see isQueryDependent. The answer is a Boolean.
+     */
+    public static final String IOSP_MESSAGE_IS_QUERY_DEPENDENT = "IsQueryDependent";
+    
     private Properties _properties;
     private String _iospParam;
     
@@ -95,17 +109,24 @@ public abstract class AbstractIOSP extends AbstractIOServiceProvider {
      * Implementation of NetCDF abstract IOSP. This method will be called with:
      * - an open file as defined in the ncml "location"
      * - the shell of a NetcdfFile that needs to be populated
-     * - a hook to cancel lengthy operations (not used, yet)
+     * - a hook to cancel lengthy operations, see isCancelled
      */
     public void open(RandomAccessFile raf, NetcdfFile ncfile, CancelTask cancelTask) throws IOException {
         _raFile = raf;
         _ncFile = ncfile;
         _cancelTask =cancelTask;
         
+        RequestTimer.enterPhase(RequestTimer.OPEN);
         try {
             _ncElement = ncfile.getNetcdfElement();
             
-            init();
+            //Subclasses typically read their data here.
+            RequestTimer.enterPhase(RequestTimer.READ);
+            try {
+                init();
+            } finally {
+                RequestTimer.exitPhase();
+            }
    
             makeDimensions(null, _ncElement);
             makeVariables(null, _ncElement);
@@ -114,9 +135,36 @@ public abstract class AbstractIOSP extends AbstractIOServiceProvider {
             String msg = "IOSP open failed.";
             _logger.error(msg, t);
             throw new IOException(msg, t);
+        } finally {
+            RequestTimer.exitPhase();
         }
     }
     
+    /**
+     * Has the request that this IOSP is reading for been cancelled.
+     * Use the CancelTask that NetCDF gave us, else the one for the current request.
+     */
+    protected boolean isCancelled() {
+        return RequestCancelTask.isCancel(_cancelTask);
+    }
+    
+    /**
+     * Throw a RequestCancelledException if the request has been cancelled.
+     * Call this periodically while reading, see RequestCancelTask.check.
+     */
+    protected void checkCancel() {
+        RequestCancelTask.check(_cancelTask);
+    }
+    
+    /**
+     * Do the time samples that we serve depend on the request's query (the "query" property),
+     * e.g. because some were left out that the selections would drop.
+     * If so, the dataset's TimeIndex, which is shared by all requests, can't be used.
+     */
+    protected boolean isQueryDependent() {
+        return false;
+    }
+    
     /**
      * Hook to do some IOSP specific initialization.
      * Called just after NetCDF calls our "open" method.
@@ -297,6 +345,8 @@ public abstract class AbstractIOSP extends AbstractIOServiceProvider {
      * @see #getProperty(String)
      */
     public Object sendIospMessage(Object message) {
+        if (IOSP_MESSAGE_IS_QUERY_DEPENDENT.equals(message)) return isQueryDependent();
+        if (message != null && ! (message instanceof String)) return null; //not for us, see subclasses
         _iospParam = (String) message;
         
         if (message == null) return null;
@@ -417,6 +467,28 @@ public abstract class AbstractIOSP extends AbstractIOServiceProvider {
         return att;
     }
     
+    /**
+     * Convert a time value from the request to the time units of the dataset.
+     * It may be an ISO 8601 time or a number in the dataset's units.
+     * Return NaN if it can't be converted, e.g. if the times are formatted.
+     */
+    protected double parseTime(String s) {
+        String units = getTimeUnit();
+        if (units == null) units = TimeVariable.DEFAULT_TIME_UNIT;
+        boolean isJulian = units.toLowerCase().startsWith("julian");
+        if (! (units.contains("since") || isJulian)) return Double.NaN; //formatted
+        
+        try {
+            if (! s.matches(RegEx.TIME)) return Double.parseDouble(s);
+            
+            Date date = DateUnit.getStandardOrISO(s);
+            if (isJulian) return JulianDate.fromMillisSinceUnixEpoch(date.getTime());
+            return new DateUnit("0 " + units).makeValue(date);
+        } catch (Exception e) {
+            return Double.NaN; //leave it for the constraint to deal with
+        }
+    }
+    
     /**
      * Return the name of a variable from the NcML element that defines it.
      * Use the original name if we have it.
@@ -6,12 +6,12 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import lasp.tss.TSSException;
+import lasp.tss.util.DelimitedTokenizer;
 import lasp.tss.util.RegEx;
 import ucar.ma2.Array;
 import ucar.ma2.DataType;
@@ -20,8 +20,10 @@ import ucar.nc2.Variable;
 /**
  * Class for reading data from ASCII sources.
  * Parsing assumes one variable per column.
- * Subclasses may override parseLine to support more complex formatting.
+ * Subclasses may override addRecord to support more complex formatting.
  * Assumes one line per time sample ("flattened").
+ * Records are parsed as they are read into primitive columns.
+ * Only String variables keep their text.
  */
 public class AsciiGranuleReader extends GranuleIOSP {
 
@@ -30,81 +32,124 @@ public class AsciiGranuleReader extends GranuleIOSP {
     
     private BufferedReader _reader;
 
-    protected ArrayList<String[]> _dataStrings = new ArrayList<String[]>();
+    /**
+     * Parsed data, one column per value in a record.
+     */
+    private ColumnBuffers _columns;
+    
+    private DelimitedTokenizer _tokenizer;
 
     
+    /**
+     * Parse all the records, or load them from the sidecar if there is a current one.
+     */
     @Override
     protected void readAllData() {
+        ColumnSidecar sidecar = ColumnSidecar.getSidecar(getClass(), getURL(), getNetcdfFile().getNetcdfElement());
+        if (sidecar != null) {
+            _columns = sidecar.load();
+            if (_columns != null) return;
+        }
+        
         _reader = openReader();
+        _columns = new ColumnBuffers(getStringColumns());
+        _tokenizer = new DelimitedTokenizer(getDelimiter());
 
         skipHeader();
-        List<String> records = readRecords();
+        readRecords();
         
-        for (String record : records) {
-            String[] ss = parseRecord(record);
-            if (ss != null) _dataStrings.add(ss);
-        }
+        if (sidecar != null) sidecar.save(_columns);
     }
     
     /**
-     * Return each variable value as a String.
+     * Parse the record and add its values to the columns.
+     * Values beyond the defined variables are ignored.
      */
-    protected String[] parseRecord(String record) {
-        String delim = getDelimiter();
-        String[] ss = record.split(delim);
-        return ss;
+    protected void addRecord(String record) {
+        _tokenizer.tokenize(record, 0);
+        _columns.addRow(_tokenizer, 0);
     }
-       
-    protected Array getData(Variable var) {
+    
+    /**
+     * Return the columns that records are parsed into.
+     */
+    protected ColumnBuffers getColumns() {
+        return _columns;
+    }
+    
+    /**
+     * Return the tokenizer for the delimiter.
+     */
+    protected DelimitedTokenizer getTokenizer() {
+        return _tokenizer;
+    }
+    
+    /**
+     * Return the starting index (column) in a record for the given variable.
+     */
+    private int getColumn(Variable var) {
         List<Variable> vars = getVariables();
         int ivar = vars.indexOf(var);
-        DataType type = var.getDataType();
-        int[] shape = var.getShape();
-        Array array = Array.factory(type, shape);
         
-        //compute the starting index (column) for this variable
         int icol = 0;
         for (int i=0; i<ivar; i++) {
-            Variable v = vars.get(i);
-            if (v.getRank() > 1) {
-                //length of one time sample, assume 2D
-                icol += v.getShape(1);
-            } else if (! v.getShortName().equals("time") && v.isCoordinateVariable()) {
-                //no time dimension
-                icol += v.getShape(0);
-            } else {
-                icol += 1;
-            }
+            icol += getColumnCount(vars.get(i));
         }
         
-        //get the number of samples for one time sample of this variable
+        return icol;
+    }
+    
+    /**
+     * Return the number of columns for one time sample of the given variable.
+     */
+    private int getColumnCount(Variable var) {
         int n = 1;
-        if (var.getRank() > 1) n = var.getShape(1); //second dimension is a nested Sequence
+        if (var.getRank() > 1) n = var.getShape(1); //second dimension is a nested Sequence, assume 2D
         if (! var.getShortName().equals("time") && var.isCoordinateVariable()) n = var.getShape(0); //no time dimension
+        return n;
+    }
+    
+    /**
+     * Note which columns belong to String variables.
+     */
+    private boolean[] getStringColumns() {
+        List<Variable> vars = getVariables();
+        
+        int ncol = 0;
+        for (Variable var : vars) ncol += getColumnCount(var);
+        
+        boolean[] columns = new boolean[ncol];
+        int icol = 0;
+        for (Variable var : vars) {
+            int n = getColumnCount(var);
+            if (var.getDataType().isString()) {
+                for (int i=0; i<n; i++) columns[icol+i] = true;
+            }
+            icol += n;
+        }
+        
+        return columns;
+    }
+       
+    protected Array getData(Variable var) {
+        DataType type = var.getDataType();
+        int[] shape = var.getShape();
+        Array array = Array.factory(type, shape);
+        
+        //the starting index (column) for this variable
+        int icol = getColumn(var);
+        
+        //get the number of samples for one time sample of this variable
+        int n = getColumnCount(var);
         
         //fill Arrays with data
+        //Values that are not numbers were replaced with NaN when they were parsed.
         int index = 0;
-        String s = null;
-        for (String[] ss : _dataStrings) { //loop over time samples
+        int nrow = _columns.getRowCount();
+        for (int irow=0; irow<nrow; irow++) { //loop over time samples
             for (int i=0; i<n; i++) {
-                int i2 = icol+i;
-                if (i2 < ss.length) s = ss[i2];
-                else s = "";
-            
-                if (var.getDataType().isString()) {
-                    array.setObject(index++, s); 
-                } else {
-                    double d = Double.NaN;
-                    try {
-                        //If we can't parse a number, log a warning and put NaN in the array
-                        if (s != null) d = Double.parseDouble(s);
-                    } catch (Exception e) {
-                        String msg = "Unable to parse value for variable ";
-                        msg += var.getShortName() + ": '" + s + "'";
-                        _logger.warn(msg);
-                    }
-                    array.setDouble(index++, d);
-                }
+                if (type.isString()) array.setObject(index++, _columns.getString(icol+i, irow)); 
+                else array.setDouble(index++, _columns.getDouble(icol+i, irow));
             }
             
             //A nested Sequence's independent variable is assumed to be the same for all time samples.
@@ -127,16 +172,18 @@ public class AsciiGranuleReader extends GranuleIOSP {
     
 
     /**
-     * Read the data source into a List of String records.
+     * Read the data source one record at a time, adding each to the columns.
      * Each record represents a single time sample.
      * This reader assumes one record per line.
      */
-    private List<String> readRecords() {
-        List<String> records = new ArrayList<String>();
-        
+    private void readRecords() {
         //Start reading one line at a time.
+        int nline = 0;
         String line = readLine();
         while (line != null) {
+            //Stop if the request has been cancelled.
+            if (++nline % 1000 == 0) checkCancel();
+            
             line = line.trim();
             
             //skip empty or commented line
@@ -145,12 +192,10 @@ public class AsciiGranuleReader extends GranuleIOSP {
                 continue;
             }
 
-            records.add(line);
+            addRecord(line);
             
             line = readLine();
         }
-
-        return records;
     }
 
     protected void skipHeader() {
@@ -202,7 +247,7 @@ public class AsciiGranuleReader extends GranuleIOSP {
         int length = super.getLength(); //from ncml def
         
         if (length <= 0) { //not yet defined
-            length = _dataStrings.size();
+            length = (_columns == null) ? 0 : _columns.getRowCount();
         }
         
         return length;
@@ -36,11 +36,13 @@ import ucar.nc2.Variable;
 import ucar.unidata.io.RandomAccessFile;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Iterator;
 
 import org.apache.log4j.Logger;
+import org.jdom.Element;
 
 import lasp.tss.TSSException;
+import lasp.tss.util.DelimitedTokenizer;
 import lasp.tss.util.RegEx;
 
 /**
@@ -59,7 +61,11 @@ public class AsciiIOSP extends AbstractIOSP {
     private static final Logger _logger = Logger.getLogger(AsciiIOSP.class);
     
     private String _comment; //comment character
-    private ArrayList<String[]> _dataStrings;
+    
+    /**
+     * Parsed data, one column per variable.
+     */
+    private ColumnBuffers _columns;
     
     /**
      * Called during "open" after the ncml has been read.
@@ -67,6 +73,13 @@ public class AsciiIOSP extends AbstractIOSP {
     protected void init() {
         _comment = getCommentCharacter();
         
+        //Use the sidecar if there is a current one.
+        ColumnSidecar sidecar = ColumnSidecar.getSidecar(getClass(), getFile().getLocation(), getNetcdfElement());
+        if (sidecar != null) {
+            _columns = sidecar.load();
+            if (_columns != null) return;
+        }
+        
         //skip header
         String headerLength = getProperty("headerLength");
         if (headerLength != null) {
@@ -75,6 +88,8 @@ public class AsciiIOSP extends AbstractIOSP {
         }
         
         readAllData(); 
+        
+        if (sidecar != null) sidecar.save(_columns);
     }
   
     protected String getCommentCharacter() {
@@ -91,19 +106,25 @@ public class AsciiIOSP extends AbstractIOSP {
     }
     
     /**
-     * Read all the rows into a List of Strings. Parse later.
+     * Read all the rows, parsing each value into its column as we go.
+     * Only String variables keep their text.
      */
     private void readAllData() { 
         
-        _dataStrings = new ArrayList<String[]>();
+        _columns = new ColumnBuffers(getStringColumns());
+        DelimitedTokenizer tokenizer = new DelimitedTokenizer(RegEx.DELIMITER);
         
-        //See if we need to use a regular expression to read a formatted time.
+        //See if we need to read a formatted time of fixed width.
         //Needed for datetime spanning multiple columns (e.g. yyyy mm dd).
-        String regex = getTimeRegEx();
+        int timeWidth = getTimeWidth();
         
         //Start reading one line at a time.
+        int nline = 0;
         String line = readLine();
         while (line != null) {
+            //Stop if the request has been cancelled.
+            if (++nline % 1000 == 0) checkCancel();
+            
             line = line.trim();
             
             //skip empty or commented line
@@ -112,65 +133,93 @@ public class AsciiIOSP extends AbstractIOSP {
                 continue;
             }
             
-            String[] ss = null;
-            if (regex != null) {
+            if (timeWidth > 0) {
                 //This path will be taken if the time variable is "formatted".
-                //Assume time is first
-                String[] tsplit = RegEx.match(line, regex, RegEx.DELIMITER, ".*");
+                //Assume time is first and followed by a delimiter.
+                int n = line.length();
+                int start = timeWidth; //start of the rest of the line
+                while (start < n && isDelimiter(line.charAt(start))) start++;
                 //skip line that doesn't match
-                if (tsplit == null) {
+                if (start == timeWidth) {
                     String msg = "Can't parse row of data, skipping: " + line;
                     _logger.warn(msg);
                     line = readLine();
                     continue; 
                 }
                 
-                String time = tsplit[0]; //time portion
-                line = tsplit[2].trim(); //the rest of the line
-                String[] vsplit = line.split(RegEx.DELIMITER);
-                int n = vsplit.length + 1;
-                ss = new String[n];
-                ss[0] = time;
-                for (int i=1; i<n; i++) {
-                    ss[i] = vsplit[i-1];
-                }
+                tokenizer.tokenize(line, start);
+                _columns.addRow(tokenizer, 1);
+                _columns.setValue(0, line, 0, timeWidth);
             } else {
-                ss = line.split(RegEx.DELIMITER); 
+                tokenizer.tokenize(line, 0);
+                _columns.addRow(tokenizer, 0);
             }
             
-            _dataStrings.add(ss);
             line = readLine(); //read next line
-            //TODO: check if cancelled
         }
     }
     
     /**
-     * If the time unit is formatted, create a regular expression to parse that format.
+     * Is the character matched by RegEx.DELIMITER: white space or comma.
      */
-    private String getTimeRegEx() {
-        String regex = null;
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+    
+    /**
+     * Find the columns (from the variable names) of the String variables in the NcML.
+     * The number of columns is the largest column number used by a variable plus one.
+     */
+    private boolean[] getStringColumns() {
+        boolean[] columns = new boolean[0];
+        
+        Iterator it = getNetcdfElement().getDescendants();
+        while (it.hasNext()) {
+            Object o = it.next();
+            if (! (o instanceof Element)) continue;
+            Element element = (Element) o;
+            if (! element.getName().equals("variable")) continue;
+            
+            int icol = -1;
+            try {
+                icol = Integer.parseInt(getVariableName(element).substring(1));
+            } catch (Exception e) {
+                continue; //not a column variable (e.g. a Structure)
+            }
+            if (icol < 0) continue;
+            
+            if (icol >= columns.length) {
+                boolean[] cols = new boolean[icol+1];
+                System.arraycopy(columns, 0, cols, 0, columns.length);
+                columns = cols;
+            }
+            String type = element.getAttributeValue("type");
+            DataType dtype = (type == null) ? null : DataType.getType(type);
+            if (dtype != null && dtype.isString()) columns[icol] = true;
+        }
+        
+        return columns;
+    }
+    
+    /**
+     * If the time unit is formatted, return the number of characters in the format.
+     * Otherwise return 0.
+     */
+    private int getTimeWidth() {
+        int width = 0;
         
         String timeUnit = getTimeUnit();
         boolean isnum = timeUnit.contains("since");
         boolean isjul = timeUnit.toLowerCase().startsWith("julian");
         if (!isnum && !isjul) {
-//            String timeFormat = getTimeFormat();
-//            if (timeFormat == null) {
-//                String msg = "The formatted time variable does not define its format.";
-//                _logger.error(msg);
-//                throw new TSSException(msg);
-//            }
-            
             //Simply match the number of characters in the format
             //TODO: be more forgiving of white space?
-            int n = timeUnit.length();
-            regex = ".{"+n+"}";
+            width = timeUnit.length();
         }
         
-        return regex;
+        return width;
     }
     
-    
     /**
      * Return the number of time samples.
      * If not defined, get from the size of the data.
@@ -179,7 +228,7 @@ public class AsciiIOSP extends AbstractIOSP {
         int length = super.getLength(); //from ncml def
         
         if (length < 0) {
-            length = _dataStrings.size();
+            length = _columns.getRowCount();
         }
         
         return length;
@@ -246,22 +295,11 @@ public class AsciiIOSP extends AbstractIOSP {
         if (type.isString()) sdata = new String[length];
         else data = new double[length];
 
-        int j=0;
+        //Values that are not numbers were replaced with NaN when they were parsed.
         for (int i=0; i<length; i++) {
             int index = origin + stride * i;
-            String s = (_dataStrings.get(index))[varIndex];
-            if (type.isString()) sdata[j] = s;
-            else {
-                try {
-                    data[j] = Double.parseDouble(s);
-                } catch (NumberFormatException e) {
-                    //If it's not a number then it's NaN
-                    String msg = "Unable to parse data value. Replacing with NaN: " + s;
-                    _logger.warn(msg, e);
-                    data[j] = Double.NaN;
-                }
-            }
-            j++;
+            if (type.isString()) sdata[i] = _columns.getString(varIndex, index);
+            else data[i] = _columns.getDouble(varIndex, index);
         }
         
         //Construct the Array.
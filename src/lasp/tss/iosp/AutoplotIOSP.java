@@ -21,6 +21,14 @@ public class AutoplotIOSP extends GranuleIOSP {
     //vap:ftp://nssdcftp.gsfc.nasa.gov/spacecraft_data/omni/omni2_$Y.dat?column=field17&timeFormat=$Y+$j+$H&time=field0&validMax=999&timerange=1972
 	   private static final Logger _logger = Logger.getLogger(TimeSeriesDataset.class);
 	   
+    /**
+     * The data come from the "vapuri", not the granule file, so don't cache them.
+     */
+    @Override
+    protected boolean isCacheable() {
+        return false;
+    }
+    
     @Override
     protected void readAllData() {
         try {
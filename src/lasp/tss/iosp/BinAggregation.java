@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+/**
+ * Message for an IOSP (see TimeSeriesDataset.sendIospMessage) asking it to bin
+ * the values of a variable by time the way the BinningFilter does, so the raw
+ * samples don't have to be read (e.g. a database can do it with a "group by").
+ * An IOSP that can do it returns the binned data in the form of BinningFilter.bin,
+ * otherwise null.
+ */
+public class BinAggregation {
+
+    private String _variableName;
+    private double _binWidth;
+    private double _min;
+    private double _max;
+
+    /**
+     * Bin the named variable with the given bin width and range of times.
+     * The min or max may be NaN to use the first or last time.
+     */
+    public BinAggregation(String variableName, double binWidth, double min, double max) {
+        _variableName = variableName;
+        _binWidth = binWidth;
+        _min = min;
+        _max = max;
+    }
+
+    public String getVariableName() {
+        return _variableName;
+    }
+
+    public double getBinWidth() {
+        return _binWidth;
+    }
+
+    public double getMin() {
+        return _min;
+    }
+
+    public double getMax() {
+        return _max;
+    }
+
+    public String toString() {
+        return "binave(" + _binWidth + "," + _min + "," + _max + ") of " + _variableName;
+    }
+}
@@ -40,6 +40,7 @@ import ucar.nc2.Variable;
 import ucar.unidata.io.RandomAccessFile;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.List;
 
 import lasp.tss.TSSException;
@@ -50,6 +51,11 @@ import lasp.tss.TSSException;
  * Assumes only one variable in the file. 
  * But Structure and Sequence can have multiple scalars per time sample.
  * 
+ * If the "memoryMap" attribute of the netcdf element is "true", 
+ * the file will be memory mapped (once, shared by all requests) 
+ * and values will be gathered from the mapping instead of 
+ * seeking and reading the file.
+ * 
  * @author Doug Lindholm
  */
 public class BinIOSP extends AbstractIOSP {
@@ -57,6 +63,11 @@ public class BinIOSP extends AbstractIOSP {
     // Initialize a logger.
     private static final Logger _logger = Logger.getLogger(BinIOSP.class);
     
+    /**
+     * Shared memory mapping of the file, if using memory mapped mode.
+     */
+    private MappedDoubleFile _mapping;
+    
     /**
      * Initialize the IOSP. Set the byte order.
      * Note, we do not read the entire dataset in as in most other cases.
@@ -72,6 +83,12 @@ public class BinIOSP extends AbstractIOSP {
         else _logger.warn("Unable to parse byteOrder: " + endian + ". Defaulting to big-endian.");
         
         getFile().order(bo);
+        
+        //Map the file if requested.
+        if ("true".equalsIgnoreCase(getProperty("memoryMap"))) {
+            ByteOrder order = (bo == RandomAccessFile.LITTLE_ENDIAN) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            _mapping = MappedDoubleFile.getMapping(getFile().getLocation(), order);
+        }
     }
     
 
@@ -121,7 +138,7 @@ public class BinIOSP extends AbstractIOSP {
         } //else Scalar
         
         try {
-            length = ((int) raFile.length()) /nvar/n2/8;
+            length = (int) (raFile.length() /nvar/n2/8); //avoid overflow for large files
         } catch (IOException e) {
             String msg = "Unable to get length from the size of the data file: " + raFile.getLocation();
             throw new TSSException(msg);
@@ -148,20 +165,28 @@ public class BinIOSP extends AbstractIOSP {
         int stride = section.getStride(0); 
         int length = ntim; 
        
-        int position = (origin*nvar + ivar) * 8;
+        double[] data = new double[length];
+        checkCancel();
+        
+        //Gather one value per time sample from the memory mapped file.
+        if (_mapping != null) {
+            _mapping.gather((long) origin*nvar + ivar, (long) nvar*stride, ntim, 1, data);
+            return Array.factory(DataType.DOUBLE, shape, data);
+        }
+        
+        long position = ((long) origin*nvar + ivar) * 8;
         RandomAccessFile raFile = getFile();
         
-        double[] data = null;
         try {
             raFile.seek(position); //skip to start
-            data = new double[length];
             
             int i = 0; //index into data array
             for (int itim=0; itim<ntim; itim++) {
+                if (itim % 1000 == 0) checkCancel();
                 raFile.readDouble(data, i, 1); //read 1 value into data array, one time sample
                 i++;
                 //skip nvar values for next read
-                position += nvar * stride * 8; 
+                position += (long) nvar * stride * 8; 
                 raFile.seek(position);
             }
         } catch (IOException e) {
@@ -214,20 +239,31 @@ public class BinIOSP extends AbstractIOSP {
             length *= n2;
         }
 
+        double[] data = new double[length];
+        checkCancel();
+        
+        //Gather from the memory mapped file: one run of n2 values per time sample
+        if (_mapping != null) {
+            long start = (long) origin * n2orig + o2; //index of first value
+            if (stride > 1 || n2 != n2orig) _mapping.gather(start, (long) n2orig * stride, ntim, n2, data);
+            else _mapping.gather(start, 0, 1, length, data); //one contiguous run
+            return Array.factory(DataType.DOUBLE, shape, data);
+        }
+        
         RandomAccessFile raFile = getFile();
-        int position = (origin * n2orig + o2) * 8; //bytes to skip to first time sample, assumes doubles
+        long position = ((long) origin * n2orig + o2) * 8; //bytes to skip to first time sample, assumes doubles
         raFile.seek(position); //skip to start of desired subset
-        double[] data = new double[length];
 
         //read selectively if needed: for strides and/or 2nd dim subsetting
         if (stride > 1 || n2 != n2orig) {
             //read and skip for each time sample 
             int i = 0; //index into data array
             for (int itim=0; itim<ntim; itim++) {
+                if (itim % 1000 == 0) checkCancel();
                 raFile.readDouble(data, i, n2); //read n2 values into data array, one time sample
                 i += n2;
                 //skip n values for next read
-                position += n2orig * stride * 8;
+                position += (long) n2orig * stride * 8;
                 raFile.seek(position);
             }
 
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compression for the chunks written by the ColumnarWriter. The first byte of
+ * a compressed chunk says how the values were encoded:
+ *   DELTA: delta-of-delta of whole numbers such as regularly sampled times,
+ *          mostly a single bit per value when the spacing doesn't change.
+ *   XOR:   the XOR of each double with the one before, as in Facebook's Gorilla,
+ *          which stores only the bits that changed.
+ *   PLAIN: the doubles as they are, when neither of those helps.
+ * Each chunk is encoded on its own so any chunk can be decoded without the others.
+ */
+class ChunkCodec {
+
+    static final byte PLAIN = 0;
+    static final byte DELTA = 1;
+    static final byte XOR = 2;
+
+    /**
+     * Whole numbers up to this size are exact as doubles, so their deltas can't overflow.
+     */
+    private static final double MAX_EXACT = 1L << 52;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the smallest encoding of the given values.
+     */
+    static byte[] encode(double[] values, int count) {
+        byte[] bytes = encodeXor(values, count);
+        if (isIntegral(values, count)) {
+            byte[] delta = encodeDelta(values, count);
+            if (delta.length < bytes.length) bytes = delta;
+        }
+        if (bytes.length > 1 + count * 8) bytes = encodePlain(values, count);
+        return bytes;
+    }
+
+    /**
+     * Decode the given chunk into the given array, one value per element.
+     */
+    static void decode(byte[] bytes, double[] values) throws IOException {
+        if (bytes.length == 0) throw new IOException("Empty chunk.");
+        BitReader in = new BitReader(bytes);
+        int encoding = (int) in.read(8);
+        switch (encoding) {
+            case PLAIN: decodePlain(in, values); break;
+            case DELTA: decodeDelta(in, values); break;
+            case XOR: decodeXor(in, values); break;
+            default: throw new IOException("Unknown chunk encoding: " + encoding);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    private static byte[] encodePlain(double[] values, int count) {
+        BitWriter out = new BitWriter(1 + count * 8);
+        out.write(PLAIN, 8);
+        for (int i=0; i<count; i++) out.write(Double.doubleToRawLongBits(values[i]), 64);
+        return out.toByteArray();
+    }
+
+    private static void decodePlain(BitReader in, double[] values) {
+        for (int i=0; i<values.length; i++) values[i] = Double.longBitsToDouble(in.read(64));
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Can the values be encoded as deltas? They must be whole numbers
+     * that convert to a long and back without changing (e.g. not -0.0).
+     */
+    private static boolean isIntegral(double[] values, int count) {
+        for (int i=0; i<count; i++) {
+            double d = values[i];
+            if (! (Math.abs(d) <= MAX_EXACT)) return false; //also NaN
+            long bits = Double.doubleToRawLongBits(d);
+            if (Double.doubleToRawLongBits((double) (long) d) != bits) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The first value and delta in full, then the change in the delta for each
+     * value after that with a prefix for its size:
+     *   0: no change, 10: 7 bits, 110: 9 bits, 1110: 12 bits, 11110: 32 bits, 11111: 64 bits.
+     */
+    private static byte[] encodeDelta(double[] values, int count) {
+        BitWriter out = new BitWriter(count + 16);
+        out.write(DELTA, 8);
+        if (count == 0) return out.toByteArray();
+
+        long previous = (long) values[0];
+        out.write(previous, 64);
+        if (count == 1) return out.toByteArray();
+
+        long delta = (long) values[1] - previous;
+        out.write(delta, 64);
+        previous = (long) values[1];
+
+        for (int i=2; i<count; i++) {
+            long value = (long) values[i];
+            long d = value - previous;
+            long dod = d - delta;
+            if (dod == 0) out.write(0, 1);
+            else if (dod >= -63 && dod <= 64) {
+                out.write(2, 2);
+                out.write(dod + 63, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                out.write(6, 3);
+                out.write(dod + 255, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                out.write(14, 4);
+                out.write(dod + 2047, 12);
+            } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+                out.write(30, 5);
+                out.write(dod, 32);
+            } else {
+                out.write(31, 5);
+                out.write(dod, 64);
+            }
+            delta = d;
+            previous = value;
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void decodeDelta(BitReader in, double[] values) {
+        int count = values.length;
+        if (count == 0) return;
+
+        long previous = in.read(64);
+        values[0] = previous;
+        if (count == 1) return;
+
+        long delta = in.read(64);
+        previous += delta;
+        values[1] = previous;
+
+        for (int i=2; i<count; i++) {
+            long dod;
+            if (in.read(1) == 0) dod = 0;
+            else if (in.read(1) == 0) dod = in.read(7) - 63;
+            else if (in.read(1) == 0) dod = in.read(9) - 255;
+            else if (in.read(1) == 0) dod = in.read(12) - 2047;
+            else if (in.read(1) == 0) dod = (int) in.read(32);
+            else dod = in.read(64);
+            delta += dod;
+            previous += delta;
+            values[i] = previous;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * The first value in full, then the XOR of each value with the one before:
+     *   0: same value,
+     *   10: the meaningful bits fit in the window of the previous value,
+     *   11: the number of leading zeros (5 bits), the number of meaningful bits
+     *       less one (6 bits), then the meaningful bits.
+     */
+    private static byte[] encodeXor(double[] values, int count) {
+        BitWriter out = new BitWriter(count * 4 + 16);
+        out.write(XOR, 8);
+        if (count == 0) return out.toByteArray();
+
+        long previous = Double.doubleToRawLongBits(values[0]);
+        out.write(previous, 64);
+        int leading = -1; //no window yet
+        int trailing = 0;
+
+        for (int i=1; i<count; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previous;
+            previous = bits;
+
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+
+            int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int tz = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lz >= leading && tz >= trailing) {
+                out.write(2, 2);
+                out.write(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = lz;
+                trailing = tz;
+                int n = 64 - leading - trailing;
+                out.write(3, 2);
+                out.write(leading, 5);
+                out.write(n - 1, 6);
+                out.write(xor >>> trailing, n);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void decodeXor(BitReader in, double[] values) {
+        int count = values.length;
+        if (count == 0) return;
+
+        long previous = in.read(64);
+        values[0] = Double.longBitsToDouble(previous);
+        int leading = 0;
+        int trailing = 0;
+
+        for (int i=1; i<count; i++) {
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int) in.read(5);
+                    trailing = 64 - leading - ((int) in.read(6) + 1);
+                }
+                previous ^= in.read(64 - leading - trailing) << trailing;
+            }
+            values[i] = Double.longBitsToDouble(previous);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Write values of up to 64 bits, most significant bit first.
+     */
+    private static class BitWriter {
+        private ByteArrayOutputStream _out;
+        private int _current;
+        private int _nbits;
+
+        BitWriter(int size) {
+            _out = new ByteArrayOutputStream(size);
+        }
+
+        void write(long value, int n) {
+            while (n > 0) {
+                int take = Math.min(8 - _nbits, n);
+                int bits = (int) (value >>> (n - take)) & ((1 << take) - 1);
+                _current = (_current << take) | bits;
+                _nbits += take;
+                n -= take;
+                if (_nbits == 8) {
+                    _out.write(_current);
+                    _current = 0;
+                    _nbits = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (_nbits > 0) {
+                _out.write(_current << (8 - _nbits));
+                _current = 0;
+                _nbits = 0;
+            }
+            return _out.toByteArray();
+        }
+    }
+
+    /**
+     * Read values of up to 64 bits, most significant bit first.
+     */
+    private static class BitReader {
+        private byte[] _bytes;
+        private int _index; //next byte to take
+
+        /**
+         * The next bits, starting at the most significant, and how many there are.
+         */
+        private long _buffer;
+        private int _count;
+
+        BitReader(byte[] bytes) {
+            _bytes = bytes;
+        }
+
+        long read(int n) {
+            if (n > 56) {
+                long high = read(n - 32);
+                return (high << 32) | read(32);
+            }
+            if (n == 0) return 0;
+
+            if (_count < n) {
+                //Fill the buffer, past the end of the bytes are zeros
+                while (_count <= 56) {
+                    long b = (_index < _bytes.length) ? _bytes[_index] & 0xff : 0;
+                    _index++;
+                    _buffer |= b << (56 - _count);
+                    _count += 8;
+                }
+            }
+
+            long value = _buffer >>> (64 - n);
+            _buffer <<= n;
+            _count -= n;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.nio.DoubleBuffer;
+
+import lasp.tss.util.DelimitedTokenizer;
+import lasp.tss.util.NumberParser;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Column oriented storage for tabular data parsed from text, one row per record.
+ * Numeric columns are parsed as they are added and kept as primitive doubles.
+ * Only String columns keep the text. Columns that are not needed are dropped.
+ * Missing or unparseable numbers are NaN, missing Strings are empty.
+ * Columns loaded from a ColumnSidecar are memory mapped and can't be added to.
+ */
+public class ColumnBuffers {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ColumnBuffers.class);
+
+    private int _ncol;
+    private int _nrow;
+    private int _capacity;
+
+    /**
+     * Values for each numeric column, null for String columns.
+     */
+    private double[][] _values;
+
+    /**
+     * Text for each String column, null for numeric columns.
+     */
+    private String[][] _strings;
+
+    /**
+     * Mapped values for each numeric column if loaded from a sidecar, else null.
+     */
+    private DoubleBuffer[] _mapped;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Construct buffers for the given columns. A column is kept as text
+     * if its stringColumns element is true.
+     */
+    public ColumnBuffers(boolean[] stringColumns) {
+        _ncol = stringColumns.length;
+        _capacity = 1024;
+        _values = new double[_ncol][];
+        _strings = new String[_ncol][];
+        for (int icol=0; icol<_ncol; icol++) {
+            if (stringColumns[icol]) _strings[icol] = new String[_capacity];
+            else _values[icol] = new double[_capacity];
+        }
+    }
+
+    /**
+     * Wrap columns that have already been read (see ColumnSidecar): the values
+     * of each numeric column or the text of each String column (null for the other).
+     */
+    ColumnBuffers(int nrow, DoubleBuffer[] values, String[][] strings) {
+        _ncol = values.length;
+        _nrow = nrow;
+        _capacity = nrow;
+        _values = new double[_ncol][];
+        _strings = strings;
+        _mapped = values;
+    }
+
+    /**
+     * Return the number of columns.
+     */
+    public int getColumnCount() {
+        return _ncol;
+    }
+
+    /**
+     * Return the number of rows.
+     */
+    public int getRowCount() {
+        return _nrow;
+    }
+
+    /**
+     * Is the given column kept as text.
+     */
+    public boolean isString(int icol) {
+        return icol < _ncol && _strings[icol] != null;
+    }
+
+  //----- Add Data ---------------------------------------------------------
+
+    /**
+     * Start a new row with missing values.
+     */
+    public void addRow() {
+        if (_mapped != null) throw new IllegalStateException("Columns loaded from a sidecar can't be added to.");
+        if (_nrow == _capacity) grow();
+        for (int icol=0; icol<_ncol; icol++) {
+            if (_strings[icol] != null) _strings[icol][_nrow] = "";
+            else _values[icol][_nrow] = Double.NaN;
+        }
+        _nrow++;
+    }
+
+    /**
+     * Add a row with the tokens, starting with the given column.
+     * Tokens beyond the last column are ignored.
+     */
+    public void addRow(DelimitedTokenizer tokens, int firstColumn) {
+        addRow();
+        int n = Math.min(tokens.getCount(), _ncol - firstColumn);
+        for (int i=0; i<n; i++) {
+            setValue(firstColumn + i, tokens, i);
+        }
+    }
+
+    /**
+     * Set the value of the given column in the last row from the given token.
+     */
+    public void setValue(int icol, DelimitedTokenizer tokens, int itoken) {
+        if (icol >= _ncol) return;
+        int irow = _nrow - 1;
+
+        if (_strings[icol] != null) _strings[icol][irow] = tokens.getToken(itoken);
+        else {
+            try {
+                _values[icol][irow] = tokens.getDouble(itoken);
+            } catch (NumberFormatException e) {
+                warn(icol, tokens.getToken(itoken));
+            }
+        }
+    }
+
+    /**
+     * Set the value of the given column in the last row from a region of text.
+     */
+    public void setValue(int icol, CharSequence text, int start, int end) {
+        if (icol >= _ncol) return;
+        int irow = _nrow - 1;
+
+        if (_strings[icol] != null) _strings[icol][irow] = text.subSequence(start, end).toString();
+        else {
+            try {
+                _values[icol][irow] = NumberParser.parseDouble(text, start, end);
+            } catch (NumberFormatException e) {
+                warn(icol, text.subSequence(start, end).toString());
+            }
+        }
+    }
+
+    private void warn(int icol, String s) {
+        String msg = "Unable to parse value in column " + icol + ". Replacing with NaN: '" + s + "'";
+        _logger.warn(msg);
+    }
+
+    /**
+     * Double the capacity of the columns.
+     */
+    private void grow() {
+        int capacity = _capacity * 2;
+        for (int icol=0; icol<_ncol; icol++) {
+            if (_strings[icol] != null) {
+                String[] ss = new String[capacity];
+                System.arraycopy(_strings[icol], 0, ss, 0, _nrow);
+                _strings[icol] = ss;
+            } else {
+                double[] d = new double[capacity];
+                System.arraycopy(_values[icol], 0, d, 0, _nrow);
+                _values[icol] = d;
+            }
+        }
+        _capacity = capacity;
+    }
+
+  //----- Get Data ---------------------------------------------------------
+
+    /**
+     * Return the numeric value of the given column and row.
+     * NaN if the column is not numeric or doesn't exist.
+     */
+    public double getDouble(int icol, int irow) {
+        if (icol >= _ncol || _strings[icol] != null) return Double.NaN;
+        if (_mapped != null) return _mapped[icol].get(irow);
+        return _values[icol][irow];
+    }
+
+    /**
+     * Return the value of the given column and row as text.
+     * Numeric columns are formatted. Empty if the column doesn't exist.
+     */
+    public String getString(int icol, int irow) {
+        if (icol >= _ncol) return "";
+        if (_strings[icol] != null) return _strings[icol][irow];
+        return Double.toString(getDouble(icol, irow));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+import lasp.tss.TSSProperties;
+import lasp.tss.util.FileReplacer;
+import lasp.tss.util.ServerUtils;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+
+/**
+ * Binary, column oriented copy of the data parsed from a text file so later
+ * requests can skip the parsing. A reader turns it on with the "sidecar"
+ * attribute set to "true" on the "netcdf" element.
+ * Sidecars live in the "sidecar.dir" directory (default "cache" in the dataset.dir),
+ * named by the reader class, the source file, and the NcML that describes how to
+ * parse it. Each records the modification time and size of the source and is
+ * rebuilt when they change. Numeric columns are memory mapped when loaded.
+ *
+ * The format (big-endian) is a header:
+ *   magic, version (int), source modification time, source size (long),
+ *   number of rows, number of columns (int),
+ *   a byte for each column: 0 for numeric, 1 for String,
+ *   padding to a multiple of 8 bytes,
+ * followed by the values of each numeric column (double) and then
+ * the text of each String column (int length and UTF-8 bytes).
+ */
+public class ColumnSidecar {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ColumnSidecar.class);
+
+    private static final int MAGIC = 0x54535343; //"TSSC"
+    private static final int VERSION = 1;
+
+    private File _source;
+    private long _lastModified;
+    private long _length;
+    private File _file;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the sidecar for the given source read by the given reader class as described
+     * by the given "netcdf" element. Return null if the element doesn't ask for one
+     * or the source is not a local file.
+     */
+    public static ColumnSidecar getSidecar(Class<?> readerClass, String url, Element ncel) {
+        if (! "true".equalsIgnoreCase(ncel.getAttributeValue("sidecar")) || url == null) return null;
+
+        File source = null;
+        if (url.startsWith("file:")) source = new File(url.substring(5));
+        else if (url.indexOf(':') < 0) source = new File(url);
+        if (source == null || ! source.isFile()) return null;
+
+        String key = readerClass.getName() + "|" + source.getAbsolutePath() + "|" + GranuleCache.digest(ncel);
+        return new ColumnSidecar(source, new File(getDirectory(), getFileName(key)));
+    }
+
+    /**
+     * Return the directory for the sidecar files.
+     */
+    private static File getDirectory() {
+        String dir = TSSProperties.getProperty("sidecar.dir");
+        if (dir == null || dir.trim().length() == 0) return new File(TSSProperties.getDatasetDir(), "cache");
+        return new File(dir.trim());
+    }
+
+    /**
+     * Return the name of the file for the given key.
+     */
+    private static String getFileName(String key) {
+        return ServerUtils.digest(key, "MD5") + ".col";
+    }
+
+    /**
+     * Note the state of the source now, before it is parsed, so a change
+     * while we are parsing it will cause the sidecar to be rebuilt.
+     */
+    private ColumnSidecar(File source, File file) {
+        _source = source;
+        _lastModified = source.lastModified();
+        _length = source.length();
+        _file = file;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the columns from the sidecar. Return null if there is no
+     * sidecar or it was made from a different version of the source.
+     */
+    public ColumnBuffers load() {
+        if (! _file.isFile()) return null;
+
+        ColumnBuffers columns = null;
+        RandomAccessFile raf = null;
+        DataInputStream in = null;
+        try {
+            raf = new RandomAccessFile(_file, "r");
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                _logger.warn("Ignoring a sidecar in an unknown format: " + _file);
+                return null;
+            }
+            if (raf.readLong() != _lastModified || raf.readLong() != _length) {
+                _logger.debug("The source has changed since the sidecar was made: " + _source);
+                return null;
+            }
+
+            int nrow = raf.readInt();
+            int ncol = raf.readInt();
+            byte[] kinds = new byte[ncol];
+            raf.readFully(kinds);
+            long position = getHeaderLength(ncol);
+
+            //Map the numeric columns. The mappings remain valid after the file is closed.
+            FileChannel channel = raf.getChannel();
+            DoubleBuffer[] values = new DoubleBuffer[ncol];
+            for (int icol=0; icol<ncol; icol++) {
+                if (kinds[icol] != 0) continue;
+                values[icol] = channel.map(FileChannel.MapMode.READ_ONLY, position, nrow * 8L).asDoubleBuffer();
+                position += nrow * 8L;
+            }
+
+            //Read the String columns.
+            String[][] strings = new String[ncol][];
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+            skipFully(in, position);
+            for (int icol=0; icol<ncol; icol++) {
+                if (kinds[icol] == 0) continue;
+                String[] ss = new String[nrow];
+                for (int irow=0; irow<nrow; irow++) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    ss[irow] = new String(bytes, "UTF-8");
+                }
+                strings[icol] = ss;
+            }
+
+            columns = new ColumnBuffers(nrow, values, strings);
+            _logger.debug("Loaded " + nrow + " rows from the sidecar for: " + _source);
+        } catch (Exception e) {
+            _logger.warn("Unable to read the sidecar: " + _file, e);
+        } finally {
+            try {if (in != null) in.close();} catch (IOException e) {}
+            try {if (raf != null) raf.close();} catch (IOException e) {}
+        }
+
+        return columns;
+    }
+
+    /**
+     * Write the parsed columns to the sidecar.
+     * Failures are logged, the request can carry on without it.
+     */
+    public void save(ColumnBuffers columns) {
+        FileReplacer replacer = null;
+        try {
+            replacer = new FileReplacer(_file);
+            DataOutputStream out = replacer.getOutputStream();
+
+            int nrow = columns.getRowCount();
+            int ncol = columns.getColumnCount();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(_lastModified);
+            out.writeLong(_length);
+            out.writeInt(nrow);
+            out.writeInt(ncol);
+            for (int icol=0; icol<ncol; icol++) out.writeByte(columns.isString(icol) ? 1 : 0);
+            for (long i=out.size(); i<getHeaderLength(ncol); i++) out.writeByte(0);
+
+            for (int icol=0; icol<ncol; icol++) {
+                if (columns.isString(icol)) continue;
+                for (int irow=0; irow<nrow; irow++) out.writeDouble(columns.getDouble(icol, irow));
+            }
+            for (int icol=0; icol<ncol; icol++) {
+                if (! columns.isString(icol)) continue;
+                for (int irow=0; irow<nrow; irow++) {
+                    String s = columns.getString(icol, irow);
+                    byte[] bytes = (s == null ? "" : s).getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+
+            //Replace the old one, readers that have it mapped keep their copy.
+            replacer.commit();
+            _logger.debug("Wrote " + nrow + " rows to the sidecar for: " + _source);
+        } catch (Exception e) {
+            _logger.warn("Unable to write the sidecar: " + _file, e);
+        } finally {
+            if (replacer != null) replacer.abort();
+        }
+    }
+
+    /**
+     * Return the length of the header, padded so the values are aligned.
+     */
+    private static long getHeaderLength(int ncol) {
+        long n = 4 + 4 + 8 + 8 + 4 + 4 + ncol;
+        return (n + 7) / 8 * 8;
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) throw new IOException("Unexpected end of the sidecar.");
+            n -= skipped;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package lasp.tss.iosp;
 import java.util.ArrayList;
 import java.util.List;
 
+import lasp.tss.util.DelimitedTokenizer;
+
 import org.apache.log4j.Logger;
 
 public class ColumnarAsciiReader extends AsciiGranuleReader {
@@ -12,6 +14,11 @@ public class ColumnarAsciiReader extends AsciiGranuleReader {
     
     private List<int[]> _varColumns;
     
+    /**
+     * Reusable buffer for joining multiple columns.
+     */
+    private StringBuilder _buffer = new StringBuilder();
+    
     
     protected void init() {
         //get the columns for each variable
@@ -30,28 +37,43 @@ public class ColumnarAsciiReader extends AsciiGranuleReader {
         }
     }
     
-    protected String[] parseRecord(String record) {
-        //TODO: performance concern, called for every time sample
-        String delim = getDelimiter();
-        String[] columns = record.split(delim);
+    /**
+     * Add the values from the columns defined for each variable.
+     * Variables with multiple columns (e.g. "yyyy mm dd") are joined with a space.
+     */
+    protected void addRecord(String record) {
+        DelimitedTokenizer tokenizer = getTokenizer();
+        int ntok = tokenizer.tokenize(record, 0);
         
+        ColumnBuffers columns = getColumns();
         int nvar = _varColumns.size();
-        String[] ss = new String[nvar];
-
-        try {
-            for (int ivar=0; ivar<nvar; ivar++) {
-                for (int i : _varColumns.get(ivar)) {
-                    if (ss[ivar] == null) ss[ivar] = columns[i-1]; //columns start at 1
-                    else ss[ivar] += " " + columns[i-1]; 
+        
+        //Make sure we have all the columns, else drop this record
+        for (int ivar=0; ivar<nvar; ivar++) {
+            for (int i : _varColumns.get(ivar)) {
+                if (i < 1 || i > ntok) { //columns start at 1
+                    String msg = "Unable to parse record: " + record;
+                    _logger.warn(msg);
+                    return;
                 }
             }
-        } catch (Exception e) {
-            String msg = "Unable to parse record: " + record;
-            _logger.warn(msg);
-            ss = null; //drop this record
         }
         
-        return ss;
+        columns.addRow();
+        for (int ivar=0; ivar<nvar; ivar++) {
+            int[] icols = _varColumns.get(ivar);
+            if (icols.length == 1) {
+                int itok = icols[0] - 1;
+                columns.setValue(ivar, record, tokenizer.getStart(itok), tokenizer.getEnd(itok));
+            } else {
+                _buffer.setLength(0);
+                for (int i : icols) {
+                    if (_buffer.length() > 0) _buffer.append(' ');
+                    _buffer.append(record, tokenizer.getStart(i-1), tokenizer.getEnd(i-1));
+                }
+                columns.setValue(ivar, _buffer, 0, _buffer.length());
+            }
+        }
     }
     
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lasp.tss.TSSException;
+import lasp.tss.constraint.Constraint;
+import lasp.tss.constraint.ConstraintExpression;
+import lasp.tss.constraint.ProjectionConstraint;
+import lasp.tss.constraint.SelectionConstraint;
+import lasp.tss.filter.ThresholdFilter;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Section;
+import ucar.nc2.Variable;
+import ucar.unidata.io.RandomAccessFile;
+
+/**
+ * IOSP for the chunked, column oriented files written by the ColumnarWriter,
+ * see the ColumnarConverter to make one from an existing dataset.
+ * Each variable is a double with only the time dimension, named (orgName) as in the file.
+ * The chunks may be compressed, see ChunkCodec.
+ * Don't define the length of the time dimension, it comes from the file.
+ *
+ * The statistics for each chunk in the file's footer are used to skip the chunks
+ * that can't have any time samples that the request's selections would keep.
+ * Only the selections before any hyperslab, filter or nearest neighbor ("~")
+ * selection are used since those depend on the samples before them.
+ * The selections are still applied to what we read, so a chunk is kept if
+ * it might have a match. The samples in the chunks that are kept are served
+ * as one time series. A dataset can turn this off with the "pushdown"
+ * attribute set to "false".
+ */
+public class ColumnarIOSP extends AbstractIOSP {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ColumnarIOSP.class);
+
+    private int _chunkSize;
+    private int _nrow;
+    private Map<String, Segment> _segments = new HashMap<String, Segment>();
+
+    /**
+     * Chunks that may have samples that the request wants, in order.
+     */
+    private int[] _chunks;
+
+    /**
+     * Number of time samples in those chunks.
+     */
+    private int _length;
+
+    /**
+     * Index of the chunks of a variable.
+     */
+    private static class Segment {
+        byte encoding;
+        long[] offsets;
+        int[] lengths;
+        int[] counts;
+        int[] nans;
+        double[] mins;
+        double[] maxs;
+
+        //The last chunk that was read
+        int chunk = -1;
+        double[] values;
+    }
+
+    /**
+     * Read the index of the chunks and choose the ones the request needs.
+     */
+    protected void init() {
+        readIndex();
+        selectChunks();
+    }
+
+    /**
+     * Return the number of time samples in the chunks we are serving.
+     */
+    protected int getLength() {
+        int length = super.getLength();
+        if (length >= 0) return length; // -1 if undefined
+        return _length;
+    }
+
+  //------------------------------------------------------------------------
+
+    private void readIndex() {
+        RandomAccessFile raf = getFile();
+        try {
+            raf.order(RandomAccessFile.BIG_ENDIAN);
+            long size = raf.length();
+            raf.seek(0);
+            if (size < ColumnarWriter.HEADER_LENGTH + ColumnarWriter.TRAILER_LENGTH || raf.readInt() != ColumnarWriter.MAGIC) {
+                throw new IOException("Not a columnar file.");
+            }
+            int version = raf.readInt();
+            if (version != ColumnarWriter.VERSION) throw new IOException("Unsupported version: " + version);
+
+            raf.seek(size - ColumnarWriter.TRAILER_LENGTH);
+            long footer = raf.readLong();
+            if (raf.readInt() != ColumnarWriter.MAGIC) throw new IOException("The file is incomplete.");
+
+            raf.seek(footer);
+            _chunkSize = raf.readInt();
+            _nrow = raf.readInt();
+            int nvar = raf.readInt();
+            int nchunk = getChunkCount();
+            for (int ivar=0; ivar<nvar; ivar++) {
+                String name = raf.readUTF();
+                Segment segment = new Segment();
+                segment.encoding = raf.readByte();
+                if (segment.encoding != ColumnarWriter.PLAIN && segment.encoding != ColumnarWriter.COMPRESSED) {
+                    throw new IOException("Unsupported encoding " + segment.encoding + " for variable: " + name);
+                }
+                segment.offsets = new long[nchunk];
+                segment.lengths = new int[nchunk];
+                segment.counts = new int[nchunk];
+                segment.nans = new int[nchunk];
+                segment.mins = new double[nchunk];
+                segment.maxs = new double[nchunk];
+                for (int i=0; i<nchunk; i++) {
+                    segment.offsets[i] = raf.readLong();
+                    segment.lengths[i] = raf.readInt();
+                    segment.counts[i] = raf.readInt();
+                    segment.nans[i] = raf.readInt();
+                    segment.mins[i] = raf.readDouble();
+                    segment.maxs[i] = raf.readDouble();
+                }
+                _segments.put(name, segment);
+            }
+        } catch (IOException e) {
+            String msg = "Failed to read the index of the file: " + raf.getLocation();
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        }
+    }
+
+    private int getChunkCount() {
+        return (_nrow + _chunkSize - 1) / _chunkSize;
+    }
+
+    /**
+     * The time samples depend on the query if any chunks were skipped.
+     */
+    protected boolean isQueryDependent() {
+        return _chunks.length < getChunkCount();
+    }
+
+    /**
+     * Keep the chunks that might have samples that pass the request's selections.
+     */
+    private void selectChunks() {
+        int nchunk = getChunkCount();
+        boolean[] skip = findSkippedChunks();
+
+        int n = 0;
+        _chunks = new int[nchunk];
+        _length = 0;
+        for (int i=0; i<nchunk; i++) {
+            if (skip[i]) continue;
+            _chunks[n++] = i;
+            _length += Math.min(_chunkSize, _nrow - i * _chunkSize);
+        }
+        if (n < nchunk) {
+            _chunks = Arrays.copyOf(_chunks, n);
+            _logger.debug("Skipping " + (nchunk - n) + " of " + nchunk + " chunks in: " + getFile().getLocation());
+        }
+    }
+
+    /**
+     * Return a flag for each chunk, true if its statistics prove that
+     * none of its samples would pass the request's selections.
+     */
+    private boolean[] findSkippedChunks() {
+        int nchunk = getChunkCount();
+        boolean[] skip = new boolean[nchunk];
+        if ("false".equals(getProperty("pushdown"))) return skip;
+
+        List<Constraint> constraints;
+        try {
+            constraints = new ConstraintExpression(getProperty("query")).getConstraints();
+        } catch (Exception e) {
+            return skip; //let the request fail the usual way
+        }
+
+        //Map the variable names used in the request to their NcML elements.
+        Map<String,Element> elements = new HashMap<String,Element>();
+        Element ncElement = getNetcdfElement();
+        List<Element> vars = ncElement.getChildren("variable", ncElement.getNamespace());
+        for (Element element : vars) elements.put(element.getAttributeValue("name"), element);
+
+        for (Constraint constraint : constraints) {
+            if (constraint instanceof ProjectionConstraint) continue;
+            if (! (constraint instanceof SelectionConstraint)) break; //hyperslab or filter
+            SelectionConstraint sc = (SelectionConstraint) constraint;
+            if (sc.getOperator().equals("~")) break;
+
+            Element element = elements.get(sc.getVariableName());
+            if (element == null) continue;
+            Segment segment = _segments.get(getVariableName(element));
+            if (segment == null) continue;
+
+            for (ThresholdFilter filter : makeFilters(sc, element)) {
+                for (int i=0; i<nchunk; i++) {
+                    if (! skip[i]) skip[i] = ! canPass(filter, segment, i);
+                }
+            }
+        }
+
+        return skip;
+    }
+
+    /**
+     * Make filters that keep at least the samples that the selection would.
+     * Times from the request may be converted a little differently than the
+     * TimeVariable does, so time comparisons are made inclusive with some slack.
+     * Return an empty list if the selection can't be tested against the statistics.
+     */
+    private List<ThresholdFilter> makeFilters(SelectionConstraint selection, Element element) {
+        List<ThresholdFilter> filters = new ArrayList<ThresholdFilter>();
+
+        String op = selection.getOperator();
+        boolean lower = op.equals(">") || op.equals(">=");
+        boolean upper = op.equals("<") || op.equals("<=");
+        boolean equal = op.equals("=");
+        if (! (lower || upper || equal) || isScaled(element)) return filters;
+
+        if (! "time".equals(element.getAttributeValue("name"))) {
+            try {
+                filters.add(new ThresholdFilter(op, selection.getValue()));
+            } catch (NumberFormatException e) {} //not a number, leave it for the constraint
+            return filters;
+        }
+
+        double value = parseTime(selection.getValue());
+        if (Double.isNaN(value)) return filters;
+        double slack = Math.abs(value) * 1e-9;
+        if (lower || equal) filters.add(new ThresholdFilter(">=", String.valueOf(value - slack)));
+        if (upper || equal) filters.add(new ThresholdFilter("<=", String.valueOf(value + slack)));
+
+        return filters;
+    }
+
+    /**
+     * Could any value in the given chunk of the segment pass the filter?
+     * NaN is above everything, see ThresholdFilter.
+     */
+    private static boolean canPass(ThresholdFilter filter, Segment segment, int ichunk) {
+        int count = segment.counts[ichunk];
+        int nan = segment.nans[ichunk];
+        double min = (nan == count) ? Double.NaN : segment.mins[ichunk];
+        double max = (nan > 0) ? Double.NaN : segment.maxs[ichunk];
+        return filter.canPass(min, max);
+    }
+
+    /**
+     * Does the variable defined by the given element have a scale_factor or add_offset.
+     */
+    private static boolean isScaled(Element element) {
+        List<Element> atts = element.getChildren("attribute", element.getNamespace());
+        for (Element att : atts) {
+            String name = att.getAttributeValue("name");
+            if ("scale_factor".equals(name) || "add_offset".equals(name)) return true;
+        }
+        return false;
+    }
+
+  //------------------------------------------------------------------------
+
+    public Array readData(Variable variable, Section section) throws IOException, InvalidRangeException {
+        Segment segment = _segments.get(variable.getShortName());
+        if (segment == null) {
+            String msg = "The variable " + variable.getShortName() + " is not in the file: " + getFile().getLocation();
+            _logger.error(msg);
+            throw new TSSException(msg);
+        }
+
+        //Get info on time selection (1st dimension), relative to the chunks we kept.
+        int[] shape = section.getShape();
+        int ntim = shape[0];
+        int origin = section.getOrigin(0);
+        int stride = section.getStride(0);
+
+        double[] data = new double[ntim];
+        int i = 0; //index into data array
+        while (i < ntim) {
+            //Only the last chunk in the file can be short so this works with chunks skipped.
+            int index = origin + i * stride;
+            double[] values = readChunk(segment, _chunks[index / _chunkSize]);
+            for (int j = index % _chunkSize; i < ntim && j < values.length; j += stride) {
+                data[i++] = values[j];
+            }
+        }
+
+        return Array.factory(DataType.DOUBLE, shape, data);
+    }
+
+    /**
+     * Return the values of the given chunk of the segment.
+     * The last one read is kept since reads are usually in order.
+     * Only the chunks that a read touches are decoded.
+     */
+    private double[] readChunk(Segment segment, int ichunk) throws IOException {
+        if (segment.chunk == ichunk) return segment.values;
+        checkCancel();
+
+        double[] values = new double[segment.counts[ichunk]];
+        RandomAccessFile raf = getFile();
+        raf.seek(segment.offsets[ichunk]);
+        if (segment.encoding == ColumnarWriter.COMPRESSED) {
+            byte[] bytes = new byte[segment.lengths[ichunk]];
+            raf.readFully(bytes);
+            ChunkCodec.decode(bytes, values);
+        } else {
+            raf.readDouble(values, 0, values.length);
+        }
+
+        segment.chunk = ichunk;
+        segment.values = values;
+        return values;
+    }
+
+
+    public String getFileTypeDescription() {
+        return "Chunked column oriented file of doubles, optionally compressed, with statistics for each chunk.";
+    }
+
+    public String getFileTypeId() {
+        return "TSS-Columnar";
+    }
+
+}
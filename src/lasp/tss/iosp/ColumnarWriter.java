@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import lasp.tss.util.FileReplacer;
+
+/**
+ * Write time series in the chunked, column oriented format that the ColumnarIOSP reads.
+ * Each variable is written as a segment of doubles, one variable at a time,
+ * split into chunks of a fixed number of time samples. A footer at the end of the
+ * file indexes the chunks with the statistics (zone map) of each: the number of
+ * samples, the number of NaNs, and the min and max of the other values.
+ *
+ * The format (big-endian) is:
+ *   magic, version (int),
+ *   the chunks of each variable, one after the other,
+ *   the footer:
+ *     chunk size, number of time samples, number of variables (int),
+ *     for each variable: name (modified UTF-8), encoding (byte), and for each chunk:
+ *       offset (long), length in bytes, count, number of NaNs (int), min, max (double),
+ *   the offset of the footer (long) and the magic number again.
+ * Chunks are encoded as plain doubles (encoding 0) or compressed (encoding 1,
+ * see ChunkCodec). Compressed chunks are smaller but must be decoded as a whole.
+ */
+public class ColumnarWriter {
+
+    static final int MAGIC = 0x5453535a; //"TSSZ"
+    static final int VERSION = 1;
+
+    /**
+     * Encodings of the chunks.
+     */
+    static final byte PLAIN = 0;
+    static final byte COMPRESSED = 1;
+
+    /**
+     * Length of the magic number and version at the start of the file.
+     */
+    static final int HEADER_LENGTH = 8;
+
+    /**
+     * Length of the footer offset and magic number at the end of the file.
+     */
+    static final int TRAILER_LENGTH = 12;
+
+    private FileReplacer _replacer;
+    private DataOutputStream _out;
+    private long _position;
+    private int _chunkSize;
+    private boolean _compress;
+    private int _length = -1;
+
+    private List<Column> _columns = new ArrayList<Column>();
+    private Column _column;
+
+    /**
+     * Values of the current chunk.
+     */
+    private double[] _chunk;
+    private int _count;
+
+    /**
+     * Index of a variable that has been written.
+     */
+    private static class Column {
+        String name;
+        int length;
+        List<long[]> offsets = new ArrayList<long[]>(); //offset, length in bytes
+        List<int[]> counts = new ArrayList<int[]>();    //count, number of NaNs
+        List<double[]> ranges = new ArrayList<double[]>(); //min, max
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Start writing the given file with the given number of time samples per chunk.
+     * The file is only replaced when the writer is closed.
+     */
+    public ColumnarWriter(File file, int chunkSize) throws IOException {
+        this(file, chunkSize, false);
+    }
+
+    /**
+     * Start writing the given file with the given number of time samples per chunk,
+     * compressing the chunks if asked.
+     */
+    public ColumnarWriter(File file, int chunkSize, boolean compress) throws IOException {
+        if (chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        _chunkSize = chunkSize;
+        _compress = compress;
+        _chunk = new double[chunkSize];
+
+        _replacer = new FileReplacer(file);
+        _out = _replacer.getOutputStream();
+        _out.writeInt(MAGIC);
+        _out.writeInt(VERSION);
+        _position = HEADER_LENGTH;
+    }
+
+    /**
+     * Start the segment for the variable with the given name.
+     * The values for the previous variable are done.
+     */
+    public void startVariable(String name) throws IOException {
+        endVariable();
+        for (Column column : _columns) {
+            if (column.name.equals(name)) throw new IOException("The variable has already been written: " + name);
+        }
+        _column = new Column();
+        _column.name = name;
+    }
+
+    /**
+     * Append the given values to the current variable.
+     */
+    public void write(double[] values, int offset, int count) throws IOException {
+        if (_column == null) throw new IllegalStateException("No variable has been started.");
+        for (int i=offset; i<offset+count; i++) {
+            _chunk[_count++] = values[i];
+            if (_count == _chunkSize) writeChunk();
+        }
+    }
+
+    /**
+     * Write the footer and replace the file.
+     */
+    public void close() throws IOException {
+        try {
+            endVariable();
+
+            long footer = _position;
+            _out.writeInt(_chunkSize);
+            _out.writeInt(Math.max(_length, 0));
+            _out.writeInt(_columns.size());
+            for (Column column : _columns) {
+                _out.writeUTF(column.name);
+                _out.writeByte(_compress ? COMPRESSED : PLAIN);
+                for (int i=0; i<column.offsets.size(); i++) {
+                    long[] offset = column.offsets.get(i);
+                    int[] counts = column.counts.get(i);
+                    double[] range = column.ranges.get(i);
+                    _out.writeLong(offset[0]);
+                    _out.writeInt((int) offset[1]);
+                    _out.writeInt(counts[0]);
+                    _out.writeInt(counts[1]);
+                    _out.writeDouble(range[0]);
+                    _out.writeDouble(range[1]);
+                }
+            }
+            _out.writeLong(footer);
+            _out.writeInt(MAGIC);
+            _replacer.commit();
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Give up on the file, e.g. after a failure. The original, if any, is left alone.
+     */
+    public void abort() {
+        _replacer.abort();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Finish the current variable. They must all have the same number of time samples.
+     */
+    private void endVariable() throws IOException {
+        if (_column == null) return;
+        if (_count > 0) writeChunk();
+
+        if (_length < 0) _length = _column.length;
+        else if (_column.length != _length) {
+            throw new IOException("The variable " + _column.name + " has " + _column.length
+                + " time samples instead of " + _length);
+        }
+
+        _columns.add(_column);
+        _column = null;
+    }
+
+    /**
+     * Encode the current chunk, write it, and add it to the index.
+     */
+    private void writeChunk() throws IOException {
+        int nan = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        for (int i=0; i<_count; i++) {
+            double d = _chunk[i];
+            if (Double.isNaN(d)) nan++;
+            else {
+                if (Double.compare(d, min) < 0) min = d; //NaN is above everything so the first value replaces it
+                if (Double.isNaN(max) || Double.compare(d, max) > 0) max = d;
+            }
+        }
+
+        byte[] bytes;
+        if (_compress) bytes = ChunkCodec.encode(_chunk, _count);
+        else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(_count * 8);
+            DataOutputStream data = new DataOutputStream(buffer);
+            for (int i=0; i<_count; i++) data.writeDouble(_chunk[i]);
+            data.close();
+            bytes = buffer.toByteArray();
+        }
+
+        _out.write(bytes);
+        _column.offsets.add(new long[] {_position, bytes.length});
+        _column.counts.add(new int[] {_count, nan});
+        _column.ranges.add(new double[] {min, max});
+        _position += bytes.length;
+
+        _column.length += _count;
+        _count = 0;
+    }
+}
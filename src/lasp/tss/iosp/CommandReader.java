@@ -3,6 +3,8 @@ package lasp.tss.iosp;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 
+import lasp.tss.RequestCancelledException;
+
 import org.apache.log4j.Logger;
 
 
@@ -15,6 +17,14 @@ public class CommandReader extends AsciiGranuleReader {
     private static final Logger _logger = Logger.getLogger(CommandReader.class);
     
     
+    /**
+     * The output of a command can't be checked for changes so don't cache it.
+     */
+    @Override
+    protected boolean isCacheable() {
+        return false;
+    }
+    
     protected BufferedReader openReader() {
         BufferedReader reader = null;
         
@@ -32,9 +42,11 @@ public class CommandReader extends AsciiGranuleReader {
             String[] args = command.split("\\s"); //split command and args on white space
             Runtime run = Runtime.getRuntime();
             Process process = run.exec(args);
-            process.waitFor(); //wait till command completes //TODO: make cancelable
+            waitFor(process); //wait till command completes
             reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 
+        } catch (RequestCancelledException e) {
+            throw e;
         } catch (Exception e) {
             _logger.error("Failed to execute command: "+command, e);
             e.printStackTrace();
@@ -43,4 +55,26 @@ public class CommandReader extends AsciiGranuleReader {
         return reader;
     }
 
+    /**
+     * Wait for the process to complete.
+     * Kill it if the request is cancelled while we wait.
+     */
+    private void waitFor(Process process) throws InterruptedException {
+        while (true) {
+            try {
+                process.exitValue();
+                return; //done
+            } catch (IllegalThreadStateException e) {
+                //still running
+            }
+            
+            if (isCancelled()) {
+                process.destroy();
+                throw new RequestCancelledException("The request was cancelled.");
+            }
+            
+            Thread.sleep(100);
+        }
+    }
+
 }
@@ -30,17 +30,25 @@ package lasp.tss.iosp;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -48,6 +56,15 @@ import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import lasp.tss.TSSException;
+import lasp.tss.TSSProperties;
+import lasp.tss.constraint.Constraint;
+import lasp.tss.constraint.ConstraintExpression;
+import lasp.tss.constraint.FilterConstraint;
+import lasp.tss.constraint.ProjectionConstraint;
+import lasp.tss.constraint.SelectionConstraint;
+import lasp.tss.filter.BinningFilter;
+import lasp.tss.util.ConnectionPool;
+import lasp.tss.util.RequestTimer;
 
 import org.apache.commons.math.util.ResizableDoubleArray;
 import org.apache.log4j.Logger;
@@ -62,6 +79,13 @@ import ucar.nc2.Variable;
 /**
  * IOSP to read data from a relational database table.
  * Supports scalar data only, for now.
+ * Only the columns and rows that the request needs are read, see pushDownConstraints.
+ * Rows are fetched from the database "fetchSize" (or the "db.fetch.size" property) at a time.
+ * With the "stream" attribute (or the "db.stream" property) set to "true", only the times are
+ * held in memory. The other variables are read from an open cursor in chunks of fetchSize
+ * rows as they are asked for. This needs a unique time for each row so the time query and
+ * the data query line up. If the times are not unique, all the data are read as usual.
+ * The database can also do the binning for the BinningFilter, see aggregate.
  * 
  * @author Doug Lindholm
  */
@@ -70,6 +94,18 @@ public class DatabaseIOSP extends AbstractIOSP {
     // Initialize a logger.
     private static final Logger _logger = Logger.getLogger(DatabaseIOSP.class);
     
+    /**
+     * How the values of a column are read, resolved once for each query.
+     */
+    private static final int NUMBER = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int TEXT = 2;
+    
+    /**
+     * Number of rows that all queries for data have returned. See getRowsRead.
+     */
+    private static final AtomicLong _rowsRead = new AtomicLong();
+    
     /**
      * Data structure to contain array of doubles by variable name.
      */
@@ -79,19 +115,94 @@ public class DatabaseIOSP extends AbstractIOSP {
      * Data structure to contain array of Strings by variable name.
      */
     private LinkedHashMap<String,String[]> _textDataMap;
-
+    
     /**
      * Database connection.
      */
     private Connection _connection;
+    
+    /**
+     * Did the connection come from the ConnectionPool.
+     */
+    private boolean _pooled;
+    
+    /**
+     * Did we turn off auto-commit, which needs to be undone before the connection is given back.
+     */
+    private boolean _autoCommitOff;
+    
+    /**
+     * Statements we have made, to be closed with the connection.
+     */
+    private List<Statement> _statements = new ArrayList<Statement>();
+    
+    /**
+     * When streaming, the open cursor for the data query, its column kinds,
+     * and the index of the row that it will return next.
+     */
+    private ResultSet _cursor;
+    private int[] _cursorKinds;
+    private int _cursorRow;
+    
+    /**
+     * When streaming, the most recently read rows (starting at _chunkStart) by column name.
+     */
+    private int _chunkStart;
+    private int _chunkCount;
+    private Map<String,double[]> _chunkData;
+    private Map<String,String[]> _chunkTextData;
+    
+    /**
+     * Are the data read in chunks, null until we know. See isStreaming.
+     */
+    private Boolean _streaming;
+    
+    /**
+     * Were only the times read, without streaming, because the database may bin
+     * the data. The rest are read if they are needed after all. See readData.
+     */
+    private boolean _timesOnly;
+    
+    /**
+     * The number of rows from a count, -1 if they were not counted. See getLength.
+     */
+    private int _rowCount = -1;
+    /**
+     * Columns selected by the query, in document order.
+     * Variables that are not needed by the request are left out.
+     */
+    private List<String> _columns;
+    
+    /**
+     * Conditions from the request's selections to add to the query,
+     * with a "?" for each of the values in _parameters.
+     */
+    private List<String> _conditions = new ArrayList<String>();
+    private List<Object> _parameters = new ArrayList<Object>();
+    
+    /**
+     * The first constraint that could not be pushed down, null if there is none,
+     * and whether the conditions select exactly the rows that the constraints 
+     * before it do (not just all of them). See aggregate.
+     */
+    private Constraint _stoppedAt;
+    private boolean _exact;
+    
+    /**
+     * Have we been asked to bin the data. Only the first request can be served.
+     */
+    private boolean _aggregationAsked;
 
 
     /**
      * Get the number of time samples. If not yet defined, read the time samples.
+     * If the database may bin the data, just count the rows instead (see isBinnedInDatabase).
      */
     protected int getLength() {
         int length = super.getLength(); //see if it is defined in the ncml
         if (length < 0) {
+            if (_rowCount < 0 && _dataMap == null && isBinnedInDatabase()) countRows();
+            if (_rowCount >= 0) return _rowCount;
             double[] t = getTimes();
             if (t != null) length = t.length;
             else length = 0;
@@ -111,12 +222,33 @@ public class DatabaseIOSP extends AbstractIOSP {
 
     /**
      * Return all the data values for the given named variable.
+     * The length comes from the same query as the data so they always agree.
+     * When streaming, only the times are read here.
      * NOTE: This will read all the data for all variables
      * if it hasn't already been read.
      */
     protected double[] getValues(String varName) {
-        if (_dataMap == null) readAllData();
+        boolean isTime = varName.equals(getTimeVarName());
+        readData(varName);
         double[] values = _dataMap.get(varName);
+        
+        //Variables that the request doesn't need were not read.
+        if (values == null && isSkipped(varName)) {
+            values = new double[getLength()];
+            Arrays.fill(values, Double.NaN);
+            _dataMap.put(varName, values);
+        }
+        
+        if (values == null && ! isTime) {
+            if (isStreaming()) {
+                //When streaming, only the times are kept. Read the rest as one chunk.
+                int n = getLength();
+                if (n == 0) return new double[0];
+                loadChunk(0, n-1);
+                values = getChunkValues(varName);
+            }
+        }
+        
         return values;
     }
     
@@ -124,11 +256,51 @@ public class DatabaseIOSP extends AbstractIOSP {
      * Read all String values from a String variable.
      */
     protected String[] getStringValues(String varName) {
-        if (_textDataMap == null) readAllData();
+        boolean isTime = varName.equals(getTimeVarName());
+        readData(varName);
         String[] values = _textDataMap.get(varName);
+        
+        //Variables that the request doesn't need were not read.
+        if (values == null && isSkipped(varName)) {
+            values = new String[getLength()];
+            Arrays.fill(values, "");
+            _textDataMap.put(varName, values);
+        }
+        
+        if (values == null && ! isTime) {
+            if (isStreaming()) {
+                //When streaming, only the times are kept. Read the rest as one chunk.
+                int n = getLength();
+                if (n == 0) return new String[0];
+                loadChunk(0, n-1);
+                values = getChunkStringValues(varName);
+            }
+        }
+        
         return values;
     }
     
+    /**
+     * Was the column for the given variable left out of the query.
+     */
+    private boolean isSkipped(String varName) {
+        return _columns != null && ! _columns.contains(varName) && getColumnNames().contains(varName);
+    }
+    
+    /**
+     * Read what we need for the given variable if we don't have it yet.
+     * Only the times are read when streaming or when the database may bin the
+     * data (see isBinnedInDatabase). Otherwise, or if the other variables are
+     * needed after all, all the data are read.
+     */
+    private void readData(String varName) {
+        boolean isTime = varName.equals(getTimeVarName());
+        if (_dataMap != null && ! (_timesOnly && ! isTime && ! isSkipped(varName))) return;
+        
+        if (_dataMap == null && (isStreaming() || (isTime && isBinnedInDatabase()))) readTimes();
+        else readAllData();
+    }
+    
     /**
      * Read all the data for all the variable for all time samples
      * via a single sql query.
@@ -138,102 +310,537 @@ public class DatabaseIOSP extends AbstractIOSP {
         String query = buildDataQuery();
         
         try {
-            ResultSet rs = executeQuery(query);
-            ResultSetMetaData md = rs.getMetaData();
+            ResultSet rs = executeQuery(query, _parameters);
             
             //Construct the internal data containers
             _dataMap = new LinkedHashMap<String,double[]>();
             _textDataMap = new LinkedHashMap<String,String[]>();
+            _timesOnly = false;
             
-            //Make containers to collect data as we get it from the ResultSet
-            int ncol = md.getColumnCount();
-            ResizableDoubleArray[] dataArrays = new ResizableDoubleArray[ncol]; //tmp holder for numeric data
-            List<String>[] textDataLists = new List[ncol]; //tmp holder for text data
-            for (int i=0; i<ncol; i++) {
-                dataArrays[i] = new ResizableDoubleArray();
-                textDataLists[i] = new ArrayList<String>();
+            int nrow = readRows(rs, getColumnKinds(rs.getMetaData()), Integer.MAX_VALUE, _dataMap, _textDataMap);
+            rs.getStatement().close();
+            checkRowCount(nrow);
+            
+        } catch (SQLException e) {
+            String msg = "Unable to process database query: " + query;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        } 
+        
+    }
+    
+    /**
+     * Read just the time values, with the same conditions as the data query,
+     * for streaming or because the database may bin the data. When streaming,
+     * the other variables are read in chunks as needed. The rows of the data query 
+     * can only be matched to these by position, so if the times are not unique 
+     * all the data are read instead.
+     */
+    private void readTimes() {
+        String tname = getTimeVarName();
+        String query = buildQuery(Collections.singletonList(tname));
+        
+        try {
+            ResultSet rs = executeQuery(query, _parameters);
+            
+            _dataMap = new LinkedHashMap<String,double[]>();
+            _textDataMap = new LinkedHashMap<String,String[]>();
+            _timesOnly = ! isStreaming();
+            
+            int nrow = readRows(rs, getColumnKinds(rs.getMetaData()), Integer.MAX_VALUE, _dataMap, _textDataMap);
+            rs.getStatement().close();
+            checkRowCount(nrow);
+            
+        } catch (SQLException e) {
+            String msg = "Unable to process database query: " + query;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        } 
+        
+        if (isStreaming() && ! isUnique(_dataMap.get(tname), _textDataMap.get(tname))) {
+            _logger.warn("The times are not unique, reading all the data instead of streaming.");
+            _streaming = Boolean.FALSE;
+            readAllData();
+        }
+    }
+    
+    /**
+     * Count the rows that the data query would return, for the length
+     * when the database may bin the data so the rows might not be read at all.
+     */
+    private void countRows() {
+        StringBuilder sql = new StringBuilder("select count(*) from " + getTable());
+        appendConditions(sql);
+        String query = sql.toString();
+        
+        try {
+            ResultSet rs = executeQuery(query, _parameters);
+            rs.next();
+            _rowCount = rs.getInt(1);
+            _rowsRead.incrementAndGet();
+            rs.getStatement().close();
+        } catch (SQLException e) {
+            String msg = "Unable to process database query: " + query;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        } 
+    }
+    
+    /**
+     * Make sure that a query returned as many rows as were counted for the length.
+     */
+    private void checkRowCount(int nrow) {
+        if (_rowCount >= 0 && nrow != _rowCount) {
+            String msg = "The database returned " + nrow + " rows but " + _rowCount 
+                + " were counted. The table may have changed during the request.";
+            _logger.error(msg);
+            throw new TSSException(msg);
+        }
+    }
+    
+    /**
+     * Are the given sorted times (one of which is null) all different.
+     */
+    private static boolean isUnique(double[] times, String[] textTimes) {
+        if (times != null) {
+            for (int i=1; i<times.length; i++) {
+                if (Double.compare(times[i], times[i-1]) == 0) return false;
             }
-
-            //Define a Calendar so we get our times in the GMT time zone.
-            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        } else if (textTimes != null) {
+            for (int i=1; i<textTimes.length; i++) {
+                if (textTimes[i] != null && textTimes[i].equals(textTimes[i-1])) return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Make sure the times of the rows just read from the cursor, starting at the 
+     * given row, are the times that were read first. If rows were added or deleted
+     * in between, the data would no longer line up with the times.
+     */
+    private void checkChunkTimes(int row, int nrow, Map<String,double[]> data, Map<String,String[]> textData) {
+        String tname = getTimeVarName();
+        double[] times = _dataMap.get(tname);
+        String[] textTimes = _textDataMap.get(tname);
+        double[] chunkTimes = data.get(tname);
+        String[] chunkTextTimes = textData.get(tname);
+        
+        int ntime = (times != null) ? times.length : (textTimes != null ? textTimes.length : 0);
+        boolean ok = row + nrow <= ntime;
+        for (int i=0; ok && i<nrow; i++) {
+            if (chunkTimes != null) ok = times != null && Double.compare(chunkTimes[i], times[row+i]) == 0;
+            else if (chunkTextTimes != null) {
+                ok = textTimes != null && String.valueOf(chunkTextTimes[i]).equals(String.valueOf(textTimes[row+i]));
+            }
+        }
+        
+        if (! ok) {
+            String msg = "The database rows no longer match the times that were read for row " + row 
+                + ". The table may have changed during the request.";
+            _logger.error(msg);
+            throw new TSSException(msg);
+        }
+    }
+    
+    /**
+     * Read the rows from first to last (inclusive) into the current chunk, if they aren't 
+     * already there. At least fetchSize rows are read so the following requests
+     * can be served from the chunk. Rows after the current chunk are read from the 
+     * open cursor. Going back to earlier rows runs the query again.
+     */
+    private void loadChunk(int first, int last) {
+        if (_chunkData != null && first >= _chunkStart && last < _chunkStart + _chunkCount) return;
+        
+        String query = null;
+        try {
+            //Keep the rows we already have that are still needed.
+            Map<String,double[]> keepData = null;
+            Map<String,String[]> keepTextData = null;
+            int keepStart = 0;
             
-            //Read data from the result set into the ResizableDoubleArray-s which are already in the _dataArrayMap.
-            while (rs.next()) { 
-                for (int i=0; i<ncol; i++) {
-                    double d = Double.NaN;
-                    //Check type and read as appropriate
-                    //TODO: check for other variation of time and text types
-                    int typeID  = md.getColumnType(i+1); 
-                    
-                    if (typeID == java.sql.Types.TIMESTAMP) { //TODO: test for DATE and TIME types?
-                        //We need to convert timestamps to numerical values.
-                        Timestamp ts = rs.getTimestamp(i+1, cal);
-                        d = ts.getTime();
-                    } else if (typeID == java.sql.Types.VARCHAR || typeID == java.sql.Types.CHAR) {
-                        //Text column. Save strings apart from other data.
-                        //They will appear as NaNs in the numeric data values.
-                        String s = rs.getString(i+1);
-                        textDataLists[i].add(s);
-                    } else d = rs.getDouble(i+1);
-                    
-                    dataArrays[i].addElement(d);
-                }
+            if (_cursor != null && _chunkData != null && first >= _chunkStart && first < _cursorRow) {
+                keepStart = first;
+                keepData = _chunkData;
+                keepTextData = _chunkTextData;
+            } else if (_cursor == null || first < _cursorRow) {
+                //Start over.
+                if (_cursor != null) _cursor.getStatement().close();
+                query = buildDataQuery();
+                setAutoCommit(false); //some drivers (e.g. PostgreSQL) only use a cursor in a transaction
+                _cursor = executeQuery(query, _parameters);
+                _cursorKinds = getColumnKinds(_cursor.getMetaData());
+                _cursorRow = 0;
             }
             
-            //Extract the primitive arrays from the ResizableDoubleArray-s and put in data map.
-            //Segregate the text data. Don't bother to save "data" (NaNs) for String types.
-            for (int i=0; i<ncol; i++) {
-                String name = md.getColumnName(i+1);
-                int typeID  = md.getColumnType(i+1);
-                if (typeID == java.sql.Types.VARCHAR || typeID == java.sql.Types.CHAR) { 
-                    String[] text = new String[1];
-                    text = (String[]) textDataLists[i].toArray(text);
-                    _textDataMap.put(name, text);
-                } else {
-                    double[] data = dataArrays[i].getElements();
-                    _dataMap.put(name, data);
+            //Skip to the first row that we need.
+            while (_cursorRow < first && _cursor.next()) {
+                if (++_cursorRow % 1000 == 0) checkCancel();
+            }
+            
+            int start = keepData == null ? _cursorRow : keepStart;
+            int n = Math.max(last + 1 - _cursorRow, getFetchSize());
+            Map<String,double[]> data = new LinkedHashMap<String,double[]>();
+            Map<String,String[]> textData = new LinkedHashMap<String,String[]>();
+            int nrow = readRows(_cursor, _cursorKinds, n, data, textData);
+            checkChunkTimes(_cursorRow, nrow, data, textData);
+            
+            if (keepData != null) {
+                int from = keepStart - _chunkStart;
+                int count = _cursorRow - keepStart;
+                for (Map.Entry<String,double[]> entry : data.entrySet()) {
+                    double[] kept = keepData.get(entry.getKey());
+                    double[] d = new double[count + nrow];
+                    System.arraycopy(kept, from, d, 0, count);
+                    System.arraycopy(entry.getValue(), 0, d, count, nrow);
+                    entry.setValue(d);
+                }
+                for (Map.Entry<String,String[]> entry : textData.entrySet()) {
+                    String[] kept = keepTextData.get(entry.getKey());
+                    String[] s = new String[count + nrow];
+                    System.arraycopy(kept, from, s, 0, count);
+                    System.arraycopy(entry.getValue(), 0, s, count, nrow);
+                    entry.setValue(s);
                 }
             }
             
+            _cursorRow += nrow;
+            _chunkStart = start;
+            _chunkCount = _cursorRow - start;
+            _chunkData = data;
+            _chunkTextData = textData;
+            
         } catch (SQLException e) {
             String msg = "Unable to process database query: " + query;
             _logger.error(msg, e);
             throw new TSSException(msg, e);
-        } 
+        }
+        
+        if (last >= _chunkStart + _chunkCount) {
+            String msg = "The database returned fewer rows than there are times. The table may have changed during the request.";
+            _logger.error(msg);
+            throw new TSSException(msg);
+        }
+    }
+    
+    /**
+     * Return the values for the given variable from the current chunk.
+     */
+    private double[] getChunkValues(String varName) {
+        double[] values = _chunkData.get(varName);
+        
+        //Variables that the request doesn't need were not read.
+        if (values == null && isSkipped(varName)) {
+            values = new double[_chunkCount];
+            Arrays.fill(values, Double.NaN);
+            _chunkData.put(varName, values);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Return the String values for the given variable from the current chunk.
+     */
+    private String[] getChunkStringValues(String varName) {
+        String[] values = _chunkTextData.get(varName);
+        
+        //Variables that the request doesn't need were not read.
+        if (values == null && isSkipped(varName)) {
+            values = new String[_chunkCount];
+            Arrays.fill(values, "");
+            _chunkTextData.put(varName, values);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Work out how to read each column of the ResultSet.
+     */
+    private int[] getColumnKinds(ResultSetMetaData md) throws SQLException {
+        int ncol = md.getColumnCount();
+        int[] kinds = new int[ncol];
+        for (int i=0; i<ncol; i++) {
+            //TODO: check for other variation of time and text types
+            int typeID = md.getColumnType(i+1);
+            if (typeID == Types.TIMESTAMP) kinds[i] = TIMESTAMP; //TODO: test for DATE and TIME types?
+            else if (typeID == Types.VARCHAR || typeID == Types.CHAR) kinds[i] = TEXT;
+            else kinds[i] = NUMBER;
+        }
+        return kinds;
+    }
+    
+    /**
+     * Read up to max rows from the ResultSet into the given maps by column name.
+     * Text columns go into textData, the rest into data.
+     * Return the number of rows read.
+     */
+    private int readRows(ResultSet rs, int[] kinds, int max, Map<String,double[]> data, 
+            Map<String,String[]> textData) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        
+        //Make containers to collect data as we get it from the ResultSet
+        int ncol = kinds.length;
+        ResizableDoubleArray[] dataArrays = new ResizableDoubleArray[ncol]; //tmp holder for numeric data
+        List<String>[] textDataLists = new List[ncol]; //tmp holder for text data
+        for (int i=0; i<ncol; i++) {
+            if (kinds[i] == TEXT) textDataLists[i] = new ArrayList<String>();
+            else dataArrays[i] = new ResizableDoubleArray();
+        }
+
+        //Define a Calendar so we get our times in the GMT time zone.
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        
+        int nrow = 0;
+        while (nrow < max && rs.next()) { 
+            //Stop if the request has been cancelled.
+            if (++nrow % 1000 == 0) checkCancel();
+            
+            for (int i=0; i<ncol; i++) {
+                switch (kinds[i]) {
+                    case TIMESTAMP:
+                        //We need to convert timestamps to numerical values.
+                        Timestamp ts = rs.getTimestamp(i+1, cal);
+                        dataArrays[i].addElement(ts == null ? Double.NaN : ts.getTime());
+                        break;
+                    case TEXT:
+                        //Text column. Save strings apart from other data.
+                        textDataLists[i].add(rs.getString(i+1));
+                        break;
+                    default:
+                        //NULL would be read as 0.
+                        double d = rs.getDouble(i+1);
+                        dataArrays[i].addElement(rs.wasNull() ? Double.NaN : d);
+                }
+            }
+        }
         
+        //Extract the primitive arrays and put them in the data maps.
+        for (int i=0; i<ncol; i++) {
+            String name = md.getColumnName(i+1);
+            if (kinds[i] == TEXT) {
+                String[] text = new String[textDataLists[i].size()];
+                textData.put(name, textDataLists[i].toArray(text));
+            } else {
+                data.put(name, dataArrays[i].getElements());
+            }
+        }
+        
+        _rowsRead.addAndGet(nrow);
+        return nrow;
     }
 
     /**
      * Create the SQL query string to get the data from the database.
      */
     protected String buildDataQuery() {
+        if (_columns == null) pushDownConstraints();
+        return buildQuery(_columns);
+    }
+    
+    /**
+     * Create the SQL query string to get the given columns for the rows that the request needs.
+     */
+    private String buildQuery(List<String> columns) {
+        if (_columns == null) pushDownConstraints();
+        
         StringBuilder sql = new StringBuilder("select");
         String delim = " ";
-        for (String vname : getColumnNames()) {
+        for (String vname : columns) {
             sql.append(delim).append(vname);
             delim = ", ";
         }
         
-        Element ncElement = getNetcdfElement();
+        sql.append(" from " + getTable());
+        appendConditions(sql);
+        
+        //Order by time.
+        String tname = getTimeVarName();
+        sql.append(" order by "+tname+" ASC");
         
-        String table = ncElement.getAttributeValue("dbTable");
+        return sql.toString();
+    }
+
+    /**
+     * Add the where clause with the dataset's predicate and the conditions from the request.
+     * The values for the conditions are in _parameters.
+     */
+    private void appendConditions(StringBuilder sql) {
+        List<String> conditions = new ArrayList<String>();
+        String predicate = getNetcdfElement().getAttributeValue("predicate");
+        if (predicate != null) {
+            if (_conditions.isEmpty()) conditions.add(predicate);
+            else conditions.add("(" + predicate + ")");
+        }
+        conditions.addAll(_conditions);
+        String delim = " where ";
+        for (String condition : conditions) {
+            sql.append(delim).append(condition);
+            delim = " and ";
+        }
+    }
+    
+    /**
+     * Return the name of the database table.
+     */
+    private String getTable() {
+        String table = getNetcdfElement().getAttributeValue("dbTable");
         if (table == null) {
             String msg = "No database table defined. Must set 'dbTable' attribute.";
             _logger.error(msg);
             throw new TSSException(msg);
         }
-        sql.append(" from " + table);
+        return table;
+    }
+    
+    /**
+     * The time samples depend on the query if any of its selections became conditions.
+     */
+    protected boolean isQueryDependent() {
+        if (_columns == null) pushDownConstraints();
+        return ! _conditions.isEmpty();
+    }
+    
+    /**
+     * Work out which columns and rows the request needs so the database
+     * doesn't send us data that the constraints would throw away:
+     * - only the columns for the projected variables, time, and variables in selections
+     * - comparisons (>, >=, <, <=) of numeric variables and time selections
+     *   as conditions with the values as bind parameters
+     * Only the selections before any hyperslab, filter or nearest neighbor ("~")
+     * selection are pushed down since those depend on the samples before them.
+     * The constraints are still applied to what we read, so a condition only needs
+     * to keep every row that the selection would. Ranges are made inclusive so
+     * the database's comparisons can't drop a sample at the boundary.
+     * A dataset can turn this off with the "pushdown" attribute set to "false".
+     */
+    private void pushDownConstraints() {
+        _columns = new ArrayList<String>(getColumnNames());
+        _conditions.clear();
+        _parameters.clear();
+        _stoppedAt = null;
+        _exact = false;
         
-        String predicate = ncElement.getAttributeValue("predicate");
-        if (predicate != null) sql.append(" where " + predicate);
+        if ("false".equals(getProperty("pushdown"))) return;
         
-        //Order by time.
-        String tname = getTimeVarName();
-        sql.append(" order by "+tname+" ASC");
+        List<Constraint> constraints;
+        try {
+            constraints = new ConstraintExpression(getProperty("query")).getConstraints();
+        } catch (Exception e) {
+            return; //let the request fail the usual way
+        }
+        _exact = true;
         
-        return sql.toString();
+        //Map the variable names used in the request to their NcML elements.
+        Map<String,Element> elements = new HashMap<String,Element>();
+        Element ncElement = getNetcdfElement();
+        List<Element> vars = ncElement.getChildren("variable", ncElement.getNamespace()); 
+        for (Element element : vars) elements.put(element.getAttributeValue("name"), element);
+        
+        Set<String> needed = new HashSet<String>();
+        needed.add(getTimeVarName());
+        boolean all = true; //need all the columns
+        boolean push = true; //can push selections down
+        
+        for (Constraint constraint : constraints) {
+            if (constraint instanceof ProjectionConstraint) {
+                List<String> names = ((ProjectionConstraint) constraint).getFieldProjections();
+                all = names.isEmpty();
+                for (String name : names) {
+                    Element element = elements.get(name);
+                    if (element == null) all = true; //not a simple variable, play it safe
+                    else needed.add(getVariableName(element));
+                }
+            } else if (constraint instanceof SelectionConstraint) {
+                SelectionConstraint sc = (SelectionConstraint) constraint;
+                Element element = elements.get(sc.getVariableName());
+                if (element != null) needed.add(getVariableName(element));
+                if (! push) continue;
+                if (sc.getOperator().equals("~")) {
+                    push = false;
+                    _stoppedAt = constraint;
+                } else if (element == null || ! pushDown(sc, element)) {
+                    _exact = false; //the selection will drop rows that we read
+                }
+            } else if (push) {
+                push = false; //hyperslab or filter
+                _stoppedAt = constraint;
+            }
+        }
+        
+        if (! all) _columns.retainAll(needed);
     }
-
+    
+    /**
+     * Add the condition for the given selection on the variable defined by
+     * the given element, if it can be done.
+     * Return true if the condition selects exactly the rows that the selection would.
+     */
+    private boolean pushDown(SelectionConstraint selection, Element element) {
+        String op = selection.getOperator();
+        String column = getVariableName(element);
+        boolean isTime = "time".equals(element.getAttributeValue("name"));
+        
+        boolean lower = op.equals(">") || op.equals(">=");
+        boolean upper = op.equals("<") || op.equals("<=");
+        boolean equal = op.equals("=") && isTime; //don't compare other doubles for equality
+        if (! (lower || upper || equal)) return false;
+        
+        double value = Double.NaN;
+        if (isTime) value = parseTime(selection.getValue());
+        else if (! "String".equalsIgnoreCase(element.getAttributeValue("type"))) {
+            try {
+                value = Double.parseDouble(selection.getValue());
+            } catch (NumberFormatException e) {} //not a number, leave it for the filter
+        }
+        if (Double.isNaN(value)) return false;
+        
+        //Strict comparisons were made inclusive.
+        boolean exact = op.equals(">=") || op.equals("<=") || equal;
+        
+        //Timestamps are read as Java time (milliseconds since 1970).
+        Object min = value;
+        Object max = value;
+        if (isTime) {
+            Integer type = getColumnType(column);
+            if (type == null) return false; //can't tell how to compare
+            if (type == Types.TIMESTAMP) {
+                min = new Timestamp((long) Math.floor(value));
+                max = new Timestamp((long) Math.ceil(value));
+                exact = false;
+            }
+        }
+        
+        if (lower || equal) {
+            _conditions.add(column + " >= ?");
+            _parameters.add(min);
+        }
+        if (upper || equal) {
+            _conditions.add(column + " <= ?");
+            _parameters.add(max);
+        }
+        
+        return exact;
+    }
+    
+    /**
+     * Return the SQL type (java.sql.Types) of the given column.
+     * Null if it can't be determined.
+     */
+    private Integer getColumnType(String column) {
+        String query = "select " + column + " from " + getTable() + " where 1=0";
+        try {
+            ResultSet rs = executeQuery(query);
+            int type = rs.getMetaData().getColumnType(1);
+            rs.getStatement().close();
+            return type;
+        } catch (Exception e) {
+            _logger.warn("Unable to get the type of column: " + column, e);
+            return null;
+        }
+    }
+    
     /**
      * Return the database table column names to use for the sql query.
      * Same as variable names, i.e. every variable in the ncml maps to a column in the database table.
@@ -261,6 +868,7 @@ public class DatabaseIOSP extends AbstractIOSP {
     /**
      * Return the database connection. 
      * Each dataset request will get its own Connection.
+     * Connections that we make ourselves come from the ConnectionPool.
      */
     private Connection getConnection() {
         if (_connection != null) return _connection;
@@ -290,8 +898,9 @@ public class DatabaseIOSP extends AbstractIOSP {
         String jdbcDriver = ncElement.getAttributeValue("jdbcDriver");
         
         try {
-            Class.forName(jdbcDriver);
-            _connection = DriverManager.getConnection(connectionString, dbUser, dbPassword);
+            if (jdbcDriver != null) Class.forName(jdbcDriver);
+            _connection = ConnectionPool.getConnection(connectionString, dbUser, dbPassword);
+            _pooled = true;
         } catch (Exception e) {
             String msg = "Failed to get database connection: " + connectionString;
             _logger.error(msg, e);
@@ -300,16 +909,74 @@ public class DatabaseIOSP extends AbstractIOSP {
     
         return _connection;
     }
+    
+    /**
+     * Set the auto-commit mode of the connection, remembering to undo it in close.
+     */
+    private void setAutoCommit(boolean autoCommit) throws SQLException {
+        Connection connection = getConnection();
+        if (connection.getAutoCommit() == autoCommit) return;
+        connection.setAutoCommit(autoCommit);
+        _autoCommitOff = ! autoCommit;
+    }
+    
+    /**
+     * Return the number of rows to get from the database at a time.
+     */
+    private int getFetchSize() {
+        String s = getProperty("fetchSize");
+        if (s == null) s = TSSProperties.getProperty("db.fetch.size", "1000");
+        try {
+            return Math.max(1, Integer.parseInt(s.trim()));
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid fetch size: " + s + ", using 1000.");
+            return 1000;
+        }
+    }
+    
+    /**
+     * Should the data be read in chunks as needed instead of all at once.
+     * Not if the times turned out not to be unique, see readTimes.
+     */
+    private boolean isStreaming() {
+        if (_streaming == null) {
+            String s = getProperty("stream");
+            if (s == null) s = TSSProperties.getProperty("db.stream", "false");
+            _streaming = "true".equalsIgnoreCase(s.trim());
+        }
+        return _streaming;
+    }
         
     /**
      * Execute the sql select and return the ResultSet.
      */
     protected ResultSet executeQuery(String query) {
+        return executeQuery(query, new ArrayList<Object>());
+    }
+        
+    /**
+     * Execute the sql select with the given values for its parameters
+     * and return the ResultSet.
+     */
+    protected ResultSet executeQuery(String query, List<Object> parameters) {
         ResultSet rs = null;
         
         try {
-            Statement stmt = getConnection().createStatement();
-            rs = stmt.executeQuery(query);
+            _logger.debug("Executing query: " + query + " with parameters: " + parameters);
+            PreparedStatement stmt = getConnection().prepareStatement(query);
+            _statements.add(stmt);
+            stmt.setFetchSize(getFetchSize());
+            
+            //Define a Calendar so we give times in the GMT time zone.
+            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            for (int i=0; i<parameters.size(); i++) {
+                Object value = parameters.get(i);
+                if (value instanceof Timestamp) stmt.setTimestamp(i+1, (Timestamp) value, cal);
+                else if (value instanceof Double) stmt.setDouble(i+1, (Double) value);
+                else stmt.setObject(i+1, value);
+            }
+            
+            rs = stmt.executeQuery();
         } catch (SQLException e) {
             String msg = "Failed to execute query: " + query;
             _logger.error(msg, e);
@@ -320,6 +987,191 @@ public class DatabaseIOSP extends AbstractIOSP {
     }
 
 
+    /**
+     * Handle a BinAggregation by binning the data in the database, see aggregate.
+     */
+    public Object sendIospMessage(Object message) {
+        if (message instanceof BinAggregation) return aggregate((BinAggregation) message);
+        return super.sendIospMessage(message);
+    }
+    
+    /**
+     * Might the database bin the data for the request (see aggregate)?
+     * The binning filter must be the first constraint that wasn't pushed down and
+     * the constraints before it must have become conditions that select exactly 
+     * the rows that they would.
+     */
+    private boolean isBinnedInDatabase() {
+        if (_columns == null) pushDownConstraints();
+        if (! _exact || ! (_stoppedAt instanceof FilterConstraint)) return false;
+        String filterName = ((FilterConstraint) _stoppedAt).getFilterName();
+        String filterClass = TSSProperties.getProperty("filter." + filterName + ".class");
+        return BinningFilter.class.getName().equals(filterClass);
+    }
+    
+    /**
+     * Bin the values of a variable by time in the database with a "group by" query,
+     * the same way the BinningFilter does. The rows have only been counted for the
+     * length of the time series, or just their times read for the selections
+     * before the filter. The rest are only read if this returns null.
+     * Return the binned data as from BinningFilter.bin, or null if it can't be done here:
+     * - isBinnedInDatabase must be true.
+     * - The time and variable must be numeric columns that aren't scaled and
+     *   have no missing or fill value.
+     * As in the filter, a NULL value makes the mean of its bin NaN but is left out
+     * of the min and max. Means can differ from the filter's by rounding.
+     * Only the first request is served since the data have been binned after that.
+     */
+    private double[][] aggregate(BinAggregation agg) {
+        if (_aggregationAsked) return null;
+        _aggregationAsked = true;
+        
+        if (! isBinnedInDatabase()) return null;
+        
+        double width = agg.getBinWidth();
+        if (! (width > 0)) return null;
+        
+        //Find the column for the variable.
+        Element element = null;
+        Element ncElement = getNetcdfElement();
+        List<Element> vars = ncElement.getChildren("variable", ncElement.getNamespace()); 
+        for (Element e : vars) {
+            if (agg.getVariableName().equals(e.getAttributeValue("name"))) element = e;
+        }
+        if (element == null || isScaled(element)) return null;
+        
+        String tname = getTimeVarName();
+        String vname = getVariableName(element);
+        if (! (isNumeric(getColumnType(tname)) && isNumeric(getColumnType(vname)))) return null;
+        
+        String query = null;
+        RequestTimer.enterPhase(RequestTimer.READ);
+        try {
+            //Use the first and last times if the range is not given.
+            double min = agg.getMin();
+            double max = agg.getMax();
+            if (Double.isNaN(min) || Double.isNaN(max)) {
+                StringBuilder sql = new StringBuilder("select min(" + tname + "), max(" + tname + ") from " + getTable());
+                appendConditions(sql);
+                query = sql.toString();
+                ResultSet rs = executeQuery(query, _parameters);
+                boolean empty = ! rs.next() || rs.getObject(1) == null;
+                _rowsRead.incrementAndGet();
+                if (! empty) {
+                    if (Double.isNaN(min)) min = rs.getDouble(1);
+                    if (Double.isNaN(max)) max = rs.getDouble(2);
+                }
+                rs.getStatement().close();
+                if (empty) return null; //let the filter deal with no data
+            }
+            
+            int nbin = BinningFilter.getBinCount(width, min, max);
+            if (nbin <= 0) return null;
+            
+            //Compute the bin index in a sub-query so we can group by it.
+            //Average as doubles since avg of an integer column is truncated by some databases (e.g. Derby, H2).
+            //The NULLs that avg leaves out are counted so the mean can be NaN, as it is for NaNs in the filter.
+            StringBuilder sql = new StringBuilder();
+            sql.append("select tss_bin, avg(cast(" + vname + " as double precision)), avg(cast(" + tname + " as double precision))");
+            sql.append(", min(" + vname + "), max(" + vname + "), count(*), count(" + vname + ")");
+            sql.append(" from (select floor((" + tname + " - ?) / ?) as tss_bin, " + tname + ", " + vname);
+            sql.append(" from " + getTable());
+            appendConditions(sql);
+            sql.append(") binned where tss_bin >= 0 and tss_bin < ? group by tss_bin");
+            query = sql.toString();
+            
+            List<Object> parameters = new ArrayList<Object>();
+            parameters.add(min);
+            parameters.add(width);
+            parameters.addAll(_parameters);
+            parameters.add((double) nbin);
+            
+            //Start with empty bins, as BinningFilter.bin makes them.
+            double[][] data = new double[6][nbin];
+            for (int ibin=0; ibin<nbin; ibin++) {
+                data[0][ibin] = min + width * (0.5 + ibin); //bin center
+                data[1][ibin] = Double.NaN;
+                data[2][ibin] = Double.NaN;
+                data[3][ibin] = Double.NaN;
+                data[4][ibin] = Double.NaN;
+            }
+            
+            ResultSet rs = executeQuery(query, parameters);
+            while (rs.next()) {
+                _rowsRead.incrementAndGet();
+                int ibin = (int) rs.getDouble(1);
+                if (ibin < 0 || ibin >= nbin) continue;
+                data[1][ibin] = getDouble(rs, 2); //mean value
+                data[2][ibin] = getDouble(rs, 3); //mean time
+                data[3][ibin] = getDouble(rs, 4); //min
+                data[4][ibin] = getDouble(rs, 5); //max
+                data[5][ibin] = rs.getDouble(6); //count
+                if (rs.getDouble(7) < data[5][ibin]) data[1][ibin] = Double.NaN; //some were NULL
+            }
+            rs.getStatement().close();
+            
+            return data;
+            
+        } catch (Exception e) {
+            //Fall back to binning the data ourselves.
+            _logger.warn("Unable to bin the data in the database: " + query, e);
+            return null;
+        } finally {
+            RequestTimer.exitPhase();
+        }
+    }
+    
+    /**
+     * Return the value of the given column of the current row, NaN if it is NULL.
+     */
+    private static double getDouble(ResultSet rs, int column) throws SQLException {
+        double d = rs.getDouble(column);
+        return rs.wasNull() ? Double.NaN : d;
+    }
+    
+    /**
+     * Does the variable defined by the given element have a scale_factor or add_offset,
+     * or a missing_value or _FillValue that the database wouldn't leave out of the bins.
+     */
+    private boolean isScaled(Element element) {
+        List<Element> atts = element.getChildren("attribute", element.getNamespace());
+        for (Element att : atts) {
+            String name = att.getAttributeValue("name");
+            if ("scale_factor".equals(name) || "add_offset".equals(name)) return true;
+            if ("missing_value".equals(name) || "_FillValue".equals(name)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Is the given SQL type (java.sql.Types) a number.
+     */
+    private static boolean isNumeric(Integer type) {
+        if (type == null) return false;
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Return the number of rows that queries for data have returned,
+     * counting each row of a count, range or "group by" query as one.
+     */
+    public static long getRowsRead() {
+        return _rowsRead.get();
+    }
+    
     /**
      * This is what NetCDF will call. Make an Array of data of that variable for the given section.
      */
@@ -354,19 +1206,28 @@ public class DatabaseIOSP extends AbstractIOSP {
         String[] s = null;
         double[] data = null; 
         String[] sdata = null;
-        if (type.isString()) {
+        int base = 0; //index of the first value in the backing array
+        if (isStreaming() && ! vname.equals(getTimeVarName())) {
+            //Get the rows from the chunk that has them.
+            if (ntim > 0) {
+                loadChunk(offset, offset + (ntim-1)*stride);
+                base = _chunkStart * n2orig;
+                if (type.isString()) s = getChunkStringValues(vname);
+                else d = getChunkValues(vname);
+            }
+        } else if (type.isString()) {
             s = getStringValues(vname);
-            sdata = new String[length];
         } else {
             d = getValues(vname); //original complete set of values
-            data = new double[length];
         }
+        if (type.isString()) sdata = new String[length];
+        else data = new double[length];
 
         int j=0;
         for (int itim=0; itim<ntim; itim++) {
             for (int i2=0; i2<n2; i2++) {
                 //calculate index into backing array
-                int index = offset*n2orig + itim*n2orig*stride + o2 + i2*s2;
+                int index = offset*n2orig + itim*n2orig*stride + o2 + i2*s2 - base;
                 if (sdata != null) sdata[j++] = s[index]; //String
                 else data[j++] = d[index];
             }
@@ -382,13 +1243,32 @@ public class DatabaseIOSP extends AbstractIOSP {
 
     /**
      * Close the database connection if NetCDF shuts us down.
+     * Connections from the ConnectionPool are given back.
      */
     public void close() throws IOException {
-        try {
-            _connection.close();
-        } catch (SQLException e) {
-            String msg = "Failed to close database connection.";
-            _logger.warn(msg, e);
+        if (_connection != null) {
+            for (Statement stmt : _statements) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    _logger.warn("Failed to close database statement.", e);
+                }
+            }
+            _statements.clear();
+            _cursor = null;
+            
+            try {
+                if (_autoCommitOff) {
+                    _connection.rollback();
+                    _connection.setAutoCommit(true);
+                }
+                if (_pooled) ConnectionPool.release(_connection);
+                else _connection.close();
+            } catch (SQLException e) {
+                String msg = "Failed to close database connection.";
+                _logger.warn(msg, e);
+            }
+            _connection = null;
         }
         super.close();  //close the /dev/null that ncml gave us
     }
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lasp.tss.RequestCancelledException;
+import lasp.tss.TSSProperties;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.ServerUtils;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.jdom.output.XMLOutputter;
+
+import ucar.ma2.Array;
+import ucar.ma2.IndexIterator;
+
+/**
+ * Process-wide cache of the data read by GranuleIOSP readers so an unchanged
+ * granule need not be read and parsed for every request.
+ * Entries are keyed by the reader class, the granule file with its modification
+ * time and size, and the NcML that describes how to read it.
+ * The least recently used granules are evicted to keep the total size of the
+ * data under the "granule.cache.size" property (megabytes, default 100).
+ * Zero disables the cache.
+ *
+ * Concurrent requests for a granule that is not cached wait for a single read.
+ */
+public class GranuleCache {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(GranuleCache.class);
+
+    public static final long DEFAULT_SIZE = 100;
+
+    /**
+     * Cached granules in access order, least recently used first.
+     * Guarded by synchronizing on the map.
+     */
+    private static LinkedHashMap<String, Granule> _cache = new LinkedHashMap<String, Granule>(16, 0.75f, true);
+
+    /**
+     * Total size (bytes) of the cached granules. Guarded by _cache.
+     */
+    private static long _size;
+
+    /**
+     * Granules being read, so other requests can wait for them.
+     */
+    private static ConcurrentMap<String, FutureTask<Granule>> _loading = new ConcurrentHashMap<String, FutureTask<Granule>>();
+
+    private static AtomicLong _hits = new AtomicLong();
+    private static AtomicLong _misses = new AtomicLong();
+    private static AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * The data read from one granule: the length of the time dimension
+     * and an Array for each variable, by full name.
+     */
+    public static class Granule {
+        private int _length;
+        private Map<String, Array> _arrays = new HashMap<String, Array>();
+        private long _size;
+
+        public Granule(int length) {
+            _length = length;
+        }
+
+        public void setArray(String name, Array array) {
+            _arrays.put(name, array);
+            _size += getSize(array);
+        }
+
+        public Array getArray(String name) {
+            return _arrays.get(name);
+        }
+
+        public int getLength() {
+            return _length;
+        }
+
+        /**
+         * Return the approximate memory used by the data (bytes).
+         */
+        public long getSize() {
+            return _size;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the key for the given granule file read by the given reader class
+     * as described by the given "netcdf" element. The "query" attribute that
+     * carries the request is ignored. Return null if the cache is disabled or
+     * the granule is not a local file.
+     */
+    public static String makeKey(Class<?> readerClass, String url, Element ncel) {
+        if (getMaxSize() <= 0 || url == null) return null;
+
+        File file = getFile(url);
+        if (file == null || ! file.isFile()) return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(readerClass.getName()).append('|');
+        sb.append(file.getAbsolutePath()).append('|');
+        sb.append(file.lastModified()).append('|');
+        sb.append(file.length()).append('|');
+        sb.append(digest(ncel));
+
+        return sb.toString();
+    }
+
+    /**
+     * Return the local File for the given URL or path, null if it is not a local file.
+     */
+    private static File getFile(String url) {
+        File file = null;
+
+        if (url.startsWith("file:")) file = new File(url.substring(5));
+        else if (url.indexOf(':') < 0) file = new File(url);
+
+        return file;
+    }
+
+    /**
+     * Return an MD5 digest (hex) of the NcML without the "query" attribute.
+     */
+    static String digest(Element ncel) {
+        Element el = (Element) ncel.clone();
+        el.removeAttribute("query");
+        String xml = new XMLOutputter().outputString(el);
+        return ServerUtils.digest(xml, "MD5");
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the granule with the given key. If it is not cached, get it from the
+     * loader (or wait for another request that is already loading it) and cache it.
+     * The Arrays are shared: copy them before handing them out.
+     */
+    public static Granule get(String key, Callable<Granule> loader) throws Exception {
+        Granule granule;
+        synchronized (_cache) {
+            granule = _cache.get(key);
+        }
+        if (granule != null) {
+            _hits.incrementAndGet();
+            return granule;
+        }
+
+        FutureTask<Granule> task = new FutureTask<Granule>(loader);
+        FutureTask<Granule> loading;
+        synchronized (_loading) {
+            loading = _loading.get(key);
+            if (loading == null) {
+                //Check again, it may have been cached since we looked.
+                synchronized (_cache) {
+                    granule = _cache.get(key);
+                }
+                if (granule != null) {
+                    _hits.incrementAndGet();
+                    return granule;
+                }
+                _loading.put(key, task);
+            }
+        }
+
+        if (loading != null) {
+            //Another request is reading this granule, wait for it.
+            _hits.incrementAndGet();
+            try {
+                return getResult(loading);
+            } catch (RequestCancelledException e) {
+                //The other request gave up. That doesn't mean we should, try again.
+                RequestCancelTask.checkCurrent();
+                _loading.remove(key, loading);
+                return get(key, loader);
+            }
+        }
+
+        _misses.incrementAndGet();
+        try {
+            task.run();
+            granule = getResult(task);
+            put(key, granule);
+        } finally {
+            _loading.remove(key, task);
+        }
+
+        return granule;
+    }
+
+    private static Granule getResult(FutureTask<Granule> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception) t;
+            throw e;
+        }
+    }
+
+    /**
+     * Add the granule to the cache, evicting the least recently used
+     * granules to make room for it.
+     */
+    private static void put(String key, Granule granule) {
+        long max = getMaxSize();
+        long size = granule.getSize();
+        if (size > max) {
+            _logger.debug("Granule is too big to cache (" + size + " bytes): " + key);
+            return;
+        }
+
+        synchronized (_cache) {
+            Granule old = _cache.put(key, granule);
+            if (old != null) _size -= old.getSize();
+            _size += size;
+
+            Iterator<Map.Entry<String, Granule>> it = _cache.entrySet().iterator();
+            while (_size > max && it.hasNext()) {
+                Map.Entry<String, Granule> entry = it.next();
+                if (entry.getKey().equals(key)) continue;
+                _size -= entry.getValue().getSize();
+                it.remove();
+                _evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return the maximum size of the cache in bytes.
+     */
+    private static long getMaxSize() {
+        long mb = DEFAULT_SIZE;
+        try {
+            String s = TSSProperties.getProperty("granule.cache.size");
+            if (s != null) mb = Long.parseLong(s.trim());
+        } catch (Exception e) {
+            _logger.warn("Invalid granule.cache.size, using default.", e);
+        }
+        return mb * 1024 * 1024;
+    }
+
+    /**
+     * Return the approximate memory used by the Array (bytes).
+     */
+    private static long getSize(Array array) {
+        if (array == null) return 0;
+        long n = array.getSize();
+        if (array.getElementType() != String.class) return n * array.getDataType().getSize();
+
+        long size = 0;
+        IndexIterator it = array.getIndexIterator();
+        while (it.hasNext()) {
+            Object o = it.getObjectNext();
+            size += 40;
+            if (o != null) size += 2 * o.toString().length();
+        }
+        return size;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Drop all cached granules.
+     */
+    public static void clear() {
+        synchronized (_cache) {
+            _cache.clear();
+            _size = 0;
+        }
+    }
+
+    /**
+     * Return the number of granules in the cache.
+     */
+    public static int getCount() {
+        synchronized (_cache) {
+            return _cache.size();
+        }
+    }
+
+    /**
+     * Return the total size of the cached granules (bytes).
+     */
+    public static long getSize() {
+        synchronized (_cache) {
+            return _size;
+        }
+    }
+
+    /**
+     * Return the number of requests served from the cache, including those
+     * that waited for another request to read the granule.
+     */
+    public static long getHitCount() {
+        return _hits.get();
+    }
+
+    /**
+     * Return the number of requests that had to read the granule.
+     */
+    public static long getMissCount() {
+        return _misses.get();
+    }
+
+    /**
+     * Return the number of granules evicted to make room for others.
+     */
+    public static long getEvictionCount() {
+        return _evictions.get();
+    }
+}
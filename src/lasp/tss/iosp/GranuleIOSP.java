@@ -6,6 +6,10 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.RequestTimer;
 
 import org.apache.log4j.Logger;
 import org.jdom.Element;
@@ -40,6 +44,7 @@ public abstract class GranuleIOSP extends AbstractIOServiceProvider {
     
     private RandomAccessFile _raFile;
     private NetcdfFile _ncFile;
+    private CancelTask _cancelTask;
     
     /**
      * Number of time samples defined in the time Dimension.
@@ -73,14 +78,9 @@ public abstract class GranuleIOSP extends AbstractIOServiceProvider {
     public void open(RandomAccessFile raf, NetcdfFile ncfile, CancelTask cancelTask) throws IOException {
         _raFile = raf;
         _ncFile = ncfile;
+        _cancelTask = cancelTask;
         
-        /*
-         * TODO: try caching the dataMap?
-         * need to worry about expiration...
-         * Does FileCache persist between requests?
-         */
-        
-        
+        RequestTimer.enterPhase(RequestTimer.OPEN);
         try {
             init();
             
@@ -89,22 +89,24 @@ public abstract class GranuleIOSP extends AbstractIOServiceProvider {
             makeVariables(null, ncElement);
             makeGroups(null, ncElement);
             
-            readAllData();
+            //Read the granule, or use the data from the shared cache if it hasn't changed.
+            GranuleCache.Granule granule;
+            String key = isCacheable() ? GranuleCache.makeKey(getClass(), getURL(), ncElement) : null;
+            if (key == null) granule = readGranule();
+            else granule = GranuleCache.get(key, new Callable<GranuleCache.Granule>() {
+                public GranuleCache.Granule call() {
+                    return readGranule();
+                }
+            });
             
-            //Set the length of the time dimension.
-            Dimension tdim = _ncFile.getRootGroup().findDimension("time");
-            int n = getLength();
-            tdim.setLength(n);
-
-            //Tell each Variable what it's shape is.
-            //This has to be done after the Dimension lengths have been set.
-            //Then put the data in the Variable cache.
+            setShapes(granule.getLength());
+
+            //Put the data in the Variable cache.
+            //Cached Arrays are shared so each request gets a copy.
             List<Variable> vars = getVariables();
             for (Variable var : vars) {
-                String shape = getVariableXmlAttribute(var.getShortName(), "shape");
-                var.setDimensions(shape);
-
-                Array array = getData(var);
+                Array array = granule.getArray(var.getFullName());
+                if (key != null && array != null) array = array.copy();
                 var.setCachedData(array, false);
             }
             
@@ -116,11 +118,75 @@ public abstract class GranuleIOSP extends AbstractIOServiceProvider {
             String msg = "IOSP open failed.";
             _logger.error(msg, t);
             throw new IOException(msg, t);
+        } finally {
+            RequestTimer.exitPhase();
+        }
+        
+    }
+    
+
+    /**
+     * Read all the data from the granule.
+     */
+    private GranuleCache.Granule readGranule() {
+        RequestTimer.enterPhase(RequestTimer.READ);
+        try {
+            readAllData();
+        } finally {
+            RequestTimer.exitPhase();
+        }
+        
+        int n = getLength();
+        setShapes(n);
+        
+        GranuleCache.Granule granule = new GranuleCache.Granule(n);
+        for (Variable var : getVariables()) {
+            granule.setArray(var.getFullName(), getData(var));
         }
         
+        return granule;
+    }
+    
+    /**
+     * Set the length of the time dimension then tell each Variable what its shape is.
+     * This has to be done after the Dimension lengths have been set.
+     */
+    private void setShapes(int length) {
+        Dimension tdim = _ncFile.getRootGroup().findDimension("time");
+        tdim.setLength(length);
+
+        for (Variable var : getVariables()) {
+            String shape = getVariableXmlAttribute(var.getShortName(), "shape");
+            var.setDimensions(shape);
+        }
+    }
+    
+    /**
+     * Can the data from this reader be kept in the shared GranuleCache.
+     * Only granules that are local files are cached, keyed by their modification time.
+     * Override to return false if the data comes from somewhere else.
+     */
+    protected boolean isCacheable() {
+        return true;
     }
     
 
+    /**
+     * Has the request that this IOSP is reading for been cancelled.
+     * Use the CancelTask that NetCDF gave us, else the one for the current request.
+     */
+    protected boolean isCancelled() {
+        return RequestCancelTask.isCancel(_cancelTask);
+    }
+    
+    /**
+     * Throw a RequestCancelledException if the request has been cancelled.
+     * Call this periodically while reading, see RequestCancelTask.check.
+     */
+    protected void checkCancel() {
+        RequestCancelTask.check(_cancelTask);
+    }
+    
     protected Array getArray(String varName) {
         return _dataMap.get(varName);
     }
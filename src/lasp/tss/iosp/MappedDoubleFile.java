@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lasp.tss.TSSException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A read-only memory mapping of a file of 64-bit floats viewed as DoubleBuffers.
+ * Files larger than a single mapping can hold (2GB) are mapped in segments.
+ * Mappings are shared by all readers of the same file and are replaced
+ * when the file's modification time or size changes.
+ * Only absolute reads are used on the shared buffers so they are safe
+ * for concurrent use. Relative bulk reads are made on duplicates.
+ */
+public class MappedDoubleFile {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(MappedDoubleFile.class);
+
+    /**
+     * Number of doubles in each mapped segment: 2^27 doubles = 1GB.
+     */
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * Shared mappings keyed by file path and byte order.
+     */
+    private static Map<String, MappedDoubleFile> _mappings = new ConcurrentHashMap<String, MappedDoubleFile>();
+
+    private File _file;
+    private long _lastModified;
+    private long _fileLength;
+
+    /**
+     * Number of doubles in the file.
+     */
+    private long _size;
+
+    private DoubleBuffer[] _segments;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the shared mapping of the given file with the given byte order.
+     * Map it if we don't have a current one.
+     */
+    public static MappedDoubleFile getMapping(String location, ByteOrder order) {
+        File file = getFile(location);
+        String key = file.getAbsolutePath() + "|" + order;
+
+        MappedDoubleFile mapping = _mappings.get(key);
+        if (mapping == null || ! mapping.isCurrent()) {
+            synchronized (_mappings) {
+                mapping = _mappings.get(key);
+                if (mapping == null || ! mapping.isCurrent()) {
+                    mapping = new MappedDoubleFile(file, order);
+                    _mappings.put(key, mapping);
+                }
+            }
+        }
+
+        return mapping;
+    }
+
+    /**
+     * Return the local File for the given location which may be a "file:" URL.
+     */
+    private static File getFile(String location) {
+        if (location.startsWith("file:")) location = location.substring(5);
+        return new File(location);
+    }
+
+    /**
+     * Map the given file.
+     */
+    private MappedDoubleFile(File file, ByteOrder order) {
+        _file = file;
+        _lastModified = file.lastModified();
+        _fileLength = file.length();
+        _size = _fileLength / 8;
+
+        int nseg = (int) ((_size + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+        _segments = new DoubleBuffer[nseg];
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            for (int iseg=0; iseg<nseg; iseg++) {
+                long first = (long) iseg << SEGMENT_SHIFT; //index of first double in this segment
+                long n = Math.min(SEGMENT_SIZE, _size - first);
+                MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, first * 8, n * 8);
+                bb.order(order);
+                _segments[iseg] = bb.asDoubleBuffer();
+            }
+            _logger.debug("Mapped " + _size + " doubles in " + nseg + " segments from " + file);
+        } catch (IOException e) {
+            String msg = "Failed to memory map the file: " + file;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        } finally {
+            //The mapping remains valid after the channel is closed.
+            try {if (raf != null) raf.close();} catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Does the mapping still reflect the state of the file.
+     */
+    private boolean isCurrent() {
+        return _file.lastModified() == _lastModified && _file.length() == _fileLength;
+    }
+
+    /**
+     * Return the number of doubles in the file.
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * Return the value at the given index (in doubles, not bytes).
+     */
+    public double get(long index) {
+        return _segments[(int) (index >> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    /**
+     * Gather "count" runs of "width" consecutive values into the given array.
+     * The first run starts at the "start" index and each subsequent
+     * run starts "step" values after the previous one.
+     * A contiguous read is one run, a strided Sequence read is a run of
+     * the Sequence length per time sample, and a Structure component is a
+     * run of one value per time sample.
+     */
+    public void gather(long start, long step, int count, int width, double[] data) {
+        if (start < 0 || count > 0 && start + (count - 1) * step + width > _size) {
+            String msg = "Attempt to read beyond the end of the file: " + _file;
+            _logger.error(msg);
+            throw new TSSException(msg);
+        }
+
+        DoubleBuffer[] dups = null; //duplicates for bulk reads, made as needed
+        int i = 0; //index into data array
+        long index = start;
+
+        for (int irun=0; irun<count; irun++) {
+            if (width == 1) {
+                data[i++] = get(index);
+            } else {
+                if (dups == null) dups = new DoubleBuffer[_segments.length];
+                long from = index;
+                int remaining = width;
+                while (remaining > 0) {
+                    int iseg = (int) (from >> SEGMENT_SHIFT);
+                    int offset = (int) (from & SEGMENT_MASK);
+                    if (dups[iseg] == null) dups[iseg] = _segments[iseg].duplicate();
+                    DoubleBuffer buffer = dups[iseg];
+                    int n = Math.min(remaining, buffer.capacity() - offset); //don't cross into next segment
+                    buffer.position(offset);
+                    buffer.get(data, i, n);
+                    i += n;
+                    from += n;
+                    remaining -= n;
+                }
+            }
+            index += step;
+        }
+    }
+}
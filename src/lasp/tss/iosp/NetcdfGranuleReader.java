@@ -44,7 +44,8 @@ public class NetcdfGranuleReader extends GranuleIOSP {
     @Override
     public void close() throws IOException {
         super.close();
-        _netcdfFile.close();
+        //Not opened if the data came from the GranuleCache
+        if (_netcdfFile != null) _netcdfFile.close();
     }
 
 }
@@ -23,19 +23,21 @@ public class RegExAsciiReader extends AsciiGranuleReader {
         _nvar = getVariableCount();
     }
 
+    /**
+     * Add the values matched by each group of the regular expression.
+     * Records that don't match are dropped.
+     */
     @Override
-    protected String[] parseRecord(String record) {
-        String[] strings = null;
-        
+    protected void addRecord(String record) {
         Matcher m = _pattern.matcher(record);
         if (m.matches()) {
-            strings = new String[_nvar];
+            ColumnBuffers columns = getColumns();
+            columns.addRow();
             for (int i=0; i<_nvar; i++) {
-                strings[i] = m.group(i+1);
+                int start = m.start(i+1);
+                if (start >= 0) columns.setValue(i, record, start, m.end(i+1));
             }
         }
-        
-        return strings;
     }
 
 }
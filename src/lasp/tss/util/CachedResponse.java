@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A complete response that can be written again for an equivalent request:
+ * the content type, headers (other than dates) and the body.
+ */
+public class CachedResponse {
+
+    private String _contentType;
+    private List<String[]> _headers;
+    private byte[] _body;
+
+    /**
+     * State of the dataset sources (SourceSignature) when the response was made.
+     */
+    private String _signature;
+
+  //------------------------------------------------------------------------
+
+    public CachedResponse(String contentType, List<String[]> headers, byte[] body) {
+        _contentType = contentType;
+        _headers = headers;
+        _body = body;
+    }
+
+    /**
+     * Write the response with the current date.
+     */
+    public void write(HttpServletResponse response) throws IOException {
+        if (_contentType != null) response.setContentType(_contentType);
+        for (String[] header : _headers) response.addHeader(header[0], header[1]);
+        response.setDateHeader("Date", System.currentTimeMillis());
+
+        response.setContentLength(_body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(_body);
+    }
+
+    /**
+     * Return the approximate memory used by the response (bytes).
+     */
+    public long getSize() {
+        long size = _body.length + 100;
+        for (String[] header : _headers) size += 2 * (header[0].length() + header[1].length()) + 40;
+        return size;
+    }
+
+    public String getSignature() {
+        return _signature;
+    }
+
+    public void setSignature(String signature) {
+        _signature = signature;
+    }
+
+  //----- Serialization ----------------------------------------------------
+
+    /**
+     * Write the response, with the given key, for the disk cache.
+     */
+    public void writeTo(DataOutputStream out, String key) throws IOException {
+        writeString(out, key);
+        writeString(out, _signature == null ? "" : _signature);
+        writeString(out, _contentType == null ? "" : _contentType);
+        out.writeInt(_headers.size());
+        for (String[] header : _headers) {
+            writeString(out, header[0]);
+            writeString(out, header[1]);
+        }
+        out.writeInt(_body.length);
+        out.write(_body);
+    }
+
+    /**
+     * Read a response written by writeTo.
+     * Return null if it was written for a different key.
+     */
+    public static CachedResponse readFrom(DataInputStream in, String key) throws IOException {
+        if (! key.equals(readString(in))) return null;
+        String signature = readString(in);
+        String contentType = readString(in);
+        if (contentType.length() == 0) contentType = null;
+
+        int n = in.readInt();
+        List<String[]> headers = new ArrayList<String[]>(n);
+        for (int i=0; i<n; i++) headers.add(new String[] {readString(in), readString(in)});
+
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        CachedResponse response = new CachedResponse(contentType, headers, body);
+        response.setSignature(signature);
+        return response;
+    }
+
+    /**
+     * Write a String of any length as UTF-8 (writeUTF is limited to 64K).
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
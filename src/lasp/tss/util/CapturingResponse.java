@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wrap an HttpServletResponse to keep a copy of what is written to it
+ * (along with the content type and headers) so it can be cached.
+ * The response is still written to the client as it is produced.
+ * The copy is abandoned if it gets too big or the response is reset
+ * or is not a success.
+ */
+public class CapturingResponse extends HttpServletResponseWrapper {
+
+    private int _maxSize;
+    private ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+    private boolean _capturing = true;
+
+    private String _contentType;
+    private List<String[]> _headers = new ArrayList<String[]>();
+
+    private ServletOutputStream _outputStream;
+    private PrintWriter _writer;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Capture up to maxSize bytes of the given response.
+     */
+    public CapturingResponse(HttpServletResponse response, int maxSize) {
+        super(response);
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Return the captured response. Null if it was abandoned.
+     * Text that has been written but not flushed is flushed first.
+     */
+    public CachedResponse getCachedResponse() {
+        if (_writer != null) _writer.flush();
+        if (! _capturing) return null;
+        return new CachedResponse(_contentType, _headers, _buffer.toByteArray());
+    }
+
+    /**
+     * Stop keeping a copy of the response.
+     */
+    public void stopCapture() {
+        _capturing = false;
+        _buffer = new ByteArrayOutputStream();
+    }
+
+    private void capture(byte[] b, int off, int len) {
+        if (! _capturing) return;
+        if (_buffer.size() + len > _maxSize) stopCapture();
+        else _buffer.write(b, off, len);
+    }
+
+  //----- HttpServletResponse ----------------------------------------------
+
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (_outputStream == null) {
+            final ServletOutputStream out = super.getOutputStream();
+            _outputStream = new ServletOutputStream() {
+                private byte[] _byte = new byte[1];
+
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    _byte[0] = (byte) b;
+                    capture(_byte, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    capture(b, off, len);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+        return _outputStream;
+    }
+
+    public PrintWriter getWriter() throws IOException {
+        if (_writer == null) {
+            String encoding = getCharacterEncoding();
+            _writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding));
+        }
+        return _writer;
+    }
+
+    public void flushBuffer() throws IOException {
+        if (_writer != null) _writer.flush();
+        super.flushBuffer();
+    }
+
+    public void reset() {
+        super.reset();
+        stopCapture();
+        _outputStream = null;
+        _writer = null;
+    }
+
+    public void resetBuffer() {
+        super.resetBuffer();
+        stopCapture();
+    }
+
+    public void setContentType(String type) {
+        super.setContentType(type);
+        _contentType = type;
+    }
+
+    public void setHeader(String name, String value) {
+        super.setHeader(name, value);
+        for (int i=0; i<_headers.size(); i++) {
+            if (_headers.get(i)[0].equalsIgnoreCase(name)) _headers.remove(i--);
+        }
+        _headers.add(new String[] {name, value});
+    }
+
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        _headers.add(new String[] {name, value});
+    }
+
+    public void setStatus(int sc) {
+        super.setStatus(sc);
+        if (sc != SC_OK) stopCapture();
+    }
+
+    public void sendError(int sc) throws IOException {
+        super.sendError(sc);
+        stopCapture();
+    }
+
+    public void sendError(int sc, String msg) throws IOException {
+        super.sendError(sc, msg);
+        stopCapture();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
+import thredds.catalog.InvAccess;
+import thredds.catalog.InvCatalogImpl;
+import thredds.catalog.InvCatalogRef;
+import thredds.catalog.InvDataset;
+import thredds.catalog.ServiceType;
+
+/**
+ * Flat index of the datasets in a THREDDS catalog, mapping the dataset
+ * name (nested names delimited by "/") to the URL of its NcML.
+ * The catalog (including referenced catalogs) is read once and
+ * read again only when one of the catalog files has been modified.
+ * Modification times are checked no more often than the number of seconds
+ * defined by the "catalog.reload.interval" property (default 5).
+ * Catalogs that are not local files can't be checked, so they are simply
+ * reloaded at that interval.
+ */
+public class CatalogIndex {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(CatalogIndex.class);
+
+    /**
+     * One index per catalog URL.
+     */
+    private static Map<String, CatalogIndex> _indexes = new ConcurrentHashMap<String, CatalogIndex>();
+
+    private String _catalogUrl;
+
+    /**
+     * Dataset name to NcML URL. Replaced, not modified, when reloaded.
+     */
+    private volatile Map<String, String> _ncmlUrls;
+
+    /**
+     * Catalog files that went into the index and their modification times.
+     */
+    private Map<File, Long> _catalogFiles;
+
+    /**
+     * Did we read any catalogs that we can't check for changes.
+     */
+    private boolean _hasRemoteCatalogs;
+
+    private long _loadTime;
+    private volatile long _lastCheckTime;
+
+  //------------------------------------------------------------------------
+
+    private CatalogIndex(String catalogUrl) {
+        _catalogUrl = catalogUrl;
+    }
+
+    /**
+     * Return the index for the catalog at the given URL.
+     */
+    public static CatalogIndex getIndex(String catalogUrl) {
+        CatalogIndex index = _indexes.get(catalogUrl);
+        if (index == null) {
+            synchronized (_indexes) {
+                index = _indexes.get(catalogUrl);
+                if (index == null) {
+                    index = new CatalogIndex(catalogUrl);
+                    _indexes.put(catalogUrl, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Return the URL of the NcML for the named dataset in the catalog at the given URL.
+     * Return null if the dataset is not in the catalog.
+     */
+    public static String findNcmlUrl(String catalogUrl, String dsname) {
+        return getIndex(catalogUrl).findNcmlUrl(dsname);
+    }
+
+    /**
+     * Return the URL of the NcML for the named dataset.
+     * Nested datasets will have names delimited by "/".
+     * Return null if the dataset is not in the catalog.
+     */
+    public String findNcmlUrl(String dsname) {
+        if (needsReload()) reload();
+        Map<String, String> urls = _ncmlUrls;
+        if (urls == null) return null;
+        return urls.get(dsname);
+    }
+
+    /**
+     * Return the number of datasets in the index.
+     */
+    public int getSize() {
+        Map<String, String> urls = _ncmlUrls;
+        return urls == null ? 0 : urls.size();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Has it been long enough since the last check and has
+     * a catalog changed since the index was built?
+     */
+    private boolean needsReload() {
+        if (_ncmlUrls == null) return true;
+
+        long now = System.currentTimeMillis();
+        long interval = getReloadInterval();
+        if (now - _lastCheckTime < interval) return false;
+        _lastCheckTime = now;
+
+        synchronized (this) {
+            if (_hasRemoteCatalogs && now - _loadTime >= interval) return true;
+
+            for (Map.Entry<File, Long> entry : _catalogFiles.entrySet()) {
+                if (entry.getKey().lastModified() != entry.getValue().longValue()) {
+                    _logger.info("Catalog has been modified: " + entry.getKey());
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the minimum time (ms) between checks for modified catalogs.
+     */
+    private long getReloadInterval() {
+        long interval = 5000;
+        try {
+            String s = TSSProperties.getProperty("catalog.reload.interval");
+            if (s != null) interval = (long) (Double.parseDouble(s) * 1000);
+        } catch (Exception e) {
+            _logger.warn("Invalid catalog.reload.interval, using default.", e);
+        }
+        return interval;
+    }
+
+    /**
+     * Read the catalog and rebuild the index.
+     * If the catalog fails to load but we already have an index, keep using it.
+     */
+    private synchronized void reload() {
+        //Another thread may have beat us to it.
+        if (_ncmlUrls != null && ! needsReloadNow()) return;
+
+        _logger.debug("Loading catalog index: " + _catalogUrl);
+
+        Map<String, String> urls = new HashMap<String, String>();
+        Map<File, Long> files = new LinkedHashMap<File, Long>();
+        addCatalogFile(files, _catalogUrl);
+
+        try {
+            InvCatalogImpl catalog = CatalogUtils.readCatalog(_catalogUrl);
+            if (catalog != null) addDatasets(urls, files, catalog.getDatasets(), "");
+        } catch (RuntimeException e) {
+            if (_ncmlUrls == null) throw e;
+            _logger.warn("Failed to reload the catalog, using the previous index: " + _catalogUrl, e);
+            _loadTime = System.currentTimeMillis(); //don't try again until the next interval
+            return;
+        }
+
+        _catalogFiles = files;
+        _hasRemoteCatalogs = files.containsKey(null);
+        files.remove(null);
+        _loadTime = System.currentTimeMillis();
+        _lastCheckTime = _loadTime;
+        _ncmlUrls = urls;
+
+        _logger.info("Loaded " + urls.size() + " datasets from catalog: " + _catalogUrl);
+    }
+
+    /**
+     * Check the catalog files without regard to the interval.
+     */
+    private boolean needsReloadNow() {
+        _lastCheckTime = 0;
+        return needsReload();
+    }
+
+    /**
+     * Add the datasets to the index, recursing into nested datasets.
+     * This follows the same rules as CatalogUtils.findDataset: match
+     * based on "ID"s first then "name" and pass over the referenced catalog
+     * node of catalogRefs. The first dataset with a given name wins.
+     */
+    private void addDatasets(Map<String, String> urls, Map<File, Long> files, List<InvDataset> datasets, String prefix) {
+        for (InvDataset ds : datasets) {
+            String name = ds.getID();
+            if (name == null) name = ds.getName();
+            if (name == null) continue;
+            name = prefix + name;
+
+            InvAccess access = ds.getAccess(ServiceType.NCML);
+            if (access != null && ! urls.containsKey(name)) {
+                urls.put(name, access.getStandardUrlName());
+            }
+
+            InvDataset parent = ds;
+            if (ds instanceof InvCatalogRef) {
+                URI uri = ((InvCatalogRef) ds).getURI();
+                if (uri != null) addCatalogFile(files, uri.toString());
+                List<InvDataset> dss = ds.getDatasets(); //reads the referenced catalog
+                if (dss.isEmpty()) continue;
+                parent = dss.get(0);
+            }
+
+            List<InvDataset> dss = parent.getDatasets();
+            if (dss != null && ! dss.isEmpty()) addDatasets(urls, files, dss, name + "/"); //recursive
+        }
+    }
+
+    /**
+     * Keep track of the catalog file so we can tell when it changes.
+     * A catalog that is not a local file is marked with a null key.
+     */
+    private void addCatalogFile(Map<File, Long> files, String url) {
+        File file = NcmlCache.getFile(url);
+        if (file != null) files.put(file, new Long(file.lastModified())); //0 if it doesn't exist (yet)
+        else files.put(null, null);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lasp.tss.iosp.ColumnarIOSP;
+import lasp.tss.iosp.ColumnarWriter;
+
+import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ncml.NcMLReader;
+
+/**
+ * Copy a dataset into the chunked, column oriented format served by the ColumnarIOSP:
+ *
+ *   java lasp.tss.util.ColumnarConverter [-plain] dataset.ncml output.tsc [chunkSize]
+ *
+ * Every numeric variable with only the time dimension is copied, as doubles.
+ * The chunks are compressed (see ChunkCodec) unless "-plain" is given.
+ * The time variable must be numeric. The NcML for the new file is written
+ * next to it, e.g. output.ncml, with the attributes of the original dataset.
+ */
+public class ColumnarConverter {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ColumnarConverter.class);
+
+    /**
+     * Number of time samples in each chunk if not given.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private static final Namespace NCML = Namespace.getNamespace("http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2");
+
+    public static void main(String[] args) {
+        boolean compress = true;
+        if (args.length > 0 && args[0].equals("-plain")) {
+            compress = false;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java " + ColumnarConverter.class.getName() + " [-plain] dataset.ncml output.tsc [chunkSize]");
+            System.exit(2);
+        }
+
+        try {
+            int chunkSize = (args.length == 3) ? Integer.parseInt(args[2]) : DEFAULT_CHUNK_SIZE;
+            File ncml = convert(args[0], new File(args[1]), chunkSize, compress);
+            System.out.println("Wrote " + args[1] + " and " + ncml);
+        } catch (Exception e) {
+            _logger.error("Failed to convert the dataset: " + args[0], e);
+            System.err.println("Failed to convert the dataset: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Copy the dataset defined by the given NcML to the given file with the
+     * given number of time samples in each chunk, compressed if asked.
+     * Return the NcML file that was written for the new file.
+     */
+    public static File convert(String ncmlLocation, File file, int chunkSize, boolean compress) throws IOException {
+        NetcdfDataset ncds = NcMLReader.readNcML(ncmlLocation, null);
+        try {
+            List<Variable> vars = getVariables(ncds);
+
+            ColumnarWriter writer = new ColumnarWriter(file, chunkSize, compress);
+            try {
+                for (Variable var : vars) {
+                    _logger.info("Copying variable: " + var.getShortName());
+                    writer.startVariable(var.getShortName());
+
+                    int n = var.getShape(0);
+                    double[] values = new double[chunkSize];
+                    for (int start=0; start<n; start+=chunkSize) {
+                        int count = Math.min(chunkSize, n - start);
+                        Array array = var.read(new int[] {start}, new int[] {count});
+                        IndexIterator it = array.getIndexIterator();
+                        for (int i=0; i<count; i++) values[i] = it.getDoubleNext();
+                        writer.write(values, 0, count);
+                    }
+                }
+                writer.close();
+            } catch (Exception e) {
+                writer.abort();
+                throw new IOException("Failed to write the file: " + file, e);
+            }
+
+            File ncml = getNcmlFile(file);
+            writeNcml(ncds, vars, file, ncml);
+            return ncml;
+        } finally {
+            ncds.close();
+        }
+    }
+
+    /**
+     * Return the variables to copy, time first.
+     */
+    private static List<Variable> getVariables(NetcdfDataset ncds) throws IOException {
+        List<Variable> vars = new ArrayList<Variable>();
+        Variable time = null;
+
+        for (Variable var : ncds.getRootGroup().getVariables()) {
+            String name = var.getShortName();
+            boolean timed = var.getRank() == 1 && "time".equals(var.getDimension(0).getName());
+            if (! timed || ! var.getDataType().isNumeric()) {
+                if (! "time".equals(name)) _logger.warn("Skipping variable that is not a numeric time series: " + name);
+                continue;
+            }
+            if ("time".equals(name)) time = var;
+            else vars.add(var);
+        }
+
+        if (time == null) throw new IOException("The dataset must have a numeric time variable.");
+        vars.add(0, time);
+        return vars;
+    }
+
+    /**
+     * Return the file for the NcML that goes with the given file.
+     */
+    private static File getNcmlFile(File file) {
+        String name = file.getName();
+        int index = name.lastIndexOf('.');
+        if (index > 0) name = name.substring(0, index);
+        return new File(file.getAbsoluteFile().getParentFile(), name + ".ncml");
+    }
+
+    /**
+     * Write NcML that serves the given file with the attributes of the original dataset.
+     */
+    private static void writeNcml(NetcdfDataset ncds, List<Variable> vars, File file, File ncml) throws IOException {
+        Element ncel = new Element("netcdf", NCML);
+        ncel.setAttribute("location", file.getName());
+        ncel.setAttribute("iosp", ColumnarIOSP.class.getName());
+        addAttributes(ncel, ncds.getGlobalAttributes());
+
+        Element dim = new Element("dimension", NCML);
+        dim.setAttribute("name", "time");
+        ncel.addContent(dim);
+
+        for (Variable var : vars) {
+            Element vel = new Element("variable", NCML);
+            vel.setAttribute("name", var.getShortName());
+            vel.setAttribute("shape", "time");
+            vel.setAttribute("type", "double");
+            addAttributes(vel, var.getAttributes());
+            ncel.addContent(vel);
+        }
+
+        OutputStream out = new FileOutputStream(ncml);
+        try {
+            new XMLOutputter(Format.getPrettyFormat()).output(new Document(ncel), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void addAttributes(Element parent, List<Attribute> atts) {
+        for (Attribute att : atts) {
+            Element ael = new Element("attribute", NCML);
+            ael.setAttribute("name", att.getName());
+
+            if (att.isString()) {
+                ael.setAttribute("type", "String");
+                ael.setAttribute("value", att.getStringValue());
+            } else {
+                DataType type = att.getDataType();
+                StringBuilder sb = new StringBuilder();
+                for (int i=0; i<att.getLength(); i++) {
+                    if (i > 0) sb.append(" ");
+                    sb.append(att.getNumericValue(i));
+                }
+                ael.setAttribute("type", type.toString());
+                ael.setAttribute("value", sb.toString());
+            }
+
+            parent.addContent(ael);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lasp.tss.constraint.ConstraintExpression;
+
+/**
+ * Support for HTTP conditional GET requests (If-None-Match, If-Modified-Since)
+ * for datasets made from local files. The validators are derived from the
+ * state of the dataset's sources (its SourceSignature) so they only change
+ * when the NcML or data files do:
+ * - ETag: digest of the source signature, request URL, canonical constraint expression
+ *   and content coding
+ * - Last-Modified: most recent modification time of the source files
+ */
+public class ConditionalGet {
+
+    /**
+     * Return the strong entity tag for the response to the given request
+     * for a dataset made from sources with the given signature.
+     * The content coding (e.g. "gzip", null if none) is part of the tag
+     * since each coding is a different representation.
+     * Return null if the constraint expression can't be parsed.
+     */
+    public static String makeETag(HttpServletRequest request, SourceSignature signature, String encoding) {
+        String ce;
+        try {
+            ce = ConstraintExpression.canonicalize(request.getQueryString());
+        } catch (Exception e) {
+            return null; //let the request fail the usual way
+        }
+
+        String s = signature + "|" + request.getRequestURL() + "?" + ce + "|" + encoding;
+        return "\"" + ServerUtils.digest(s, "MD5") + "\"";
+    }
+
+    /**
+     * Does the client already have the current response for the given request.
+     * If-None-Match takes precedence over If-Modified-Since.
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null) return etag != null && matches(inm, etag);
+
+        long ims = -1;
+        try {
+            ims = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false; //not a date
+        }
+
+        //HTTP dates are only good to the second.
+        return ims >= 0 && lastModified > 0 && lastModified / 1000 <= ims / 1000;
+    }
+
+    /**
+     * Does the If-None-Match header value match the entity tag.
+     * It may be "*" or a list of tags, which may be weak.
+     */
+    private static boolean matches(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag)) return true;
+        }
+        return false;
+    }
+}
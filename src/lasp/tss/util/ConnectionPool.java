@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of database connections for datasets that define their own
+ * connection (connectionString) instead of using a JNDI resource.
+ * There is a pool for each set of credentials (connection string, user and password)
+ * with up to "db.pool.size"
+ * connections (default 8, 0 to make a new connection for each request).
+ * A request that needs a connection when they are all in use waits up to
+ * "db.pool.timeout" seconds. Connections that have been idle for more than
+ * "db.pool.idle" seconds are closed.
+ * Connections must be given back with release instead of being closed.
+ */
+public class ConnectionPool {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ConnectionPool.class);
+
+    private static Map<String, ConnectionPool> _pools = new ConcurrentHashMap<String, ConnectionPool>();
+
+    /**
+     * The pool that each connection that is in use came from.
+     * Guarded by synchronizing on the map.
+     */
+    private static Map<Connection, ConnectionPool> _owners = new IdentityHashMap<Connection, ConnectionPool>();
+
+    private String _url;
+    private String _user;
+    private String _password;
+    private Semaphore _permits;
+
+    /**
+     * Idle connections, most recently used first, and when they were released.
+     * Guarded by synchronizing on this pool.
+     */
+    private LinkedList<Connection> _idle = new LinkedList<Connection>();
+    private LinkedList<Long> _idleSince = new LinkedList<Long>();
+
+    private AtomicLong _created = new AtomicLong();
+    private AtomicLong _reused = new AtomicLong();
+
+  //------------------------------------------------------------------------
+
+    private ConnectionPool(String url, String user, String password, int size) {
+        _url = url;
+        _user = user;
+        _password = password;
+        _permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Return a connection to the given database.
+     */
+    public static Connection getConnection(String url, String user, String password) throws SQLException {
+        int size = ServerUtils.getIntProperty("db.pool.size", 8);
+        if (size <= 0) return DriverManager.getConnection(url, user, password);
+
+        String key = getKey(url, user, password);
+        ConnectionPool pool = _pools.get(key);
+        if (pool == null) {
+            synchronized (_pools) {
+                pool = _pools.get(key);
+                if (pool == null) {
+                    pool = new ConnectionPool(url, user, password, size);
+                    _pools.put(key, pool);
+                    _logger.info("Created a pool of " + size + " connections for: " + url);
+                }
+            }
+        }
+
+        Connection connection = pool.borrow();
+        synchronized (_owners) {
+            _owners.put(connection, pool);
+        }
+        return connection;
+    }
+
+    /**
+     * Give back a connection from getConnection.
+     * Connections that didn't come from a pool are closed.
+     */
+    public static void release(Connection connection) {
+        if (connection == null) return;
+
+        ConnectionPool pool;
+        synchronized (_owners) {
+            pool = _owners.remove(connection);
+        }
+
+        if (pool == null) close(connection);
+        else pool.giveBack(connection);
+    }
+
+    /**
+     * Return the key of the pool for the given credentials: a digest of all of them
+     * so a changed password gets a new pool and the password isn't kept in the key.
+     */
+    private static String getKey(String url, String user, String password) {
+        String s = url + "\u0000" + user + "\u0000" + password;
+        return ServerUtils.digest(s, "SHA-256");
+    }
+
+  //------------------------------------------------------------------------
+
+    private Connection borrow() throws SQLException {
+        int timeout = ServerUtils.getIntProperty("db.pool.timeout", 30);
+        try {
+            if (! _permits.tryAcquire(timeout, TimeUnit.SECONDS)) {
+                throw new SQLException("Timed out waiting for a connection to: " + _url);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to: " + _url);
+        }
+
+        try {
+            //Use the most recently used idle connection that still works.
+            while (true) {
+                Connection connection;
+                synchronized (this) {
+                    closeIdle();
+                    if (_idle.isEmpty()) break;
+                    connection = _idle.removeFirst();
+                    _idleSince.removeFirst();
+                }
+                if (isValid(connection)) {
+                    _reused.incrementAndGet();
+                    return connection;
+                }
+                close(connection);
+            }
+
+            Connection connection = DriverManager.getConnection(_url, _user, _password);
+            _created.incrementAndGet();
+            return connection;
+        } catch (SQLException e) {
+            _permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    private void giveBack(Connection connection) {
+        try {
+            //Undo anything a request may have left behind.
+            if (! connection.isClosed()) {
+                if (! connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                synchronized (this) {
+                    _idle.addFirst(connection);
+                    _idleSince.addFirst(System.currentTimeMillis());
+                }
+                connection = null;
+            }
+        } catch (SQLException e) {
+            _logger.warn("Dropping a database connection that could not be reset.", e);
+        } finally {
+            if (connection != null) close(connection);
+            _permits.release();
+        }
+    }
+
+    /**
+     * Close the connections that have been idle too long.
+     * Must be called while synchronized on this pool.
+     */
+    private void closeIdle() {
+        long cutoff = System.currentTimeMillis() - ServerUtils.getIntProperty("db.pool.idle", 300) * 1000L;
+        Iterator<Connection> it = _idle.descendingIterator();
+        Iterator<Long> since = _idleSince.descendingIterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (since.next() > cutoff) break; //the rest were used more recently
+            it.remove();
+            since.remove();
+            close(connection);
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(5);
+        } catch (Throwable t) {
+            //Drivers that don't support isValid
+            try {
+                return ! connection.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            _logger.warn("Failed to close database connection.", e);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the number of connections that have been made by all pools.
+     */
+    public static long getCreatedCount() {
+        long n = 0;
+        for (ConnectionPool pool : _pools.values()) n += pool._created.get();
+        return n;
+    }
+
+    /**
+     * Return the number of times an idle connection was used again.
+     */
+    public static long getReusedCount() {
+        long n = 0;
+        for (ConnectionPool pool : _pools.values()) n += pool._reused.get();
+        return n;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wrap an HttpServletResponse to count the bytes written to it
+ * and keep the status, which the Servlet 2.5 API doesn't give us.
+ */
+public class CountingResponse extends HttpServletResponseWrapper {
+
+    private long _count;
+    private int _status = SC_OK;
+
+    private ServletOutputStream _outputStream;
+    private PrintWriter _writer;
+
+  //------------------------------------------------------------------------
+
+    public CountingResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Return the number of bytes written to the response body.
+     * Text that has been written but not flushed is flushed first.
+     */
+    public long getByteCount() {
+        if (_writer != null) _writer.flush();
+        return _count;
+    }
+
+    /**
+     * Return the last status code set on the response.
+     */
+    public int getStatus() {
+        return _status;
+    }
+
+  //----- HttpServletResponse ----------------------------------------------
+
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (_outputStream == null) {
+            final ServletOutputStream out = super.getOutputStream();
+            _outputStream = new ServletOutputStream() {
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    _count++;
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    _count += len;
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+        return _outputStream;
+    }
+
+    public PrintWriter getWriter() throws IOException {
+        if (_writer == null) {
+            String encoding = getCharacterEncoding();
+            _writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding));
+        }
+        return _writer;
+    }
+
+    public void flushBuffer() throws IOException {
+        if (_writer != null) _writer.flush();
+        super.flushBuffer();
+    }
+
+    public void reset() {
+        super.reset();
+        _count = 0;
+        _status = SC_OK;
+        _outputStream = null;
+        _writer = null;
+    }
+
+    public void resetBuffer() {
+        if (_writer != null) _writer.flush();
+        super.resetBuffer();
+        _count = 0;
+    }
+
+    public void setStatus(int sc) {
+        super.setStatus(sc);
+        _status = sc;
+    }
+
+    public void sendError(int sc) throws IOException {
+        super.sendError(sc);
+        _status = sc;
+    }
+
+    public void sendError(int sc, String msg) throws IOException {
+        super.sendError(sc, msg);
+        _status = sc;
+    }
+}
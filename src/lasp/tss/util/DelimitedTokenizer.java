@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Find the tokens in a line of text with the same results as String.split
+ * for the given delimiter (a regular expression) but without making a String
+ * for each token. The positions of the tokens are kept in reusable arrays.
+ * The common delimiters (RegEx.DELIMITER, white space and single characters)
+ * are scanned by hand, others use the regular expression.
+ * Not thread safe: use one per reader.
+ */
+public class DelimitedTokenizer {
+
+    /**
+     * Pattern for delimiters we can't scan by hand, otherwise null.
+     */
+    private Pattern _pattern;
+
+    /**
+     * Delimiter characters when scanning by hand.
+     */
+    private boolean _whiteSpace; //  \s
+    private boolean _comma;
+    private char _char; //any other single character, 0 if none
+
+    /**
+     * Does a run of delimiters count as one (e.g. "[\s,]+").
+     */
+    private boolean _collapse;
+
+    private CharSequence _text;
+    private int[] _starts = new int[16];
+    private int[] _ends = new int[16];
+    private int _count;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Construct a tokenizer for the given delimiter regular expression.
+     */
+    public DelimitedTokenizer(String delimiter) {
+        if (delimiter.equals(RegEx.DELIMITER)) {
+            _whiteSpace = true;
+            _comma = true;
+            _collapse = true;
+        } else if (delimiter.equals("\\s+")) {
+            _whiteSpace = true;
+            _collapse = true;
+        } else if (delimiter.equals("\\s")) {
+            _whiteSpace = true;
+        } else if (delimiter.equals("\\t")) {
+            _char = '\t';
+        } else if (delimiter.length() == 1 && ".$|()[{^?*+\\".indexOf(delimiter.charAt(0)) < 0) {
+            _char = delimiter.charAt(0);
+            if (_char == ',') _comma = true;
+        } else if (delimiter.length() == 2 && delimiter.charAt(0) == '\\' && ! Character.isLetterOrDigit(delimiter.charAt(1))) {
+            _char = delimiter.charAt(1); //escaped special character, e.g. "\|"
+        } else {
+            _pattern = Pattern.compile(delimiter);
+        }
+    }
+
+    /**
+     * Is the character a delimiter when scanning by hand.
+     */
+    private boolean isDelimiter(char c) {
+        if (_whiteSpace && (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B')) return true;
+        if (_comma && c == ',') return true;
+        return c == _char && _char != 0;
+    }
+
+    /**
+     * Find the tokens in the text starting at the given position.
+     * Return the number of tokens.
+     */
+    public int tokenize(CharSequence text, int start) {
+        _text = text;
+        _count = 0;
+        int end = text.length();
+
+        boolean found = false; //did we find any delimiters
+        if (_pattern != null) {
+            Matcher m = _pattern.matcher(text);
+            m.region(start, end);
+            int tokenStart = start;
+            while (m.find()) {
+                if (m.end() == start) continue; //zero-length match at the beginning, like split
+                found = true;
+                add(tokenStart, m.start());
+                tokenStart = m.end();
+            }
+            add(tokenStart, end);
+        } else {
+            int tokenStart = start;
+            int i = start;
+            while (i < end) {
+                if (isDelimiter(text.charAt(i))) {
+                    found = true;
+                    add(tokenStart, i);
+                    i++;
+                    if (_collapse) while (i < end && isDelimiter(text.charAt(i))) i++;
+                    tokenStart = i;
+                } else i++;
+            }
+            add(tokenStart, end);
+        }
+
+        //Drop trailing empty tokens, like split
+        if (found) while (_count > 0 && _starts[_count-1] == _ends[_count-1]) _count--;
+
+        return _count;
+    }
+
+    private void add(int start, int end) {
+        if (_count == _starts.length) {
+            int[] starts = new int[_count * 2];
+            int[] ends = new int[_count * 2];
+            System.arraycopy(_starts, 0, starts, 0, _count);
+            System.arraycopy(_ends, 0, ends, 0, _count);
+            _starts = starts;
+            _ends = ends;
+        }
+        _starts[_count] = start;
+        _ends[_count] = end;
+        _count++;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the number of tokens found by the last call to tokenize.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * Return the position of the start of the given token (inclusive).
+     */
+    public int getStart(int itoken) {
+        return _starts[itoken];
+    }
+
+    /**
+     * Return the position of the end of the given token (exclusive).
+     */
+    public int getEnd(int itoken) {
+        return _ends[itoken];
+    }
+
+    /**
+     * Return the given token as a String.
+     */
+    public String getToken(int itoken) {
+        return _text.subSequence(_starts[itoken], _ends[itoken]).toString();
+    }
+
+    /**
+     * Parse the given token as a double.
+     */
+    public double getDouble(int itoken) throws NumberFormatException {
+        return NumberParser.parseDouble(_text, _starts[itoken], _ends[itoken]);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Write a file by way of a temporary file in the same directory, which
+ * replaces the file only when it is complete (see commit). Readers never
+ * see a partial file and those that already have the old one open (or mapped)
+ * keep reading it.
+ */
+public class FileReplacer {
+
+    private File _file;
+    private File _tmp;
+    private DataOutputStream _out;
+
+    /**
+     * Start writing the temporary file that will replace the given file.
+     * Make the directory if needed.
+     */
+    public FileReplacer(File file) throws IOException {
+        _file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        _tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_tmp), 65536));
+    }
+
+    /**
+     * Return the stream to write the contents of the file to.
+     */
+    public DataOutputStream getOutputStream() {
+        return _out;
+    }
+
+    /**
+     * Finish writing and replace the file. If that fails, the temporary file is deleted.
+     */
+    public void commit() throws IOException {
+        try {
+            _out.close();
+            _out = null;
+
+            //Replace the file in one step where the file system allows it.
+            if (! _tmp.renameTo(_file)) {
+                _file.delete();
+                if (! _tmp.renameTo(_file)) throw new IOException("Unable to rename " + _tmp + " to " + _file);
+            }
+            _tmp = null;
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Give up on the new file, e.g. after a failure. The original, if any, is left alone.
+     * Does nothing after commit.
+     */
+    public void abort() {
+        try {if (_out != null) _out.close();} catch (IOException e) {}
+        _out = null;
+        if (_tmp != null) _tmp.delete();
+        _tmp = null;
+    }
+}
@@ -71,9 +71,24 @@ public class JulianDate {
      * Construct JulianDate from double representation.
      */
     public JulianDate(double julianDate) {
+        _julianDate = new Date(toMillisSinceUnixEpoch(julianDate));
+    }
+    
+    /**
+     * Convert a Julian Date to Unix time (milliseconds since 1970)
+     * without making a JulianDate.
+     */
+    public static long toMillisSinceUnixEpoch(double julianDate) {
         double days = julianDate - JULIAN_DATE_AT_UNIX_EPOCH;
-        long ms = (long) (days * 86400000);
-        _julianDate = new Date(ms);
+        return (long) (days * 86400000);
+    }
+    
+    /**
+     * Convert Unix time (milliseconds since 1970) to a Julian Date
+     * without making a JulianDate.
+     */
+    public static double fromMillisSinceUnixEpoch(long millis) {
+        return millis / 86400000.0 + JULIAN_DATE_AT_UNIX_EPOCH;
     }
     
     /**
@@ -88,10 +103,7 @@ public class JulianDate {
      * Return in Julian date units.
      */
     public double getJulianDate() {
-        double unixMillis = getMillisSinceUnixEpoch();
-        double ms_per_day = 86400000.0;
-        double jd = unixMillis / ms_per_day + JULIAN_DATE_AT_UNIX_EPOCH;
-        return jd;
+        return fromMillisSinceUnixEpoch(getMillisSinceUnixEpoch());
     }
     
     /**
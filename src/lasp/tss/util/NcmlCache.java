@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lasp.tss.TSSException;
+
+import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * Process-wide cache of parsed NcML descriptors.
+ * Entries are keyed by the NcML URL and are valid as long as the
+ * file's modification time and size have not changed.
+ * Only local ("file:") NcML can be validated, so remote NcML is
+ * parsed every time.
+ *
+ * Each caller gets its own copy of the netcdf Element since
+ * the request is hacked into it as an attribute.
+ */
+public class NcmlCache {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(NcmlCache.class);
+
+    private static Map<String, Entry> _cache = new ConcurrentHashMap<String, Entry>();
+
+    private static AtomicLong _hits = new AtomicLong();
+    private static AtomicLong _misses = new AtomicLong();
+
+    /**
+     * Parsed NcML along with the state of the file it came from.
+     */
+    private static class Entry {
+        long lastModified;
+        long length;
+        Element element;
+
+        Entry(long lastModified, long length, Element element) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.element = element;
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return a copy of the root (netcdf) element of the NcML at the given URL.
+     * Parse it only if we don't have a current version cached.
+     */
+    public static Element getNetcdfElement(String ncmlURL) {
+        Element element = null;
+
+        File file = getFile(ncmlURL);
+        if (file == null || ! file.isFile()) {
+            //Can't tell if it has changed so don't cache it.
+            _misses.incrementAndGet();
+            return parse(ncmlURL);
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        Entry entry = _cache.get(ncmlURL);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            _hits.incrementAndGet();
+            element = entry.element;
+        } else {
+            _misses.incrementAndGet();
+            _logger.debug("Parsing NcML: " + ncmlURL);
+            element = parse(ncmlURL);
+            _cache.put(ncmlURL, new Entry(lastModified, length, element));
+        }
+
+        //Don't let anyone modify the cached version.
+        return (Element) element.clone();
+    }
+
+    /**
+     * Parse the NcML at the given URL and return the root element.
+     */
+    private static Element parse(String ncmlURL) {
+        try {
+            SAXBuilder builder = new SAXBuilder(false);
+            Document doc = builder.build(ncmlURL);
+            Element ncel = doc.getRootElement();
+            //Detach so the clones don't drag the Document along.
+            ncel.detach();
+            return ncel;
+        } catch (Exception e) {
+            String msg = "Unable to parse the NcML: " + ncmlURL;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        }
+    }
+
+    /**
+     * Return the local File for the given URL or path.
+     * Return null if it is not a local file.
+     */
+    public static File getFile(String url) {
+        File file = null;
+
+        if (url.startsWith("file:")) file = new File(url.substring(5));
+        else if (url.startsWith(File.separator)) file = new File(url);
+
+        return file;
+    }
+
+    /**
+     * Drop all cached descriptors.
+     */
+    public static void clear() {
+        _cache.clear();
+    }
+
+    /**
+     * Return the number of descriptors in the cache.
+     */
+    public static int getSize() {
+        return _cache.size();
+    }
+
+    /**
+     * Return the number of requests served from the cache.
+     */
+    public static long getHitCount() {
+        return _hits.get();
+    }
+
+    /**
+     * Return the number of requests that required parsing the NcML.
+     */
+    public static long getMissCount() {
+        return _misses.get();
+    }
+}
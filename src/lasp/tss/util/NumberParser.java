@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+/**
+ * Parse decimal numbers from a region of a CharSequence without making a String.
+ * Plain decimal numbers with no more than 15 significant digits and a small
+ * exponent (the vast majority of numbers in ASCII data files) are converted
+ * exactly with a single multiply or divide by a power of ten (Clinger's fast path).
+ * Anything else (NaN, Infinity, hexadecimal, long mantissas, big exponents, ...)
+ * is handed to Double.parseDouble, which also throws the NumberFormatException
+ * for text that is not a number.
+ */
+public class NumberParser {
+
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int MAX_DIGITS = 15;
+
+    /**
+     * Parse the characters from start (inclusive) to end (exclusive) as a double.
+     */
+    public static double parseDouble(CharSequence text, int start, int end) throws NumberFormatException {
+        int i = start;
+        boolean negative = false;
+        if (i < end) {
+            char c = text.charAt(i);
+            if (c == '-' || c == '+') {
+                negative = (c == '-');
+                i++;
+            }
+        }
+
+        long mantissa = 0;
+        int ndigit = 0; //significant digits
+        int exponent = 0; //power of ten to apply to the mantissa
+        boolean hasDigits = false;
+        boolean inFraction = false;
+
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+                if (mantissa == 0 && c == '0') { //leading zero, not significant
+                    if (inFraction) exponent--;
+                    continue;
+                }
+                if (++ndigit > MAX_DIGITS) return slowParse(text, start, end);
+                mantissa = mantissa * 10 + (c - '0');
+                if (inFraction) exponent--;
+            } else if (c == '.' && ! inFraction) {
+                inFraction = true;
+            } else break;
+        }
+
+        if (! hasDigits) return slowParse(text, start, end);
+
+        if (i < end) {
+            char c = text.charAt(i);
+            if (c != 'e' && c != 'E') return slowParse(text, start, end);
+            i++;
+            boolean negexp = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                negexp = (text.charAt(i) == '-');
+                i++;
+            }
+            if (i == end) return slowParse(text, start, end);
+            int exp = 0;
+            for (; i < end; i++) {
+                c = text.charAt(i);
+                if (c < '0' || c > '9' || exp > 1000) return slowParse(text, start, end);
+                exp = exp * 10 + (c - '0');
+            }
+            exponent += negexp ? -exp : exp;
+        }
+
+        double d;
+        if (mantissa == 0) d = 0.0;
+        else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) d = mantissa * POWERS_OF_TEN[exponent];
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) d = mantissa / POWERS_OF_TEN[-exponent];
+        else return slowParse(text, start, end);
+
+        return negative ? -d : d;
+    }
+
+    /**
+     * Parse the entire CharSequence as a double.
+     */
+    public static double parseDouble(CharSequence text) throws NumberFormatException {
+        return parseDouble(text, 0, text.length());
+    }
+
+    private static double slowParse(CharSequence text, int start, int end) {
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+}
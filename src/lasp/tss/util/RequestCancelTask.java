@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import lasp.tss.RequestCancelledException;
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
+import ucar.nc2.util.CancelTask;
+
+/**
+ * CancelTask for a single request so the work for it can be stopped when it is
+ * no longer wanted. It is cancelled when the client goes away (detected when
+ * writing the response fails) or when the request has taken longer than the
+ * "request.timeout" property (seconds, 0 for no limit).
+ * It is handed to NetCDF (and our IOSPs) and checked by the constraints and
+ * writers. The task for the request being handled by the current thread is
+ * also available from getCurrent, for code that isn't given it.
+ */
+public class RequestCancelTask implements CancelTask {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(RequestCancelTask.class);
+
+    private static ThreadLocal<RequestCancelTask> _current = new ThreadLocal<RequestCancelTask>();
+
+    /**
+     * Time (ms) after which the request is cancelled, 0 for no limit.
+     */
+    private long _deadline;
+
+    private volatile String _reason;
+    private String _error;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Construct a task for a request starting now with the deadline
+     * from the "request.timeout" property.
+     */
+    public RequestCancelTask() {
+        long timeout = 0;
+        try {
+            String s = TSSProperties.getProperty("request.timeout");
+            if (s != null) timeout = Long.parseLong(s.trim());
+        } catch (Exception e) {
+            _logger.warn("Invalid request.timeout, requests will not time out.", e);
+        }
+        if (timeout > 0) _deadline = System.currentTimeMillis() + timeout * 1000;
+    }
+
+    /**
+     * Return the task for the request being handled by the current thread.
+     * Null if there is none.
+     */
+    public static RequestCancelTask getCurrent() {
+        return _current.get();
+    }
+
+    /**
+     * Make this the task for the request being handled by the current thread.
+     */
+    public void start() {
+        _current.set(this);
+    }
+
+    /**
+     * Forget the task for the request being handled by the current thread.
+     */
+    public void end() {
+        _current.remove();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Cancel the request for the given reason.
+     */
+    public void cancel(String reason) {
+        if (_reason == null) {
+            _reason = reason;
+            _logger.info("Cancelling request: " + reason);
+        }
+    }
+
+    /**
+     * Has the request been cancelled or run out of time.
+     */
+    public boolean isCancel() {
+        if (_reason == null && _deadline > 0 && System.currentTimeMillis() > _deadline) {
+            cancel("The request exceeded the time limit.");
+        }
+        return _reason != null;
+    }
+
+    /**
+     * Throw a RequestCancelledException if the request has been cancelled.
+     */
+    public void check() {
+        if (isCancel()) throw new RequestCancelledException(_reason);
+    }
+
+    /**
+     * Throw a RequestCancelledException if the request being handled
+     * by the current thread has been cancelled.
+     */
+    public static void checkCurrent() {
+        RequestCancelTask task = getCurrent();
+        if (task != null) task.check();
+    }
+
+    /**
+     * Is the given task (e.g. one that NetCDF gave an IOSP) cancelled.
+     * If it is null, use the task for the request being handled by the current thread.
+     */
+    public static boolean isCancel(CancelTask task) {
+        if (task == null) task = getCurrent();
+        return task != null && task.isCancel();
+    }
+
+    /**
+     * Throw a RequestCancelledException if the given task, or the current request's
+     * if it is null, has been cancelled. Call this periodically while reading
+     * so we don't keep reading for a client that has gone away.
+     */
+    public static void check(CancelTask task) {
+        if (isCancel(task)) throw new RequestCancelledException("The request was cancelled.");
+    }
+
+    /**
+     * Return the reason the request was cancelled, null if it hasn't been.
+     */
+    public String getReason() {
+        return _reason;
+    }
+
+    /**
+     * Hook for NetCDF to report an error.
+     */
+    public void setError(String msg) {
+        _error = msg;
+    }
+
+    public String getError() {
+        return _error;
+    }
+
+    /**
+     * Hook for NetCDF to report progress. Not used.
+     */
+    public void setProgress(String msg, int progress) {}
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import lasp.tss.RequestCancelledException;
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesce identical requests that arrive while one is being handled
+ * (e.g. many clients loading the same plot) so the dataset is only built and
+ * the output only written once. The first request (the leader) runs as usual
+ * while what it writes is kept by its flight. Identical requests that arrive
+ * in the meantime (followers) write the leader's headers and bytes to their own
+ * clients as they are produced, starting from the beginning, instead of doing
+ * the work again.
+ *
+ * Requests are identical if they have the same request URL (dataset and suffix),
+ * canonical constraint expression and content coding.
+ * Followers don't start until the leader's response is committed, so a leader that
+ * is reset (e.g. turned away by its lane) lets them run on their own instead.
+ * The leader's output is kept up to "coalesce.max.size" megabytes (default 10,
+ * 0 disables coalescing). Beyond that no more followers may join and bytes are
+ * dropped once the current followers have written them.
+ */
+public class RequestFlight {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(RequestFlight.class);
+
+    public static final long DEFAULT_SIZE = 10;
+
+    /**
+     * Seal the bytes being written into a chunk for the followers once there are this many.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private static ConcurrentMap<String, RequestFlight> _flights = new ConcurrentHashMap<String, RequestFlight>();
+
+    private static AtomicLong _led = new AtomicLong();
+    private static AtomicLong _followed = new AtomicLong();
+
+    private String _key;
+    private long _maxSize;
+
+    /**
+     * The leader's headers and the bytes it has written, in chunks.
+     * A header's value is a String, a Long for a date or an Integer.
+     * Chunks that no follower needs any more are set to null.
+     * Guarded by synchronizing on this flight.
+     */
+    private String _contentType;
+    private List<Object[]> _headers = new ArrayList<Object[]>();
+    private List<byte[]> _chunks = new ArrayList<byte[]>();
+    private ByteArrayOutputStream _tail = new ByteArrayOutputStream();
+    private long _size;
+
+    /**
+     * The index of the next chunk for each follower.
+     */
+    private Set<int[]> _followers = new HashSet<int[]>();
+
+    private boolean _committed; //followers may start
+    private boolean _joinable = true;
+    private boolean _abandoned;
+    private boolean _done;
+
+  //------------------------------------------------------------------------
+
+    private RequestFlight(String key, long maxSize) {
+        _key = key;
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Return the key for the given request with the given content coding
+     * (e.g. "gzip", null if none).
+     * Return null if coalescing is disabled or the constraint expression can't be parsed.
+     */
+    public static String makeKey(HttpServletRequest request, String encoding) {
+        if (getMaxSize() <= 0) return null;
+        return ResponseCache.makeRequestKey(request, encoding);
+    }
+
+    /**
+     * Return the flight in progress for the given key. Null if there is none.
+     */
+    public static RequestFlight getFlight(String key) {
+        return _flights.get(key);
+    }
+
+    /**
+     * Start a flight for the given key. The leader must write its response
+     * through the response from wrap and call end when it is done.
+     * Return null if another request got there first.
+     */
+    public static RequestFlight lead(String key) {
+        RequestFlight flight = new RequestFlight(key, getMaxSize());
+        if (_flights.putIfAbsent(key, flight) != null) return null;
+        _led.incrementAndGet();
+        return flight;
+    }
+
+    /**
+     * Return the maximum number of bytes (converted from the "coalesce.max.size"
+     * property in megabytes) of a leader's output to keep for followers.
+     */
+    private static long getMaxSize() {
+        long size = DEFAULT_SIZE;
+        try {
+            String s = TSSProperties.getProperty("coalesce.max.size");
+            if (s != null) size = Long.parseLong(s.trim());
+        } catch (Exception e) {
+            _logger.warn("Invalid coalesce.max.size, using default.", e);
+        }
+        return size * 1024 * 1024;
+    }
+
+  //----- Leader -----------------------------------------------------------
+
+    /**
+     * Wrap the leader's response so the followers get what is written to it.
+     */
+    public HttpServletResponse wrap(HttpServletResponse response) {
+        return new LeaderResponse(response);
+    }
+
+    /**
+     * The leader is done. Followers get the rest of what it wrote.
+     */
+    public void end() {
+        synchronized (this) {
+            seal();
+            _done = true;
+            _joinable = false;
+            release();
+            notifyAll();
+        }
+        _flights.remove(_key, this);
+    }
+
+    private synchronized void append(byte[] b, int off, int len) {
+        if (_abandoned || _done) return;
+        _tail.write(b, off, len);
+        if (_tail.size() >= CHUNK_SIZE) seal();
+    }
+
+    /**
+     * Make the bytes written so far available to the followers.
+     */
+    private synchronized void seal() {
+        if (_tail.size() == 0) return;
+        _chunks.add(_tail.toByteArray());
+        _size += _tail.size();
+        _tail.reset();
+
+        if (_joinable && _size > _maxSize) {
+            //Too big to keep, no one else can join.
+            _joinable = false;
+            _flights.remove(_key, this);
+        }
+        release();
+        notifyAll();
+    }
+
+    /**
+     * Drop the chunks that the followers are done with, if no one else can join.
+     */
+    private void release() {
+        if (_joinable) return;
+        int min = _chunks.size();
+        for (int[] next : _followers) min = Math.min(min, next[0]);
+        for (int i=0; i<min; i++) _chunks.set(i, null);
+    }
+
+    private synchronized void commit() {
+        if (_abandoned || _committed) return;
+        seal();
+        _committed = true;
+        notifyAll();
+    }
+
+    /**
+     * The leader's response was reset before it was committed. The followers are on their own.
+     */
+    private synchronized void abandon() {
+        if (_committed || _abandoned) return;
+        _abandoned = true;
+        _joinable = false;
+        _chunks.clear();
+        _tail.reset();
+        _flights.remove(_key, this);
+        notifyAll();
+    }
+
+    private synchronized void setContentType(String type) {
+        _contentType = type;
+    }
+
+    private synchronized void setHeader(String name, Object value) {
+        for (int i=0; i<_headers.size(); i++) {
+            if (((String) _headers.get(i)[0]).equalsIgnoreCase(name)) _headers.remove(i--);
+        }
+        _headers.add(new Object[] {name, value});
+    }
+
+    private synchronized void addHeader(String name, Object value) {
+        _headers.add(new Object[] {name, value});
+    }
+
+    private synchronized boolean hasFollowers() {
+        return ! _followers.isEmpty();
+    }
+
+  //----- Followers --------------------------------------------------------
+
+    /**
+     * Write the leader's response to the given response as it is produced.
+     * Return false if we can't follow this flight, in which case nothing has been
+     * written and the request should be handled on its own.
+     */
+    public boolean follow(HttpServletResponse response, RequestCancelTask cancelTask) {
+        int[] next = new int[1]; //index of the next chunk to write
+        synchronized (this) {
+            if (! _joinable) return false;
+            _followers.add(next); //keep the chunks for us
+        }
+
+        try {
+            //Wait for the leader to commit its response.
+            String contentType;
+            List<Object[]> headers;
+            synchronized (this) {
+                while (! (_committed || _done || _abandoned)) {
+                    if (cancelTask != null) cancelTask.check();
+                    wait(100);
+                }
+                if (_abandoned) return false;
+                contentType = _contentType;
+                headers = new ArrayList<Object[]>(_headers);
+            }
+            _followed.incrementAndGet();
+            _logger.debug("Following the response for: " + _key);
+
+            if (contentType != null) response.setContentType(contentType);
+            for (Object[] header : headers) {
+                String name = (String) header[0];
+                Object value = header[1];
+                if (value instanceof Long) response.addDateHeader(name, (Long) value);
+                else if (value instanceof Integer) response.addIntHeader(name, (Integer) value);
+                else response.addHeader(name, (String) value);
+            }
+
+            OutputStream out = response.getOutputStream();
+            while (true) {
+                byte[] chunk;
+                synchronized (this) {
+                    while (next[0] == _chunks.size() && ! _done) {
+                        if (cancelTask != null) cancelTask.check();
+                        wait(100);
+                    }
+                    if (next[0] == _chunks.size()) break; //done
+                    chunk = _chunks.get(next[0]++);
+                    release();
+                }
+                out.write(chunk);
+                out.flush(); //keep up with the leader
+            }
+        } catch (IOException e) {
+            if (cancelTask != null) cancelTask.cancel("Unable to write to the client.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestCancelledException("Interrupted while following another request.");
+        } finally {
+            synchronized (this) {
+                _followers.remove(next);
+                release();
+            }
+        }
+
+        return true;
+    }
+
+  //----- Metrics ----------------------------------------------------------
+
+    /**
+     * Return the number of requests that ran for others to follow.
+     */
+    public static long getLeaderCount() {
+        return _led.get();
+    }
+
+    /**
+     * Return the number of requests that were served by following another.
+     */
+    public static long getFollowerCount() {
+        return _followed.get();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Wrap the leader's response to pass on what is written to it to the flight.
+     */
+    private class LeaderResponse extends HttpServletResponseWrapper {
+
+        private ServletOutputStream _outputStream;
+        private PrintWriter _writer;
+        private boolean _clientGone;
+
+        LeaderResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        private void checkCommitted() {
+            if (super.isCommitted()) commit();
+        }
+
+        /**
+         * Write to the leader's client and pass the bytes on to the followers.
+         * If the leader's client goes away, keep going as long as someone is following.
+         */
+        private void write(OutputStream out, byte[] b, int off, int len) throws IOException {
+            if (! _clientGone) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    _clientGone = true;
+                    _logger.debug("The leader's client went away.", e);
+                }
+            }
+            append(b, off, len);
+            checkGone();
+            checkCommitted();
+        }
+
+        private void flush(OutputStream out) throws IOException {
+            if (! _clientGone) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    _clientGone = true;
+                    _logger.debug("The leader's client went away.", e);
+                }
+            }
+            seal();
+            checkGone();
+            checkCommitted();
+        }
+
+        private void checkGone() throws IOException {
+            if (_clientGone && ! hasFollowers()) throw new IOException("The client went away and no one is following.");
+        }
+
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (_outputStream == null) {
+                final ServletOutputStream out = super.getOutputStream();
+                _outputStream = new ServletOutputStream() {
+                    private byte[] _byte = new byte[1];
+
+                    public void write(int b) throws IOException {
+                        _byte[0] = (byte) b;
+                        LeaderResponse.this.write(out, _byte, 0, 1);
+                    }
+
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        LeaderResponse.this.write(out, b, off, len);
+                    }
+
+                    public void flush() throws IOException {
+                        LeaderResponse.this.flush(out);
+                    }
+                };
+            }
+            return _outputStream;
+        }
+
+        public PrintWriter getWriter() throws IOException {
+            if (_writer == null) {
+                String encoding = getCharacterEncoding();
+                _writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding));
+            }
+            return _writer;
+        }
+
+        public void flushBuffer() throws IOException {
+            if (_writer != null) _writer.flush();
+            seal();
+            if (! _clientGone) super.flushBuffer();
+            commit();
+        }
+
+        public void reset() {
+            super.reset();
+            abandon();
+            _outputStream = null;
+            _writer = null;
+        }
+
+        public void resetBuffer() {
+            super.resetBuffer();
+            abandon();
+        }
+
+        public void setContentType(String type) {
+            super.setContentType(type);
+            RequestFlight.this.setContentType(type);
+        }
+
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            RequestFlight.this.setHeader(name, value);
+        }
+
+        public void addHeader(String name, String value) {
+            super.addHeader(name, value);
+            RequestFlight.this.addHeader(name, value);
+        }
+
+        public void setDateHeader(String name, long date) {
+            super.setDateHeader(name, date);
+            RequestFlight.this.setHeader(name, date);
+        }
+
+        public void addDateHeader(String name, long date) {
+            super.addDateHeader(name, date);
+            RequestFlight.this.addHeader(name, date);
+        }
+
+        public void setIntHeader(String name, int value) {
+            super.setIntHeader(name, value);
+            RequestFlight.this.setHeader(name, value);
+        }
+
+        public void addIntHeader(String name, int value) {
+            super.addIntHeader(name, value);
+            RequestFlight.this.addHeader(name, value);
+        }
+
+        public void setStatus(int sc) {
+            super.setStatus(sc);
+            if (sc != SC_OK) abandon();
+        }
+
+        public void sendError(int sc) throws IOException {
+            abandon();
+            super.sendError(sc);
+        }
+
+        public void sendError(int sc, String msg) throws IOException {
+            abandon();
+            super.sendError(sc, msg);
+        }
+    }
+}
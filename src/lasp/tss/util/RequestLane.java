@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control for requests. Each output type (suffix) is assigned to a lane
+ * by the writer.<suffix>.lane property: "metadata" for cheap requests (e.g. dds, das,
+ * help) or "data" (the default) for everything else. Each lane runs a bounded
+ * number of requests at a time ("lane.<name>.threads") so a few big data requests
+ * can't hold up the cheap ones. Other requests wait their turn, but no more than
+ * "lane.<name>.queue" of them and for no longer than "lane.timeout" seconds.
+ * Requests that can't get in are rejected so the server can respond with
+ * 503 (Service Unavailable) and a Retry-After of "lane.retry.after" seconds.
+ * Work that a request splits among threads (e.g. binning) uses no more than its
+ * lane's share of the processors, see getParallelism.
+ */
+public class RequestLane {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(RequestLane.class);
+
+    public static final String DATA = "data";
+    public static final String METADATA = "metadata";
+
+    private static Map<String, RequestLane> _lanes = new ConcurrentHashMap<String, RequestLane>();
+
+    /**
+     * The lane of the request being handled by the current thread.
+     */
+    private static ThreadLocal<RequestLane> _current = new ThreadLocal<RequestLane>();
+
+    private String _name;
+    private Semaphore _permits;
+    private int _threads;
+    private int _maxQueue;
+    private AtomicInteger _waiting = new AtomicInteger();
+
+    private AtomicLong _admitted = new AtomicLong();
+    private AtomicLong _rejected = new AtomicLong();
+
+  //------------------------------------------------------------------------
+
+    private RequestLane(String name, int threads, int maxQueue) {
+        _name = name;
+        _threads = threads;
+        _permits = new Semaphore(threads, true); //first come, first served
+        _maxQueue = maxQueue;
+    }
+
+    /**
+     * Return the lane for requests of the given output type (suffix).
+     */
+    public static RequestLane getLane(String type) {
+        String name = TSSProperties.getProperty("writer." + type + ".lane", DATA).trim();
+
+        RequestLane lane = _lanes.get(name);
+        if (lane == null) {
+            synchronized (_lanes) {
+                lane = _lanes.get(name);
+                if (lane == null) {
+                    int threads = ServerUtils.getIntProperty("lane." + name + ".threads", 8);
+                    int queue = ServerUtils.getIntProperty("lane." + name + ".queue", 32);
+                    lane = new RequestLane(name, threads, queue);
+                    _lanes.put(name, lane);
+                    _logger.info("Created the " + name + " request lane with " + threads + " threads and a queue of " + queue);
+                }
+            }
+        }
+
+        return lane;
+    }
+
+    /**
+     * Return the lanes that have been used.
+     */
+    public static Collection<RequestLane> getLanes() {
+        return new ArrayList<RequestLane>(_lanes.values());
+    }
+
+    /**
+     * Return the number of seconds that a rejected client should wait before trying again.
+     */
+    public static int getRetryAfter() {
+        return ServerUtils.getIntProperty("lane.retry.after", 10);
+    }
+
+    /**
+     * Return the number of threads that the request being handled by the current
+     * thread may use at a time: the processors divided among the requests that
+     * its lane may run at a time, at least one. All the processors if the current
+     * thread isn't running a request (e.g. a background task).
+     */
+    public static int getParallelism() {
+        int nproc = Runtime.getRuntime().availableProcessors();
+        RequestLane lane = _current.get();
+        if (lane == null) return nproc;
+        return Math.max(1, nproc / lane._threads);
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Wait for a turn to run a request in this lane.
+     * Return false if the queue is full or the wait timed out.
+     * A request that gets in must call exit when it is done.
+     */
+    public boolean enter() {
+        //Don't wait in line if we don't have to.
+        if (tryAcquire(0)) {
+            _admitted.incrementAndGet();
+            _current.set(this);
+            return true;
+        }
+
+        if (_waiting.incrementAndGet() > _maxQueue) {
+            _waiting.decrementAndGet();
+            _rejected.incrementAndGet();
+            return false;
+        }
+
+        boolean b = false;
+        try {
+            b = tryAcquire(ServerUtils.getIntProperty("lane.timeout", 30));
+        } finally {
+            _waiting.decrementAndGet();
+        }
+
+        if (b) {
+            _admitted.incrementAndGet();
+            _current.set(this);
+        } else _rejected.incrementAndGet();
+        return b;
+    }
+
+    /**
+     * Wait up to the given number of seconds for a turn, in order of arrival.
+     */
+    private boolean tryAcquire(long timeout) {
+        try {
+            return _permits.tryAcquire(timeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Give up our turn so the next request can run.
+     */
+    public void exit() {
+        _current.remove();
+        _permits.release();
+    }
+
+  //------------------------------------------------------------------------
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Return the number of requests waiting for a turn.
+     */
+    public int getQueueLength() {
+        return _waiting.get();
+    }
+
+    /**
+     * Return the number of requests running in this lane.
+     */
+    public int getActiveCount() {
+        return _threads - _permits.availablePermits();
+    }
+
+    /**
+     * Return the number of requests that were let in.
+     */
+    public long getAdmittedCount() {
+        return _admitted.get();
+    }
+
+    /**
+     * Return the number of requests that were turned away.
+     */
+    public long getRejectedCount() {
+        return _rejected.get();
+    }
+
+    public String toString() {
+        return _name;
+    }
+}
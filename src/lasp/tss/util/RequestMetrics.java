@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collect statistics about the requests that have been handled since the server started:
+ * - latency histogram and bytes out for each dataset and output type (suffix)
+ * - number of requests with each status code
+ * - number of requests for each dataset and output type with each outcome (ok, error, cancelled, rejected),
+ *   since the error page is written with a 200 status
+ * - total time spent in each phase of the requests (see RequestTimer)
+ * These are exposed by the MetricsWriter.
+ */
+public class RequestMetrics {
+
+    /**
+     * Upper bounds (seconds) of the latency histogram buckets.
+     */
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * Outcomes of a request: written, failed (the error page was written),
+     * cancelled (e.g. the client went away or it took too long), or turned away because the server was busy.
+     */
+    public static final String OK = "ok";
+    public static final String ERROR = "error";
+    public static final String CANCELLED = "cancelled";
+    public static final String REJECTED = "rejected";
+
+    private static Map<String, Series> _series = new ConcurrentHashMap<String, Series>();
+    private static Map<Integer, AtomicLong> _statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+    private static Map<String, AtomicLong> _phaseTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Statistics for the requests for one dataset and output type.
+     */
+    public static class Series {
+        private String _dataset;
+        private String _type;
+        private AtomicLongArray _buckets = new AtomicLongArray(BUCKETS.length);
+        private AtomicLong _count = new AtomicLong();
+        private AtomicLong _nanos = new AtomicLong();
+        private AtomicLong _bytes = new AtomicLong();
+        private Map<String, AtomicLong> _outcomeCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+        private Series(String dataset, String type) {
+            _dataset = dataset;
+            _type = type;
+        }
+
+        private void add(long nanos, long bytes, String outcome) {
+            getCounter(_outcomeCounts, outcome).incrementAndGet();
+
+            double seconds = nanos / 1e9;
+            for (int i=0; i<BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    _buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            _count.incrementAndGet();
+            _nanos.addAndGet(nanos);
+            _bytes.addAndGet(bytes);
+        }
+
+        /**
+         * Return the name of the dataset, empty if the request was not for a dataset.
+         */
+        public String getDataset() {
+            return _dataset;
+        }
+
+        /**
+         * Return the output type (suffix), empty if it was not valid.
+         */
+        public String getType() {
+            return _type;
+        }
+
+        /**
+         * Return the number of requests that took no longer than each of the bucket bounds.
+         */
+        public long[] getCumulativeCounts() {
+            long[] counts = new long[BUCKETS.length];
+            long n = 0;
+            for (int i=0; i<BUCKETS.length; i++) {
+                n += _buckets.get(i);
+                counts[i] = n;
+            }
+            return counts;
+        }
+
+        public long getCount() {
+            return _count.get();
+        }
+
+        /**
+         * Return the total time (seconds) taken by the requests.
+         */
+        public double getSeconds() {
+            return _nanos.get() / 1e9;
+        }
+
+        /**
+         * Return the total number of bytes written for the requests.
+         */
+        public long getBytes() {
+            return _bytes.get();
+        }
+
+        /**
+         * Return the number of requests with each outcome.
+         */
+        public Map<String, Long> getOutcomeCounts() {
+            return getCounts(_outcomeCounts);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Record a completed request with its outcome (OK, ERROR, CANCELLED or REJECTED).
+     * The dataset and type should only be given if they are valid so
+     * a client can't make up an endless number of series.
+     */
+    public static void record(String dataset, String type, int status, String outcome, RequestTimer timer, long bytes) {
+        if (dataset == null) dataset = "";
+        if (type == null) type = "";
+
+        String key = dataset + "\n" + type;
+        Series series = _series.get(key);
+        if (series == null) {
+            synchronized (_series) {
+                series = _series.get(key);
+                if (series == null) {
+                    series = new Series(dataset, type);
+                    _series.put(key, series);
+                }
+            }
+        }
+        series.add(timer.getElapsedTime(), bytes, outcome);
+
+        getCounter(_statusCounts, status).incrementAndGet();
+
+        for (Map.Entry<String, Long> entry : timer.getTimes().entrySet()) {
+            getCounter(_phaseTimes, entry.getKey()).addAndGet(entry.getValue());
+        }
+    }
+
+    private static <K> AtomicLong getCounter(Map<K, AtomicLong> counters, K key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            synchronized (counters) {
+                counter = counters.get(key);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    counters.put(key, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    private static <K extends Comparable<K>> Map<K, Long> getCounts(Map<K, AtomicLong> counters) {
+        Map<K, Long> counts = new TreeMap<K, Long>();
+        for (Map.Entry<K, AtomicLong> entry : counters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the upper bounds (seconds) of the latency histogram buckets.
+     */
+    public static double[] getBuckets() {
+        return BUCKETS.clone();
+    }
+
+    /**
+     * Return the statistics for each dataset and output type that has been requested.
+     */
+    public static List<Series> getSeries() {
+        return new ArrayList<Series>(_series.values());
+    }
+
+    /**
+     * Return the number of requests with each status code.
+     */
+    public static Map<Integer, Long> getStatusCounts() {
+        return getCounts(_statusCounts);
+    }
+
+    /**
+     * Return the total time (seconds) spent in the given phase by all requests.
+     */
+    public static double getPhaseSeconds(String phase) {
+        AtomicLong t = _phaseTimes.get(phase);
+        return t == null ? 0 : t.get() / 1e9;
+    }
+}
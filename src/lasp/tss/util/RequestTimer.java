@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keep track of where the time goes while handling a request.
+ * The work is broken into phases (e.g. reading the NcML, reading data, encoding
+ * the output). Phases may be nested (e.g. a granule is read while the IOSP is
+ * opened while the NcML is read). Time is charged to the innermost phase only,
+ * so the phase times add up to no more than the elapsed time.
+ * The timer for the request being handled by the current thread is available
+ * from getCurrent so code can mark its phases with enterPhase and exitPhase
+ * without being handed the timer. Those do nothing if there is no timer.
+ */
+public class RequestTimer {
+
+    public static final String CATALOG   = "catalog";   //find the dataset's NcML
+    public static final String NCML      = "ncml";      //parse the NcML
+    public static final String OPEN      = "open";      //open the IOSP
+    public static final String CONSTRAIN = "constrain"; //apply the constraints
+    public static final String READ      = "read";      //read data
+    public static final String FILTER    = "filter";    //apply filters to the data
+    public static final String ENCODE    = "encode";    //write the output
+    public static final String FLUSH     = "flush";     //finish and flush the output
+
+    /**
+     * The phases in the order that they generally happen.
+     */
+    public static final String[] PHASES = {CATALOG, NCML, OPEN, CONSTRAIN, READ, FILTER, ENCODE, FLUSH};
+
+    private static ThreadLocal<RequestTimer> _current = new ThreadLocal<RequestTimer>();
+
+    private long _start = System.nanoTime();
+    private long _end;
+    private boolean _ended;
+
+    /**
+     * Nanoseconds spent in each phase.
+     */
+    private Map<String, Long> _times = new LinkedHashMap<String, Long>();
+
+    /**
+     * The phase we are in (null if none), when we got there,
+     * and the phases it is nested within.
+     */
+    private String _phase;
+    private long _since;
+    private LinkedList<String> _outer = new LinkedList<String>();
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the timer for the request being handled by the current thread.
+     * Null if there is none.
+     */
+    public static RequestTimer getCurrent() {
+        return _current.get();
+    }
+
+    /**
+     * Make this the timer for the request being handled by the current thread.
+     */
+    public void start() {
+        _current.set(this);
+    }
+
+    /**
+     * Stop the clock and forget the timer for the request being handled by the current thread.
+     */
+    public void end() {
+        while (_phase != null) exit();
+        _end = System.nanoTime();
+        _ended = true;
+        _current.remove();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Start charging time to the given phase until exit is called.
+     */
+    public void enter(String phase) {
+        long now = System.nanoTime();
+        if (_phase != null) {
+            charge(_phase, now - _since);
+            _outer.addLast(_phase);
+        }
+        _phase = phase;
+        _since = now;
+    }
+
+    /**
+     * Leave the current phase and go back to the phase it is nested within, if any.
+     */
+    public void exit() {
+        if (_phase == null) return;
+        long now = System.nanoTime();
+        charge(_phase, now - _since);
+        _phase = _outer.isEmpty() ? null : _outer.removeLast();
+        _since = now;
+    }
+
+    private void charge(String phase, long nanos) {
+        Long t = _times.get(phase);
+        _times.put(phase, t == null ? nanos : t + nanos);
+    }
+
+    /**
+     * Enter the given phase of the request being handled by the current thread, if it is timed.
+     */
+    public static void enterPhase(String phase) {
+        RequestTimer timer = getCurrent();
+        if (timer != null) timer.enter(phase);
+    }
+
+    /**
+     * Exit the current phase of the request being handled by the current thread, if it is timed.
+     */
+    public static void exitPhase() {
+        RequestTimer timer = getCurrent();
+        if (timer != null) timer.exit();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the nanoseconds since the timer was made, until it was ended.
+     */
+    public long getElapsedTime() {
+        long end = _ended ? _end : System.nanoTime();
+        return end - _start;
+    }
+
+    /**
+     * Return the nanoseconds spent in the given phase.
+     */
+    public long getTime(String phase) {
+        Long t = _times.get(phase);
+        return t == null ? 0 : t;
+    }
+
+    /**
+     * Return the nanoseconds spent in each phase that was entered, in the order they were first entered.
+     */
+    public Map<String, Long> getTimes() {
+        return _times;
+    }
+
+    /**
+     * Return the elapsed time and the time spent in each phase, in milliseconds.
+     * e.g. "total=12.5ms catalog=0.1ms ncml=2.0ms ..."
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total=").append(toMillis(getElapsedTime())).append("ms");
+        for (Map.Entry<String, Long> entry : _times.entrySet()) {
+            sb.append(" ").append(entry.getKey()).append("=").append(toMillis(entry.getValue())).append("ms");
+        }
+        return sb.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
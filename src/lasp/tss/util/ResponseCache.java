@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lasp.tss.TSSProperties;
+import lasp.tss.constraint.ConstraintExpression;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide cache of complete responses so repeated requests need not
+ * construct the dataset and write the output again.
+ * Responses are keyed by the request URL (which includes the dataset name and
+ * suffix) and the canonical form of the constraint expression, so equivalent
+ * constraints in a different order or encoding share an entry.
+ * A response is valid as long as the NcML and data files of the dataset
+ * (its SourceSignature) have not changed. Datasets with sources that are not
+ * local files are not cached.
+ *
+ * The most recently used responses are kept in memory, up to "response.cache.size"
+ * megabytes (0 disables the cache). If "response.cache.dir" is defined, responses
+ * evicted from memory are saved there, up to "response.cache.disk.size" megabytes.
+ * Responses bigger than a tenth of the memory cache are not cached.
+ */
+public class ResponseCache {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ResponseCache.class);
+
+    public static final long DEFAULT_SIZE = 50;
+    public static final long DEFAULT_DISK_SIZE = 500;
+
+    /**
+     * Responses in memory in access order, least recently used first.
+     * Guarded by synchronizing on the map.
+     */
+    private static LinkedHashMap<String, CachedResponse> _memory = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private static long _memorySize;
+
+    /**
+     * Size of each file in the disk cache in access order. Null until the
+     * directory is first scanned. Guarded by synchronizing on the class.
+     */
+    private static LinkedHashMap<String, Long> _disk;
+    private static long _diskSize;
+
+    private static AtomicLong _hits = new AtomicLong();
+    private static AtomicLong _diskHits = new AtomicLong();
+    private static AtomicLong _misses = new AtomicLong();
+    private static AtomicLong _evictions = new AtomicLong();
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the key for the given request with the given content coding
+     * (e.g. "gzip", null if none). Compressed responses are cached as they are sent.
+     * Return null if the cache is disabled or the constraint expression can't be parsed.
+     */
+    public static String makeKey(HttpServletRequest request, String encoding) {
+        if (getMaxSize() <= 0) return null;
+        return makeRequestKey(request, encoding);
+    }
+
+    /**
+     * Return the key for the given request with the given content coding
+     * whether or not the cache is enabled. Requests with the same key get the
+     * same response (see also RequestFlight).
+     * Return null if the constraint expression can't be parsed.
+     */
+    public static String makeRequestKey(HttpServletRequest request, String encoding) {
+        String ce = null;
+        try {
+            ce = ConstraintExpression.canonicalize(request.getQueryString());
+        } catch (Exception e) {
+            return null; //let the request fail the usual way
+        }
+
+        String key = request.getRequestURL() + "?" + ce;
+        if (encoding != null) key += "|" + encoding;
+        return key;
+    }
+
+    /**
+     * Return the cached response for the given key if it was made from
+     * sources in the state described by the given signature.
+     */
+    public static CachedResponse get(String key, SourceSignature signature) {
+        String sig = signature.toString();
+
+        CachedResponse response;
+        synchronized (_memory) {
+            response = _memory.get(key);
+            if (response != null && ! sig.equals(response.getSignature())) {
+                _memory.remove(key);
+                _memorySize -= response.getSize();
+                response = null;
+            }
+        }
+
+        if (response != null) {
+            _hits.incrementAndGet();
+            return response;
+        }
+
+        response = readFromDisk(key);
+        if (response != null && sig.equals(response.getSignature())) {
+            _hits.incrementAndGet();
+            _diskHits.incrementAndGet();
+            put(key, response); //back into memory
+            return response;
+        }
+
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the response made from sources in the state described by the given signature.
+     */
+    public static void put(String key, SourceSignature signature, CachedResponse response) {
+        response.setSignature(signature.toString());
+        put(key, response);
+    }
+
+    /**
+     * Add the response to the memory cache, moving the least recently used
+     * responses to disk to make room for it.
+     */
+    private static void put(String key, CachedResponse response) {
+        long max = getMaxSize();
+        List<Map.Entry<String, CachedResponse>> evicted = new ArrayList<Map.Entry<String, CachedResponse>>();
+
+        synchronized (_memory) {
+            CachedResponse old = _memory.put(key, response);
+            if (old != null) _memorySize -= old.getSize();
+            _memorySize += response.getSize();
+
+            Iterator<Map.Entry<String, CachedResponse>> it = _memory.entrySet().iterator();
+            while (_memorySize > max && it.hasNext()) {
+                Map.Entry<String, CachedResponse> entry = it.next();
+                if (entry.getKey().equals(key)) continue;
+                _memorySize -= entry.getValue().getSize();
+                evicted.add(entry);
+                it.remove();
+                _evictions.incrementAndGet();
+            }
+        }
+
+        for (Map.Entry<String, CachedResponse> entry : evicted) {
+            writeToDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Return the largest response that may be cached (bytes).
+     */
+    public static int getMaxEntrySize() {
+        return (int) Math.min(getMaxSize() / 10, Integer.MAX_VALUE);
+    }
+
+  //----- Disk -------------------------------------------------------------
+
+    /**
+     * Return the disk cache directory, null if there is none.
+     */
+    private static File getDirectory() {
+        String dir = TSSProperties.getProperty("response.cache.dir");
+        if (dir == null || dir.trim().length() == 0) return null;
+        return new File(dir.trim());
+    }
+
+    /**
+     * Return the name of the file for the given key.
+     */
+    private static String getFileName(String key) {
+        return ServerUtils.digest(key, "MD5") + ".rsp";
+    }
+
+    private static CachedResponse readFromDisk(String key) {
+        File dir = getDirectory();
+        if (dir == null) return null;
+
+        String name = getFileName(key);
+        synchronized (ResponseCache.class) {
+            if (! getDiskIndex(dir).containsKey(name)) return null;
+        }
+
+        CachedResponse response = null;
+        File file = new File(dir, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            response = CachedResponse.readFrom(in, key);
+        } catch (Exception e) {
+            _logger.warn("Unable to read cached response: " + file, e);
+        } finally {
+            try {if (in != null) in.close();} catch (Exception e) {}
+        }
+
+        return response;
+    }
+
+    private static void writeToDisk(String key, CachedResponse response) {
+        File dir = getDirectory();
+        if (dir == null) return;
+
+        String name = getFileName(key);
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + ".tmp");
+        DataOutputStream out = null;
+        try {
+            dir.mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            response.writeTo(out, key);
+            out.close();
+            out = null;
+
+            synchronized (ResponseCache.class) {
+                Map<String, Long> index = getDiskIndex(dir);
+                Long old = index.remove(name);
+                if (old != null) _diskSize -= old.longValue();
+                file.delete();
+                if (! tmp.renameTo(file)) throw new Exception("Unable to rename " + tmp);
+                index.put(name, new Long(file.length()));
+                _diskSize += file.length();
+                evictFromDisk(dir, name);
+            }
+        } catch (Exception e) {
+            _logger.warn("Unable to write cached response: " + file, e);
+            tmp.delete();
+        } finally {
+            try {if (out != null) out.close();} catch (Exception e) {}
+        }
+    }
+
+    /**
+     * Delete the least recently used files, other than the given one, until
+     * the disk cache is no bigger than its maximum size.
+     */
+    private static void evictFromDisk(File dir, String keep) {
+        long max = getMaxDiskSize();
+        Iterator<Map.Entry<String, Long>> it = _disk.entrySet().iterator();
+        while (_diskSize > max && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) continue;
+            new File(dir, entry.getKey()).delete();
+            _diskSize -= entry.getValue().longValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Return the index of the files in the disk cache.
+     * Scan the directory, oldest first, the first time.
+     */
+    private static Map<String, Long> getDiskIndex(File dir) {
+        if (_disk == null) {
+            _disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+            _diskSize = 0;
+
+            File[] files = dir.listFiles();
+            if (files == null) files = new File[0];
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long t1 = f1.lastModified();
+                    long t2 = f2.lastModified();
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+
+            for (File file : files) {
+                if (! file.getName().endsWith(".rsp")) continue;
+                _disk.put(file.getName(), new Long(file.length()));
+                _diskSize += file.length();
+            }
+        }
+        return _disk;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the maximum size of the memory cache in bytes.
+     */
+    private static long getMaxSize() {
+        return getSizeProperty("response.cache.size", DEFAULT_SIZE);
+    }
+
+    /**
+     * Return the maximum size of the disk cache in bytes.
+     */
+    private static long getMaxDiskSize() {
+        return getSizeProperty("response.cache.disk.size", DEFAULT_DISK_SIZE);
+    }
+
+    private static long getSizeProperty(String name, long defaultSize) {
+        long mb = defaultSize;
+        try {
+            String s = TSSProperties.getProperty(name);
+            if (s != null) mb = Long.parseLong(s.trim());
+        } catch (Exception e) {
+            _logger.warn("Invalid " + name + ", using default.", e);
+        }
+        return mb * 1024 * 1024;
+    }
+
+    /**
+     * Drop all cached responses, from memory and disk.
+     */
+    public static void clear() {
+        synchronized (_memory) {
+            _memory.clear();
+            _memorySize = 0;
+        }
+
+        File dir = getDirectory();
+        synchronized (ResponseCache.class) {
+            if (dir != null && _disk != null) {
+                for (String name : _disk.keySet()) new File(dir, name).delete();
+            }
+            _disk = null;
+            _diskSize = 0;
+        }
+    }
+
+    /**
+     * Return the number of responses in memory.
+     */
+    public static int getCount() {
+        synchronized (_memory) {
+            return _memory.size();
+        }
+    }
+
+    /**
+     * Return the total size of the responses in memory (bytes).
+     */
+    public static long getSize() {
+        synchronized (_memory) {
+            return _memorySize;
+        }
+    }
+
+    /**
+     * Return the number of requests served from the cache (memory or disk).
+     */
+    public static long getHitCount() {
+        return _hits.get();
+    }
+
+    /**
+     * Return the number of requests served from the disk cache.
+     */
+    public static long getDiskHitCount() {
+        return _diskHits.get();
+    }
+
+    /**
+     * Return the number of cacheable requests that were not in the cache.
+     */
+    public static long getMissCount() {
+        return _misses.get();
+    }
+
+    /**
+     * Return the number of responses moved out of memory to make room for others.
+     */
+    public static long getEvictionCount() {
+        return _evictions.get();
+    }
+}
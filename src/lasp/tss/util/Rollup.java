@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One level of the precomputed bins of a variable of a dataset, as the
+ * BinningFilter would make them, so a "binave" with a bin width that is a
+ * multiple of the level can combine these instead of reading every sample.
+ * Each bin has the number of samples, the sum of the values and of the times,
+ * the min and max value, and the first and last time.
+ * Bins start at the first time of the dataset (the origin).
+ *
+ * The levels (bin widths in the dataset's time units) are defined for each dataset
+ * by the "rollup.levels.<dataset name>" property, e.g. "60000,3600000,86400000".
+ * The files live in the "rollup.dir" directory (default "rollups" in the dataset.dir)
+ * and are made by the RollupBuilder. Each records the state of the dataset's
+ * sources (see SourceSignature) so one that is out of date won't be used.
+ * A Rollup keeps its file open from reading the header until it is closed,
+ * so it reads the same file even if the RollupBuilder replaces it meanwhile.
+ *
+ * The format (big-endian) is:
+ *   magic, version (int), source signature (modified UTF-8), origin, width (double),
+ * followed by a record for each bin:
+ *   count (int), sum, sum of times, min, max, first time, last time (double).
+ */
+public class Rollup implements Closeable {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(Rollup.class);
+
+    static final int MAGIC = 0x54535352; //"TSSR"
+    static final int VERSION = 1;
+    static final int RECORD_LENGTH = 4 + 6 * 8;
+    static final String SUFFIX = ".rollup";
+
+    private File _file;
+    private RandomAccessFile _raf;
+    private String _signature;
+    private double _origin;
+    private double _width;
+    private long _dataOffset;
+    private int _binCount;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the bin widths of the rollup levels for the given dataset, largest first.
+     * Empty if it has none.
+     */
+    public static double[] getLevels(String dsname) {
+        String s = TSSProperties.getProperty("rollup.levels." + dsname);
+        if (s == null || s.trim().length() == 0) return new double[0];
+
+        String[] ss = s.split(",");
+        double[] widths = new double[ss.length];
+        int n = 0;
+        for (String w : ss) {
+            try {
+                double width = Double.parseDouble(w.trim());
+                if (width > 0) widths[n++] = width;
+            } catch (NumberFormatException e) {
+                _logger.warn("Invalid rollup level for " + dsname + ": " + w);
+            }
+        }
+
+        widths = Arrays.copyOf(widths, n);
+        Arrays.sort(widths);
+        for (int i=0; i<n/2; i++) {
+            double d = widths[i];
+            widths[i] = widths[n-1-i];
+            widths[n-1-i] = d;
+        }
+        return widths;
+    }
+
+    /**
+     * Return the names of the datasets that have rollup levels.
+     */
+    public static String[] getDatasetNames() {
+        Properties props = TSSProperties.getPropertiesStartingWith("rollup.levels");
+        return props.stringPropertyNames().toArray(new String[0]);
+    }
+
+    /**
+     * Return the directory with the rollup files.
+     */
+    static File getDir() {
+        String dir = TSSProperties.getProperty("rollup.dir");
+        if (dir == null || dir.trim().length() == 0) return new File(TSSProperties.getDatasetDir(), "rollups");
+        else return new File(dir.trim());
+    }
+
+    /**
+     * Return the file for the given level of the given variable of the given dataset.
+     */
+    static File getFile(String dsname, String varName, double width) {
+
+        String key = dsname + "|" + varName + "|" + width;
+        return new File(getDir(), ServerUtils.digest(key, "MD5") + SUFFIX);
+    }
+
+    /**
+     * Return the given level of the given variable of the given dataset, open.
+     * Return null if it hasn't been made or can't be read.
+     * The caller must close it.
+     */
+    public static Rollup getRollup(String dsname, String varName, double width) {
+        File file = getFile(dsname, varName, width);
+        if (! file.isFile()) return null;
+
+        Rollup rollup = new Rollup(file);
+        try {
+            rollup.open();
+        } catch (IOException e) {
+            //It may have been replaced since we looked.
+            rollup.close();
+            _logger.warn("Unable to read the rollup: " + file, e);
+            return null;
+        }
+
+        return rollup;
+    }
+
+    private Rollup(File file) {
+        _file = file;
+    }
+
+    /**
+     * Open the file and read the header. The file stays open for the reads.
+     */
+    private void open() throws IOException {
+        _raf = new RandomAccessFile(_file, "r");
+        if (_raf.readInt() != MAGIC || _raf.readInt() != VERSION) throw new IOException("Unknown format.");
+        _signature = _raf.readUTF();
+        _origin = _raf.readDouble();
+        _width = _raf.readDouble();
+        _dataOffset = _raf.getFilePointer();
+        _binCount = (int) ((_raf.length() - _dataOffset) / RECORD_LENGTH);
+    }
+
+    /**
+     * Close the file. It can't be read after this.
+     */
+    public void close() {
+        try {if (_raf != null) _raf.close();} catch (IOException e) {}
+        _raf = null;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Was this made from the sources in the state described by the given signature.
+     */
+    public boolean isCurrent(SourceSignature signature) {
+        return signature != null && signature.toString().equals(_signature);
+    }
+
+    /**
+     * Return the signature of the sources that this was made from.
+     */
+    String getSignature() {
+        return _signature;
+    }
+
+    /**
+     * Return the time at the start of the first bin.
+     */
+    public double getOrigin() {
+        return _origin;
+    }
+
+    public double getWidth() {
+        return _width;
+    }
+
+    public int getBinCount() {
+        return _binCount;
+    }
+
+    /**
+     * Read the given (inclusive) range of bins. Return arrays of the counts, sums,
+     * sums of times, mins, maxes, first times and last times, one element per bin.
+     */
+    public double[][] read(int first, int last) throws IOException {
+        int n = last - first + 1;
+        double[][] bins = new double[7][n];
+        if (n <= 0) return bins;
+
+        if (_raf == null) throw new IOException("The rollup is closed: " + _file);
+        byte[] bytes = new byte[n * RECORD_LENGTH];
+        _raf.seek(_dataOffset + (long) first * RECORD_LENGTH);
+        _raf.readFully(bytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i=0; i<n; i++) {
+            bins[0][i] = buffer.getInt();
+            for (int j=1; j<7; j++) bins[j][i] = buffer.getDouble();
+        }
+
+        return bins;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Make a rollup level, a sample at a time. The samples must be in time order.
+     * The file is only replaced when the writer is closed. Rollups that are
+     * open keep reading the file they opened.
+     */
+    static class Writer {
+        private FileReplacer _replacer;
+        private DataOutputStream _out;
+        private double _origin;
+        private double _width;
+
+        //The bin being filled
+        private long _bin = -1;
+        private int _count;
+        private double _sum, _tsum, _min, _max, _first, _last;
+
+        Writer(File file, String signature, double origin, double width) throws IOException {
+            _origin = origin;
+            _width = width;
+
+            _replacer = new FileReplacer(file);
+            _out = _replacer.getOutputStream();
+            _out.writeInt(MAGIC);
+            _out.writeInt(VERSION);
+            _out.writeUTF(signature);
+            _out.writeDouble(origin);
+            _out.writeDouble(width);
+        }
+
+        void add(double time, double value) throws IOException {
+            long bin = (long) Math.floor((time - _origin) / _width);
+            if (bin != _bin) {
+                if (_bin >= 0) writeBin();
+                //Empty bins in between
+                for (long i=_bin+1; i<bin; i++) writeEmptyBin();
+                _bin = bin;
+                _count = 0;
+                _sum = 0;
+                _tsum = 0;
+                _min = Double.NaN;
+                _max = Double.NaN;
+                _first = time;
+            }
+
+            _count++;
+            _sum += value;
+            _tsum += time;
+            //Ignore NaNs for the min and max
+            if (! Double.isNaN(value)) {
+                if (Double.isNaN(_min) || value < _min) _min = value;
+                if (Double.isNaN(_max) || value > _max) _max = value;
+            }
+            _last = time;
+        }
+
+        private void writeBin() throws IOException {
+            _out.writeInt(_count);
+            _out.writeDouble(_sum);
+            _out.writeDouble(_tsum);
+            _out.writeDouble(_min);
+            _out.writeDouble(_max);
+            _out.writeDouble(_first);
+            _out.writeDouble(_last);
+        }
+
+        private void writeEmptyBin() throws IOException {
+            _out.writeInt(0);
+            for (int i=0; i<6; i++) _out.writeDouble(Double.NaN);
+        }
+
+        void close() throws IOException {
+            try {
+                if (_bin >= 0) writeBin();
+                _replacer.commit();
+            } finally {
+                abort();
+            }
+        }
+
+        void abort() {
+            _replacer.abort();
+        }
+    }
+}
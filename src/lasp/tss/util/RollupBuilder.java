@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lasp.tss.TSSProperties;
+import lasp.tss.TimeSeriesDataset;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ncml.NcMLReader;
+
+/**
+ * Make the rollup levels (see Rollup) of the datasets that have them and remake
+ * them when the dataset's sources change. The server starts a background thread
+ * that does this every "rollup.refresh" minutes (default 60, 0 to not run it).
+ * Each numeric variable with only the time dimension gets every level of its dataset.
+ * The levels of all the variables that are out of date are made in one pass over the data.
+ * The times must be numeric and in order.
+ * Datasets that don't have a SourceSignature (e.g. from a database) can't be rolled up.
+ * Files for levels, variables or datasets that no longer have rollups are removed.
+ */
+public class RollupBuilder implements Runnable {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(RollupBuilder.class);
+
+    /**
+     * Number of time samples to read at a time.
+     */
+    private static final int BLOCK_SIZE = 65536;
+
+    private static ScheduledExecutorService _executor;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Start refreshing the rollups in the background, if any datasets have them.
+     */
+    public static synchronized void start() {
+        if (_executor != null) return;
+
+        int minutes = Integer.parseInt(TSSProperties.getProperty("rollup.refresh", "60"));
+        if (minutes <= 0 || Rollup.getDatasetNames().length == 0) return;
+
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tss-rollup");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        _executor.scheduleWithFixedDelay(new RollupBuilder(), 0, minutes, TimeUnit.MINUTES);
+        _logger.info("Refreshing rollups every " + minutes + " minutes.");
+    }
+
+    /**
+     * Stop refreshing the rollups. A rollup being made is abandoned.
+     */
+    public static synchronized void stop() {
+        if (_executor == null) return;
+        _executor.shutdownNow();
+        _executor = null;
+    }
+
+    public void run() {
+        try {
+            refresh();
+        } catch (Throwable t) {
+            //Keep the schedule going.
+            _logger.error("Failed to refresh the rollups.", t);
+        }
+    }
+
+    /**
+     * Make the rollups of every dataset that are missing or out of date,
+     * then remove the files that aren't any of them.
+     */
+    public static void refresh() {
+        Set<String> names = new HashSet<String>();
+        boolean complete = true;
+        for (String dsname : Rollup.getDatasetNames()) {
+            if (Thread.currentThread().isInterrupted()) return;
+            try {
+                for (File file : refresh(dsname)) names.add(file.getName());
+            } catch (Exception e) {
+                _logger.warn("Failed to make the rollups for dataset: " + dsname, e);
+                complete = false;
+            }
+        }
+
+        //Without every dataset's files we can't tell which are old.
+        if (complete && ! Thread.currentThread().isInterrupted()) prune(names);
+    }
+
+    /**
+     * Make the rollups of the given dataset that are missing or out of date.
+     * Return the files of all its rollups, even if making them failed.
+     * Throw an exception if the dataset can't be read to find them.
+     */
+    public static List<File> refresh(String dsname) throws IOException {
+        List<File> files = new ArrayList<File>();
+        double[] levels = Rollup.getLevels(dsname);
+        if (levels.length == 0) return files;
+
+        String url = TimeSeriesDataset.findNcmlURL(dsname);
+        Element ncel = NcmlCache.getNetcdfElement(url);
+        SourceSignature signature = (ncel == null) ? null : SourceSignature.fromNcml(url, ncel);
+        if (signature == null) {
+            _logger.warn("Unable to make rollups for a dataset that is not made from local files: " + dsname);
+            return files;
+        }
+
+        NetcdfDataset ncds = NcMLReader.readNcML(url, ncel, null);
+        try {
+            Variable time = ncds.getRootGroup().findVariable("time");
+            if (! isNumericTime(time)) {
+                _logger.warn("Unable to make rollups for a dataset without numeric times: " + dsname);
+                return files;
+            }
+
+            List<Variable> vars = new ArrayList<Variable>();
+            for (Variable var : ncds.getRootGroup().getVariables()) {
+                if (var == time || var.getRank() != 1 || ! var.getDataType().isNumeric()) continue;
+                if (! "time".equals(var.getDimension(0).getName())) continue;
+                for (double width : levels) files.add(Rollup.getFile(dsname, var.getShortName(), width));
+                if (! isCurrent(dsname, var.getShortName(), levels, signature)) vars.add(var);
+            }
+
+            if (! vars.isEmpty()) {
+                _logger.info("Making rollups for " + vars.size() + " variables of " + dsname);
+                try {
+                    build(dsname, time, vars, levels, signature.toString());
+                } catch (IOException e) {
+                    //Keep the older files, the next refresh will try again.
+                    _logger.warn("Failed to make the rollups for dataset: " + dsname, e);
+                }
+            }
+        } finally {
+            ncds.close();
+        }
+
+        return files;
+    }
+
+    /**
+     * Remove the rollup files that don't have the given names.
+     */
+    private static void prune(Set<String> names) {
+        File[] files = Rollup.getDir().listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (! file.getName().endsWith(Rollup.SUFFIX) || names.contains(file.getName())) continue;
+            if (file.delete()) _logger.info("Removed the old rollup: " + file);
+            else _logger.warn("Unable to remove the old rollup: " + file);
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Is the time variable numeric with units the TimeVariable won't reformat.
+     */
+    private static boolean isNumericTime(Variable time) {
+        if (time == null || time.getRank() != 1 || ! time.getDataType().isNumeric()) return false;
+
+        Attribute att = time.findAttribute("units");
+        if (att == null || ! att.isString()) return true;
+        String units = att.getStringValue();
+        return units.contains("since") || units.toLowerCase().startsWith("julian");
+    }
+
+    /**
+     * Are all the levels of the given variable made from the current sources.
+     */
+    private static boolean isCurrent(String dsname, String varName, double[] levels, SourceSignature signature) {
+        for (double width : levels) {
+            Rollup rollup = Rollup.getRollup(dsname, varName, width);
+            if (rollup == null) return false;
+            boolean current = rollup.isCurrent(signature);
+            rollup.close();
+            if (! current) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Make every level of the given variables in one pass over the data.
+     */
+    private static void build(String dsname, Variable time, List<Variable> vars, double[] levels, String signature) throws IOException {
+        int n = time.getShape(0);
+        if (n == 0) return;
+
+        double origin = time.read(new int[] {0}, new int[] {1}).getDouble(0);
+        int nvar = vars.size();
+        Rollup.Writer[][] writers = new Rollup.Writer[nvar][levels.length];
+        List<Rollup.Writer> all = new ArrayList<Rollup.Writer>();
+        try {
+            for (int ivar=0; ivar<nvar; ivar++) {
+                String varName = vars.get(ivar).getShortName();
+                for (int ilevel=0; ilevel<levels.length; ilevel++) {
+                    double width = levels[ilevel];
+                    writers[ivar][ilevel] = new Rollup.Writer(Rollup.getFile(dsname, varName, width), signature, origin, width);
+                    all.add(writers[ivar][ilevel]);
+                }
+            }
+
+            double previous = origin;
+            Array[] values = new Array[nvar];
+            for (int start=0; start<n; start+=BLOCK_SIZE) {
+                if (Thread.currentThread().isInterrupted()) throw new IOException("Interrupted.");
+
+                int count = Math.min(BLOCK_SIZE, n - start);
+                Array times = time.read(new int[] {start}, new int[] {count});
+                for (int ivar=0; ivar<nvar; ivar++) values[ivar] = vars.get(ivar).read(new int[] {start}, new int[] {count});
+                for (int i=0; i<count; i++) {
+                    double t = times.getDouble(i);
+                    if (! (t >= previous)) throw new IOException("The times are not in order at sample " + (start+i));
+                    previous = t;
+
+                    for (int ivar=0; ivar<nvar; ivar++) {
+                        double value = values[ivar].getDouble(i);
+                        for (Rollup.Writer writer : writers[ivar]) writer.add(t, value);
+                    }
+                }
+            }
+
+            for (Rollup.Writer writer : all) writer.close();
+        } catch (Exception e) {
+            for (Rollup.Writer writer : all) writer.abort();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("Failed to make the rollups for " + dsname, e);
+        }
+    }
+}
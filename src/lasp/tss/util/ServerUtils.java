@@ -1,8 +1,18 @@
 package lasp.tss.util;
 
+import java.security.MessageDigest;
+
 import javax.servlet.http.HttpServletRequest;
 
+import lasp.tss.TSSException;
+import lasp.tss.TSSProperties;
+
+import org.apache.log4j.Logger;
+
 public class ServerUtils {
+    
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(ServerUtils.class);
 
     /**
      * Get the base URL (up through TSS servlet mapping) from the request.
@@ -21,4 +31,38 @@ public class ServerUtils {
         return url;
     }
     
+    /**
+     * Return the integer value of the given property, or the default
+     * if it is not defined or not an integer.
+     */
+    public static int getIntProperty(String name, int defaultValue) {
+        int value = defaultValue;
+        try {
+            String s = TSSProperties.getProperty(name);
+            if (s != null) value = Integer.parseInt(s.trim());
+        } catch (Exception e) {
+            _logger.warn("Invalid " + name + ", using default.", e);
+        }
+        return value;
+    }
+    
+    /**
+     * Return the digest of the given text (as UTF-8) made with the given algorithm 
+     * (e.g. "MD5") as hex digits, e.g. to make a file name from a key.
+     */
+    public static String digest(String text, String algorithm) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            byte[] bytes = md.digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            return sb.toString();
+        } catch (Exception e) {
+            //Should never happen, Java always has MD5, SHA-256 and UTF-8.
+            String msg = "Unable to make the " + algorithm + " digest.";
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        }
+    }
+    
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom.Element;
+
+/**
+ * The state (modification time and size) of the local files that a dataset
+ * is made from: the NcML itself and the data files named by the "location"
+ * of its "netcdf" elements, including those nested in an aggregation.
+ * Used to tell whether anything derived from the data is still valid.
+ * A dataset with any source that is not a local file (e.g. a "url",
+ * an aggregation "scan", a database or a command that reads from /dev/null)
+ * can't be checked, so it won't have a signature.
+ */
+public class SourceSignature {
+
+    private List<File> _files = new ArrayList<File>();
+    private List<Long> _lastModifieds = new ArrayList<Long>();
+    private List<Long> _lengths = new ArrayList<Long>();
+
+  //------------------------------------------------------------------------
+
+    private SourceSignature() {}
+
+    /**
+     * Return the signature for the dataset defined by the given NcML.
+     * Return null if any of the sources are not local files.
+     */
+    public static SourceSignature fromNcml(String ncmlURL, Element ncel) {
+        File ncmlFile = NcmlCache.getFile(ncmlURL);
+        if (ncmlFile == null || ! ncmlFile.isFile()) return null;
+
+        SourceSignature sig = new SourceSignature();
+        sig.addFile(ncmlFile);
+
+        File dir = ncmlFile.getAbsoluteFile().getParentFile();
+        if (! sig.addSources(ncel, dir)) return null;
+
+        return sig;
+    }
+
+    /**
+     * Add the data file for the given "netcdf" element and any nested within it.
+     * Return false if we find a source that is not a local file.
+     */
+    private boolean addSources(Element element, File dir) {
+        String name = element.getName();
+        if (name.equals("scan")) return false; //can't tell when files are added
+
+        if (name.equals("netcdf")) {
+            if (element.getAttributeValue("url") != null) return false; //remote
+
+            String location = element.getAttributeValue("location");
+            if (location != null) {
+                File file = getFile(location, dir);
+                if (file == null || ! file.isFile()) return false; //e.g. /dev/null
+                addFile(file);
+            }
+        }
+
+        for (Object o : element.getChildren()) {
+            if (! addSources((Element) o, dir)) return false; //recursive
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the local File for the location which may be relative to the NcML directory.
+     * Return null if it is not a local file.
+     */
+    private static File getFile(String location, File dir) {
+        File file = NcmlCache.getFile(location);
+        if (file == null && location.indexOf(':') < 0) file = new File(dir, location); //relative path
+        return file;
+    }
+
+    private void addFile(File file) {
+        _files.add(file);
+        _lastModifieds.add(new Long(file.lastModified()));
+        _lengths.add(new Long(file.length()));
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Have none of the files changed since the signature was made.
+     */
+    public boolean isCurrent() {
+        int n = _files.size();
+        for (int i=0; i<n; i++) {
+            File file = _files.get(i);
+            if (file.lastModified() != _lastModifieds.get(i).longValue()) return false;
+            if (file.length() != _lengths.get(i).longValue()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the most recent modification time (ms) of the files.
+     */
+    public long getLastModified() {
+        long t = 0;
+        for (Long l : _lastModifieds) t = Math.max(t, l.longValue());
+        return t;
+    }
+
+    /**
+     * Return the files that make up the dataset, starting with the NcML.
+     */
+    public List<File> getFiles() {
+        return _files;
+    }
+
+    /**
+     * Return the path, modification time and size of each file.
+     * Two signatures with the same String describe the same state of the sources.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int n = _files.size();
+        for (int i=0; i<n; i++) {
+            if (i > 0) sb.append(';');
+            sb.append(_files.get(i).getAbsolutePath()).append(',');
+            sb.append(_lastModifieds.get(i)).append(',');
+            sb.append(_lengths.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parse and format times for a SimpleDateFormat pattern without the overhead
+ * of SimpleDateFormat: the pattern is compiled once into a list of fields,
+ * times are parsed from any CharSequence and formatted into a reusable buffer
+ * with integer arithmetic and no objects created per value.
+ * Times are Java time (milliseconds since 1970-01-01) in GMT.
+ *
+ * Only numeric fields are supported: year (y, 3 or more letters), month (M, 1 or 2),
+ * day of month (d), day of year (D), hour (H), minute (m), second (s) and
+ * millisecond (S), plus literal text. Patterns with anything else can't be
+ * compiled. Values that this can't parse (or that precede the Gregorian
+ * calendar) are left for SimpleDateFormat.
+ */
+public class TimeCodec {
+
+    /**
+     * Value returned by parse for text that can't be parsed.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * Start of the Gregorian calendar: 1582-10-15.
+     * SimpleDateFormat uses the Julian calendar before this.
+     */
+    private static final long GREGORIAN_CUTOVER = -12219292800000L;
+
+    private static final long MS_PER_DAY = 86400000L;
+
+    private static final int LITERAL = 0;
+    private static final int YEAR = 1;
+    private static final int MONTH = 2;
+    private static final int DAY = 3;
+    private static final int DAY_OF_YEAR = 4;
+    private static final int HOUR = 5;
+    private static final int MINUTE = 6;
+    private static final int SECOND = 7;
+    private static final int MILLI = 8;
+
+    /**
+     * Compiled codecs keyed by pattern. Patterns that can't be compiled map to themselves.
+     */
+    private static Map<String, Object> _codecs = new ConcurrentHashMap<String, Object>();
+
+    private String _pattern;
+    private int[] _types;
+    private int[] _counts;
+    private String[] _literals;
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the compiled codec for the given SimpleDateFormat pattern.
+     * Return null if the pattern is not supported.
+     */
+    public static TimeCodec getCodec(String pattern) {
+        Object o = _codecs.get(pattern);
+        if (o == null) {
+            o = compile(pattern);
+            if (o == null) o = pattern;
+            _codecs.put(pattern, o);
+        }
+
+        return (o instanceof TimeCodec) ? (TimeCodec) o : null;
+    }
+
+    /**
+     * Compile the pattern following the SimpleDateFormat rules for letters and quotes.
+     * Return null if the pattern is not supported.
+     */
+    private static TimeCodec compile(String pattern) {
+        List<int[]> fields = new ArrayList<int[]>(); //type, count
+        List<String> literals = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        boolean hasMonthOrDay = false;
+        boolean hasDayOfYear = false;
+
+        int n = pattern.length();
+        int i = 0;
+        while (i < n) {
+            char c = pattern.charAt(i);
+
+            if (c == '\'') {
+                //quoted text, '' is a single quote
+                if (i+1 < n && pattern.charAt(i+1) == '\'') {
+                    literal.append('\'');
+                    i += 2;
+                    continue;
+                }
+                int end = i + 1;
+                while (true) {
+                    if (end >= n) return null; //unterminated quote
+                    if (pattern.charAt(end) == '\'') {
+                        if (end+1 < n && pattern.charAt(end+1) == '\'') {
+                            literal.append('\'');
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    literal.append(pattern.charAt(end++));
+                }
+                i = end + 1;
+                continue;
+            }
+
+            if (! ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            //pattern letter, count the repeats
+            int count = 1;
+            while (i+count < n && pattern.charAt(i+count) == c) count++;
+            i += count;
+
+            int type;
+            switch (c) {
+                case 'y': type = YEAR; if (count < 3) return null; break; //two digit years are ambiguous
+                case 'M': type = MONTH; if (count > 2) return null; hasMonthOrDay = true; break; //names
+                case 'd': type = DAY; hasMonthOrDay = true; break;
+                case 'D': type = DAY_OF_YEAR; hasDayOfYear = true; break;
+                case 'H': type = HOUR; break;
+                case 'm': type = MINUTE; break;
+                case 's': type = SECOND; break;
+                case 'S': type = MILLI; break;
+                default: return null;
+            }
+
+            if (literal.length() > 0) {
+                fields.add(new int[] {LITERAL, 0});
+                literals.add(literal.toString());
+                literal.setLength(0);
+            }
+            fields.add(new int[] {type, count});
+            literals.add(null);
+        }
+
+        if (literal.length() > 0) {
+            fields.add(new int[] {LITERAL, 0});
+            literals.add(literal.toString());
+        }
+
+        //SimpleDateFormat resolves conflicting fields by the order they are set.
+        if (hasMonthOrDay && hasDayOfYear) return null;
+
+        TimeCodec codec = new TimeCodec();
+        codec._pattern = pattern;
+        int nf = fields.size();
+        codec._types = new int[nf];
+        codec._counts = new int[nf];
+        codec._literals = literals.toArray(new String[nf]);
+        for (int j=0; j<nf; j++) {
+            codec._types[j] = fields.get(j)[0];
+            codec._counts[j] = fields.get(j)[1];
+        }
+
+        return codec;
+    }
+
+    /**
+     * Return the pattern this codec was compiled from.
+     */
+    public String getPattern() {
+        return _pattern;
+    }
+
+  //----- Parse ------------------------------------------------------------
+
+    /**
+     * Parse the text as Java time. Text after the pattern is ignored, as with SimpleDateFormat.
+     * Return INVALID if it can't be parsed.
+     */
+    public long parse(CharSequence text) {
+        int year = 1970;
+        int month = 1;
+        int day = 1;
+        int dayOfYear = -1;
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        int milli = 0;
+
+        int len = text.length();
+        int pos = 0;
+        int nf = _types.length;
+
+        for (int i=0; i<nf; i++) {
+            int type = _types[i];
+
+            if (type == LITERAL) {
+                String lit = _literals[i];
+                int n = lit.length();
+                if (pos + n > len) return INVALID;
+                for (int j=0; j<n; j++) {
+                    if (text.charAt(pos+j) != lit.charAt(j)) return INVALID;
+                }
+                pos += n;
+                continue;
+            }
+
+            //Numeric fields that abut the next field are limited to the pattern width.
+            int max = (i+1 < nf && _types[i+1] != LITERAL) ? _counts[i] : 9;
+            int value = 0;
+            int ndigit = 0;
+            while (ndigit < max && pos < len) {
+                char c = text.charAt(pos);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                ndigit++;
+                pos++;
+            }
+            if (ndigit == 0) return INVALID;
+            if (ndigit == 9 && pos < len && Character.isDigit(text.charAt(pos))) return INVALID; //too big
+
+            switch (type) {
+                case YEAR: year = value; break;
+                case MONTH: month = value; break;
+                case DAY: day = value; break;
+                case DAY_OF_YEAR: dayOfYear = value; break;
+                case HOUR: hour = value; break;
+                case MINUTE: minute = value; break;
+                case SECOND: second = value; break;
+                case MILLI: milli = value; break;
+            }
+        }
+
+        //Out of range values roll over, like a lenient SimpleDateFormat.
+        long days;
+        if (dayOfYear >= 0) days = daysFromCivil(year, 1, 1) + dayOfYear - 1;
+        else {
+            int m = month - 1;
+            year += floorDiv(m, 12);
+            m -= floorDiv(m, 12) * 12;
+            days = daysFromCivil(year, m + 1, 1) + day - 1;
+        }
+
+        long time = days * MS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + milli;
+        if (time < GREGORIAN_CUTOVER) return INVALID;
+
+        return time;
+    }
+
+  //----- Format -----------------------------------------------------------
+
+    /**
+     * Can the given time be formatted by this codec.
+     */
+    public boolean canFormat(long time) {
+        return time >= GREGORIAN_CUTOVER;
+    }
+
+    /**
+     * Append the formatted time to the buffer.
+     */
+    public void format(long time, StringBuilder buffer) {
+        long days = floorDiv(time, MS_PER_DAY);
+        int msOfDay = (int) (time - days * MS_PER_DAY);
+
+        //civil date from days since 1970-01-01, see daysFromCivil
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+        int doy = doe - (365*yoe + yoe/4 - yoe/100);
+        int mp = (5*doy + 2) / 153;
+        int day = doy - (153*mp + 2)/5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        int nf = _types.length;
+        for (int i=0; i<nf; i++) {
+            int count = _counts[i];
+            switch (_types[i]) {
+                case LITERAL: buffer.append(_literals[i]); break;
+                case YEAR: appendPadded(buffer, year, count); break;
+                case MONTH: appendPadded(buffer, month, count); break;
+                case DAY: appendPadded(buffer, day, count); break;
+                case DAY_OF_YEAR: appendPadded(buffer, (int) (days - daysFromCivil(year, 1, 1)) + 1, count); break;
+                case HOUR: appendPadded(buffer, msOfDay / 3600000, count); break;
+                case MINUTE: appendPadded(buffer, msOfDay / 60000 % 60, count); break;
+                case SECOND: appendPadded(buffer, msOfDay / 1000 % 60, count); break;
+                case MILLI: appendPadded(buffer, msOfDay % 1000, count); break;
+            }
+        }
+    }
+
+    /**
+     * Append the non-negative value with leading zeros to make at least the given number of digits.
+     */
+    private static void appendPadded(StringBuilder buffer, int value, int width) {
+        int ndigit = 1;
+        for (int v = value; v >= 10; v /= 10) ndigit++;
+        for (int i=ndigit; i<width; i++) buffer.append('0');
+        buffer.append(value);
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the number of days since 1970-01-01 for the given proleptic Gregorian date.
+     * See Howard Hinnant, "chrono-Compatible Low-Level Date Algorithms".
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe/4 - yoe/100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        if ((a % b != 0) && ((a < 0) != (b < 0))) q--;
+        return q;
+    }
+
+    private static int floorDiv(int a, int b) {
+        return (int) floorDiv((long) a, (long) b);
+    }
+}
@@ -218,6 +218,18 @@ public abstract class CompositeVariable extends TSSVariable {
         return values;
     }
     
+    /**
+     * Override to read a block of time samples for each projected component.
+     * The components hold their own blocks so this returns null.
+     */
+    public DataBlock readBlock(int startIndex, int count) {
+        for (TSSVariable var : getVariables()) {
+            var.readBlock(startIndex, count);
+        }
+        
+        return null;
+    }
+    
     /**
      * Return the NetCDF Group that represents this variable.
      */
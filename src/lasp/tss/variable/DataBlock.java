@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.variable;
+
+import java.util.BitSet;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.Index;
+
+/**
+ * A contiguous block of time samples for one variable.
+ * Numeric data are held as a single primitive array of doubles and String
+ * data as an array of Objects, with the time dimension varying slowest.
+ * Time samples that fail a filter are marked as excluded instead of being
+ * removed so the block stays aligned with the other variables' blocks.
+ */
+public class DataBlock {
+
+    /**
+     * Index of the first time sample in this block.
+     */
+    private int _startIndex;
+
+    /**
+     * Number of time samples in this block.
+     */
+    private int _count;
+
+    /**
+     * Number of values in each time sample.
+     */
+    private int _sampleSize;
+
+    /**
+     * Shape of an Array representing a single time sample.
+     * The time dimension is preserved with a length of one.
+     */
+    private int[] _sampleShape;
+
+    /**
+     * Data type of the Array that was read, preserved for time sample Arrays.
+     */
+    private DataType _dataType;
+
+    private double[] _values;
+    private Object[] _objects;
+
+    /**
+     * Time samples (relative to the start of the block) that have been filtered out.
+     */
+    private BitSet _excluded = new BitSet();
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Construct a block with the data from the given Array which was read
+     * for the time samples starting at the given time index.
+     */
+    public DataBlock(int startIndex, Array array) {
+        _startIndex = startIndex;
+
+        int[] shape = array.getShape();
+        _count = shape[0];
+        _sampleShape = (int[]) shape.clone();
+        _sampleShape[0] = 1;
+        _sampleSize = _count == 0 ? 0 : (int) (array.getSize() / _count);
+
+        _dataType = DataType.getType(array.getElementType());
+
+        int n = (int) array.getSize();
+        if (isString()) {
+            _objects = new Object[n];
+            for (int i=0; i<n; i++) _objects[i] = array.getObject(i);
+        } else {
+            _values = new double[n];
+            for (int i=0; i<n; i++) _values[i] = array.getDouble(i);
+        }
+    }
+
+    /**
+     * Can a block represent data of the given type.
+     * Only numeric and String types are supported.
+     */
+    public static boolean isSupported(DataType type) {
+        return type != null && (type.isNumeric() || type == DataType.STRING);
+    }
+
+    /**
+     * Return the index of the first time sample in this block.
+     */
+    public int getStartIndex() {
+        return _startIndex;
+    }
+
+    /**
+     * Return the number of time samples in this block.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * Return the number of values in each time sample.
+     */
+    public int getSampleSize() {
+        return _sampleSize;
+    }
+
+    /**
+     * Does this block contain the given time sample.
+     */
+    public boolean contains(int timeIndex) {
+        return timeIndex >= _startIndex && timeIndex < _startIndex + _count;
+    }
+
+    /**
+     * Does this block hold String data.
+     */
+    public boolean isString() {
+        return _dataType == DataType.STRING;
+    }
+
+    /**
+     * Change the data type used for time sample Arrays (e.g. numbers replaced 
+     * by a filter become doubles). Only numeric types can be changed.
+     */
+    public void setDataType(DataType type) {
+        if (! isString() && type.isNumeric()) _dataType = type;
+    }
+    
+    /**
+     * Return the internal numeric values. Filters may modify them in place.
+     * Will be null for String data.
+     */
+    public double[] getDoubles() {
+        return _values;
+    }
+
+    /**
+     * Return the internal String values.
+     * Will be null for numeric data.
+     */
+    public Object[] getObjects() {
+        return _objects;
+    }
+
+  //----- Selection --------------------------------------------------------
+
+    /**
+     * Exclude the time sample at the given position (relative to the start of the block).
+     */
+    public void exclude(int i) {
+        _excluded.set(i);
+    }
+
+    /**
+     * Exclude every time sample in this block.
+     */
+    public void excludeAll() {
+        _excluded.set(0, _count);
+    }
+
+    /**
+     * Has the time sample at the given position (relative to the start of the block)
+     * been excluded.
+     */
+    public boolean isExcluded(int i) {
+        return _excluded.get(i);
+    }
+
+    /**
+     * Return the number of time samples that have been excluded.
+     */
+    public int getExcludedCount() {
+        return _excluded.cardinality();
+    }
+
+  //----- Time Sample Access -----------------------------------------------
+
+    /**
+     * Return a copy of the values for the given time sample.
+     * Return null if the sample has been excluded or this holds String data.
+     */
+    public double[] getValues(int timeIndex) {
+        int i = timeIndex - _startIndex;
+        if (_values == null || isExcluded(i)) return null;
+
+        double[] d = new double[_sampleSize];
+        System.arraycopy(_values, i * _sampleSize, d, 0, _sampleSize);
+        return d;
+    }
+
+    /**
+     * Return a NetCDF Array with the given time sample, as if it had been read
+     * by itself. Return null if the sample has been excluded.
+     */
+    public Array getTimeSample(int timeIndex) {
+        int i = timeIndex - _startIndex;
+        if (isExcluded(i)) return null;
+
+        Array array = Array.factory(_dataType, _sampleShape);
+        Index index = array.getIndex();
+        int offset = i * _sampleSize;
+        for (int j=0; j<_sampleSize; j++) {
+            index.setCurrentCounter(j);
+            if (_objects != null) array.setObject(index, _objects[offset+j]);
+            else array.setDouble(index, _values[offset+j]);
+        }
+
+        return array;
+    }
+
+    /**
+     * Replace the data for the given time sample with the contents of the Array.
+     * A null Array excludes the sample.
+     */
+    public void setTimeSample(int timeIndex, Array array) {
+        int i = timeIndex - _startIndex;
+        if (array == null) {
+            exclude(i);
+            return;
+        }
+
+        //Adopt the type of the filtered Array, e.g. ReplacementFilter makes doubles
+        setDataType(DataType.getType(array.getElementType()));
+        
+        int offset = i * _sampleSize;
+        int n = Math.min((int) array.getSize(), _sampleSize);
+        for (int j=0; j<n; j++) {
+            if (_objects != null) _objects[offset+j] = array.getObject(j);
+            else _values[offset+j] = array.getDouble(j);
+        }
+    }
+}
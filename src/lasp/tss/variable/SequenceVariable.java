@@ -83,6 +83,18 @@ public class SequenceVariable extends CompositeVariable {
         return values;
     }
     
+    /**
+     * Override to read blocks for the dependent variables only.
+     * The independent variable does not vary with time.
+     */
+    public DataBlock readBlock(int startIndex, int count) {
+        for (TSSVariable var : getDependentVariables()) {
+            var.readBlock(startIndex, count);
+        }
+        
+        return null;
+    }
+    
     /**
      * Override to apply range to each component variable
      * which is currently implemented as a 2D nc2.Variable.
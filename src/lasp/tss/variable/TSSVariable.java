@@ -33,7 +33,9 @@ import java.util.List;
 
 import lasp.tss.TSSException;
 import lasp.tss.TSSPublicException;
+import lasp.tss.filter.BlockFilter;
 import lasp.tss.filter.Filter;
+import lasp.tss.util.RequestTimer;
 
 import org.apache.log4j.Logger;
 
@@ -81,6 +83,12 @@ public abstract class TSSVariable {
      */
     private List<Filter> _filterList; 
     
+    /**
+     * The most recently read block of time samples.
+     * Requests for individual time samples within it will be served from it.
+     */
+    private DataBlock _block;
+    
     //--------------------------------------------------------------------------
     
     /**
@@ -226,6 +234,8 @@ public abstract class TSSVariable {
      * Called during TimeSeriesDataset init while applying constraints.
      */
     public void subset(Range range) {
+        _block = null; //no longer aligned with the time samples
+        
         //Handle empty range. Should result in no data.
         if (range == null || range.length() == 0) {
             //variable is empty
@@ -370,6 +380,9 @@ public abstract class TSSVariable {
     public double[] getValues(int timeIndex) {
         double[] d = null;
 
+        DataBlock block = _block;
+        if (block != null && block.contains(timeIndex) && ! block.isString()) return block.getValues(timeIndex);
+        
         Array array = getTimeSample(timeIndex);
         if (array == null) return null;
         
@@ -415,6 +428,9 @@ public abstract class TSSVariable {
      * Involves reading a section of the variable, as opposed to sectioning a previously read Array. 
      */
     public Array getTimeSample(int timeIndex) {
+        DataBlock block = _block;
+        if (block != null && block.contains(timeIndex)) return block.getTimeSample(timeIndex);
+        
         Variable ncvar = getNetcdfVariable();
         Array array = null;  
         
@@ -422,7 +438,12 @@ public abstract class TSSVariable {
             List<Range> ranges = new ArrayList<Range>(ncvar.getRanges()); //original Ranges are immutable
             Range trange = new Range(timeIndex, timeIndex);
             ranges.set(0, trange); //Time is first dimension
-            array = ncvar.read(ranges);
+            RequestTimer.enterPhase(RequestTimer.READ);
+            try {
+                array = ncvar.read(ranges);
+            } finally {
+                RequestTimer.exitPhase();
+            }
             
             array = applyFilters(array);
             
@@ -451,14 +472,103 @@ public abstract class TSSVariable {
     protected Array applyFilters(Array array) {
         
         if (_filterList != null) {
-            for (Filter filter : _filterList) {
-                array = filter.filter(array);
-                if (array == null) break; //nothing left to filter out
+            RequestTimer.enterPhase(RequestTimer.FILTER);
+            try {
+                for (Filter filter : _filterList) {
+                    array = filter.filter(array);
+                    if (array == null) break; //nothing left to filter out
+                }
+            } finally {
+                RequestTimer.exitPhase();
             }
         }
         
         return array;
     }
+
+    /**
+     * Read a block of consecutive time samples with one read and apply the filters
+     * to all of them. Subsequent requests for time samples within the block
+     * (e.g. getValues(timeIndex)) will be served from the block instead of 
+     * reading each sample.
+     * Return null if the data can't be represented as a block, in which
+     * case the time samples will be read individually, as before.
+     */
+    public DataBlock readBlock(int startIndex, int count) {
+        _block = null;
+        
+        int length = getLength();
+        if (length == 0 || count <= 0) return null;
+        if (startIndex + count > length) count = length - startIndex;
+        
+        Variable ncvar = getNetcdfVariable();
+        if (! DataBlock.isSupported(ncvar.getDataType())) return null;
+        
+        try {    
+            List<Range> ranges = new ArrayList<Range>(ncvar.getRanges()); //original Ranges are immutable
+            Range trange = new Range(startIndex, startIndex + count - 1);
+            ranges.set(0, trange); //Time is first dimension
+            Array array;
+            RequestTimer.enterPhase(RequestTimer.READ);
+            try {
+                array = ncvar.read(ranges);
+            } finally {
+                RequestTimer.exitPhase();
+            }
+            
+            DataBlock block = new DataBlock(startIndex, array);
+            applyFilters(block);
+            _block = block;
+            
+        } catch (Exception e) {
+            //Fall back to reading one time sample at a time, which deals with bad samples.
+            String msg = "Failed to read data block for variable: " + ncvar.getShortName() 
+                + " starting at time index: " + startIndex;
+            _logger.warn(msg, e);
+        }
+        
+        return _block;
+    }
+
+    /**
+     * Apply the Variable's filters to the block. 
+     * Samples that fail a filter are marked as excluded.
+     * Filters that don't support blocks are applied to each time sample.
+     */
+    protected void applyFilters(DataBlock block) {
+        if (_filterList == null) return;
+        
+        RequestTimer.enterPhase(RequestTimer.FILTER);
+        try {
+            applyFilters(block, block.getStartIndex(), block.getCount());
+        } finally {
+            RequestTimer.exitPhase();
+        }
+    }
+    
+    private void applyFilters(DataBlock block, int start, int n) {
+        for (Filter filter : _filterList) {
+            if (block.getExcludedCount() == n) break; //nothing left to filter out
+            
+            if (filter instanceof BlockFilter) {
+                ((BlockFilter) filter).filter(block);
+            } else {
+                for (int i=0; i<n; i++) {
+                    if (block.isExcluded(i)) continue;
+                    Array array = block.getTimeSample(start+i);
+                    Array filtered = filter.filter(array);
+                    if (filtered != array) block.setTimeSample(start+i, filtered);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Return the most recently read block of time samples. May be null.
+     */
+    public DataBlock getBlock() {
+        return _block;
+    }
     
 
   //---------------------------------------------------
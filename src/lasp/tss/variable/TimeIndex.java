@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.variable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lasp.tss.util.ServerUtils;
+import lasp.tss.util.SourceSignature;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sparse index of the times of a dataset: the time of every Nth sample
+ * of the unconstrained time variable. A time can be located by a binary
+ * search of these checkpoints followed by a search of the one window of
+ * N samples between two checkpoints, so a time selection need not read
+ * the whole time variable.
+ *
+ * The index is built from a full read of the times the first time it is
+ * needed and is kept for the dataset (by NcML URL) until any of its source
+ * files change. The interval between checkpoints is defined by the
+ * "time.index.interval" property (default 1000). Zero disables the index.
+ * Times that are not sorted (or can't be parsed) can't be indexed.
+ * It isn't used when the IOSP serves samples that depend on the request
+ * (see AbstractIOSP.isQueryDependent).
+ */
+public class TimeIndex {
+
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(TimeIndex.class);
+
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    /**
+     * One index per dataset NcML URL.
+     */
+    private static Map<String, TimeIndex> _indexes = new ConcurrentHashMap<String, TimeIndex>();
+
+    private SourceSignature _signature;
+    private int _interval;
+
+    /**
+     * Time of every _interval-th sample, starting with the first.
+     */
+    private double[] _checkpoints;
+
+    /**
+     * Number of samples in the unconstrained time variable.
+     */
+    private int _length;
+
+    private volatile boolean _built;
+    private boolean _sorted;
+
+  //------------------------------------------------------------------------
+
+    private TimeIndex(SourceSignature signature, int interval) {
+        _signature = signature;
+        _interval = interval;
+    }
+
+    /**
+     * Return the index for the dataset with the given NcML URL and sources.
+     * Make a new (empty) one if we don't have one or the sources have changed.
+     * Return null if the index is disabled.
+     */
+    public static TimeIndex getIndex(String ncmlURL, SourceSignature signature) {
+        int interval = getInterval();
+        if (interval <= 0 || signature == null) return null;
+
+        TimeIndex index = _indexes.get(ncmlURL);
+        if (index == null || ! index._signature.isCurrent() || index._interval != interval) {
+            index = new TimeIndex(signature, interval);
+            _indexes.put(ncmlURL, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Return the number of samples between checkpoints.
+     */
+    private static int getInterval() {
+        return ServerUtils.getIntProperty("time.index.interval", DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Drop all indexes.
+     */
+    public static void clear() {
+        _indexes.clear();
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Can this index be used to search the times of the given variable.
+     * Build it if it hasn't been built yet.
+     */
+    public boolean isUsable(TimeVariable tvar) {
+        if (! _built) build(tvar);
+        return _sorted && _length == tvar.getIndexLength();
+    }
+
+    /**
+     * Read the times, a window at a time, and keep the checkpoints.
+     */
+    private synchronized void build(TimeVariable tvar) {
+        if (_built) return; //another thread beat us to it
+
+        int n = tvar.getIndexLength();
+        int ncp = (n + _interval - 1) / _interval;
+        double[] checkpoints = new double[ncp];
+        boolean sorted = true;
+
+        try {
+            int chunk = _interval * 100;
+            double prev = Double.NEGATIVE_INFINITY;
+            for (int start=0; start<n && sorted; start+=chunk) {
+                int end = Math.min(start + chunk, n);
+                double[] times = tvar.readIndexValues(start, end - 1);
+                for (int i=0; i<times.length; i++) {
+                    double t = times[i];
+                    if (! (t >= prev)) { //NaN fails too
+                        sorted = false;
+                        break;
+                    }
+                    prev = t;
+                    int row = start + i;
+                    if (row % _interval == 0) checkpoints[row / _interval] = t;
+                }
+            }
+        } catch (Exception e) {
+            _logger.warn("Failed to build the time index, times will be read.", e);
+            sorted = false;
+        }
+
+        if (! sorted) _logger.info("Times are not sorted, they will not be indexed.");
+        else _logger.debug("Built time index with " + ncp + " checkpoints for " + n + " samples.");
+
+        _checkpoints = checkpoints;
+        _length = n;
+        _sorted = sorted;
+        _built = true;
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the index of the first sample (of the unconstrained time variable)
+     * with a time greater than or equal to the given time, or greater than
+     * if "after" is true. Return the number of samples if there is no such sample.
+     * Reads at most one window of times from the given variable.
+     */
+    public int search(double time, boolean after, TimeVariable tvar) {
+        //Number of checkpoints before the time we are looking for.
+        int ncp = countBefore(_checkpoints, time, after);
+        if (ncp == 0) return 0; //first sample is a match
+
+        //The answer is after the last checkpoint before the time (from)
+        //and no later than the next checkpoint (to).
+        int from = (ncp - 1) * _interval;
+        int to = Math.min(ncp * _interval, _length);
+        if (to - from <= 1) return to;
+
+        double[] times = tvar.readIndexValues(from + 1, to - 1);
+        int n = countBefore(times, time, after);
+
+        return from + 1 + n;
+    }
+
+    /**
+     * Return the time of the given sample of the unconstrained time variable.
+     */
+    public double getTime(int index, TimeVariable tvar) {
+        return tvar.readIndexValues(index, index)[0];
+    }
+
+    /**
+     * Return the number of sorted times that are less than the given time,
+     * or less than or equal to if "inclusive" is true.
+     */
+    private static int countBefore(double[] times, double time, boolean inclusive) {
+        int lo = 0;
+        int hi = times.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double t = times[mid];
+            if (t < time || (inclusive && t == time)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
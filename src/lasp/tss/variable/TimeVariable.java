@@ -31,8 +31,10 @@ package lasp.tss.variable;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.apache.log4j.Logger;
@@ -41,9 +43,11 @@ import lasp.tss.TSSException;
 import lasp.tss.TSSPublicException;
 import lasp.tss.util.JulianDate;
 import lasp.tss.util.RegEx;
+import lasp.tss.util.TimeCodec;
 
 import ucar.ma2.Array;
 import ucar.ma2.DataType;
+import ucar.ma2.Range;
 import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.units.DateUnit;
@@ -70,6 +74,13 @@ public class TimeVariable extends IndependentVariable {
      */
     private DateUnit _dateUnit; 
     
+    /**
+     * Origin of the DateUnit as Java time and the size of its unit
+     * so times can be converted with simple arithmetic.
+     */
+    private long _originMillis;
+    private double _secondsPerUnit;
+    
     /**
      * The format for the string representation of the time, if defined.
      * If time unit is "formatted", the data will be stored as doubles
@@ -88,6 +99,27 @@ public class TimeVariable extends IndependentVariable {
      * For performance purposes.
      */
     private HashMap<String,DateFormat> _dateFormatMap;
+    
+    /**
+     * Reusable buffer for formatting times.
+     */
+    private StringBuilder _formatBuffer = new StringBuilder();
+
+    /**
+     * Index of the times of the unconstrained variable. May be null.
+     */
+    private TimeIndex _timeIndex;
+    
+    /**
+     * The unconstrained NetCDF Variable, used to read windows of times for the index.
+     */
+    private Variable _indexVariable;
+    
+    /**
+     * Position of the current (subset) time samples in the unconstrained variable.
+     */
+    private int _indexOffset = 0;
+    private int _indexStride = 1;
 
     public static String DEFAULT_TIME_UNIT = "milliseconds since 1970-01-01T00:00";
     
@@ -99,6 +131,8 @@ public class TimeVariable extends IndependentVariable {
         
         _dateFormatMap = new HashMap<String,DateFormat>();
         parseTimeUnits();
+        
+        _indexVariable = ncVariable;
     }
 
     /**
@@ -139,6 +173,8 @@ public class TimeVariable extends IndependentVariable {
             //numeric unit, manage units with NetCDF DateUnit
             try {
                 _dateUnit = new DateUnit("0 "+timeUnit);
+                _originMillis = _dateUnit.getDateOrigin().getTime();
+                _secondsPerUnit = _dateUnit.getTimeUnit().getValueInSeconds(1.0);
             } catch (Exception e) {
                 String msg = "Failed to parse time unit: " + timeUnit;
                 _logger.error(msg, e);
@@ -191,9 +227,7 @@ public class TimeVariable extends IndependentVariable {
         } else if (_origFormat != null) {
             //native formatted time, return default time
             try {
-                DateFormat dateFormat = getDateFormat(_origFormat);
-                Date date = dateFormat.parse(s);
-                d = date.getTime();
+                d = parseTime(s, _origFormat);
             } catch (ParseException e) {
                 String msg = "Unable to parse \""+s+"\" using the native time format: " + _origFormat;
                 _logger.error(msg, e);
@@ -206,24 +240,48 @@ public class TimeVariable extends IndependentVariable {
     
     /**
      * Return the given value as a java.util.Date, making use of the units.
+     * Return null for a missing (NaN) time.
      */
     public Date getValueAsDate(double time) {
         Date date = null;
         
+        double ms = getJavaTime(time);
+        if (! Double.isNaN(ms)) date = new Date((long) ms);
+            
+        return date;
+    }
+    
+    /**
+     * Return the given value as Java time (milliseconds since 1970), making use of the units.
+     * This is simple arithmetic, no objects are created.
+     * Return NaN for a missing (NaN) time.
+     */
+    public double getJavaTime(double time) {
+        if (Double.isNaN(time)) return Double.NaN;
+        long ms = 0;
+        
         if (isJulian()) {
-            JulianDate jd = new JulianDate(time);
-            date = jd.getDate();
+            ms = JulianDate.toMillisSinceUnixEpoch(time);
         } else if (_dateUnit != null) {
-            date = _dateUnit.makeDate(time);
+            ms = _originMillis + (long) (1000 * (time * _secondsPerUnit)); //same as DateUnit.makeDate
         } else {
-            date = new Date((long) time); //assume Unix/Java time
+            ms = (long) time; //assume Unix/Java time
         }
-            
-        return date;
+        
+        return ms;
+    }
+    
+    /**
+     * Return the requested time sample as Java time (milliseconds since 1970).
+     * Return NaN if the time is missing.
+     */
+    public double getJavaTime(int timeIndex) {
+        double time = getValues(timeIndex)[0];
+        return getJavaTime(time);
     }
     
     /**
-     * Return the requested time sample as a Date.
+     * Return the requested time sample as a Date, null if the time is missing.
      */
     public Date getValueAsDate(int timeIndex) {
         Date date = null;
@@ -273,9 +331,7 @@ public class TimeVariable extends IndependentVariable {
                 Array array = getTimeSample(timeIndex);
                 s = (String) array.getObject(0);
                 //String s = array.next().toString();
-                DateFormat dateFormat = getDateFormat(_origFormat);
-                Date date = dateFormat.parse(s);
-                dd[0] = date.getTime();
+                dd[0] = parseTime(s, _origFormat);
             } catch (ParseException e) {
                 String msg = "Unable to parse \""+s+"\" using the native time format: " + _origFormat;
                 _logger.warn(msg);
@@ -302,27 +358,117 @@ public class TimeVariable extends IndependentVariable {
         if (isFormatted()) {
             //parse formatted times only once
             //String format = getNetcdfVariable().findAttribute("format").getStringValue();
-            DateFormat dateFormat = getDateFormat(_format);
-            
-            int n = (int) array.getSize();
-            d = new double[n];
+            d = parseTimes(array, _format);
+        } else d = super.getValues();
+        
+        return d;
+    }
+    
+    /**
+     * Parse the formatted times in the Array as Java time.
+     * Times that can't be parsed will be NaN.
+     */
+    private double[] parseTimes(Array array, String format) {
+        int n = (int) array.getSize();
+        double[] d = new double[n];
+        
+        int i = 0;
+        while(array.hasNext()) {
+            String s = array.next().toString(); //could be string or number
+            try {
+                d[i] = parseTime(s, format);
+            } catch (ParseException e) {
+                String msg = "Failed to parse time value: " + s;
+                _logger.warn(msg);
+                //throw new TSSException(msg, e);
+                d[i] = Double.NaN;
+            }
+            i++;
+        }
+        
+        return d;
+    }
+    
+  //----- Time Index -------------------------------------------------------
+    
+    /**
+     * Keep track of where the subset lies within the unconstrained variable
+     * so the time index can be applied.
+     */
+    public void subset(Range range) {
+        super.subset(range);
+        
+        if (range != null && range.length() > 0) {
+            _indexOffset += range.first() * _indexStride;
+            _indexStride *= range.stride();
+        }
+    }
+    
+    /**
+     * Set the index of the times of the unconstrained variable.
+     * Set it to null if the times no longer match the source (e.g. binned).
+     */
+    public void setTimeIndex(TimeIndex index) {
+        _timeIndex = index;
+    }
+    
+    /**
+     * Return the time index if it can be used to search the current times.
+     * Return null if there is no index, the times have been reformatted
+     * or the current subset is not contiguous.
+     */
+    public TimeIndex getTimeIndex() {
+        TimeIndex index = _timeIndex;
+        if (index == null || _indexStride != 1 || _format != _origFormat) return null;
+        if (! index.isUsable(this)) return null;
+        return index;
+    }
+    
+    /**
+     * Are the current times a contiguous run of the unconstrained times,
+     * in the units they are stored in?
+     */
+    public boolean isContiguous() {
+        return _indexStride == 1 && ! isFormatted();
+    }
+    
+    /**
+     * Return the position of the first current time sample in the unconstrained variable.
+     */
+    public int getIndexOffset() {
+        return _indexOffset;
+    }
+    
+    /**
+     * Return the number of time samples in the unconstrained variable.
+     */
+    public int getIndexLength() {
+        return _indexVariable.getShape(0);
+    }
+    
+    /**
+     * Read the times from the unconstrained variable for the given (inclusive) 
+     * range of samples. Formatted times are returned as Java time.
+     */
+    public double[] readIndexValues(int first, int last) {
+        double[] d = null;
+        
+        try {
+            List<Range> ranges = new ArrayList<Range>(_indexVariable.getRanges()); //original Ranges are immutable
+            ranges.set(0, new Range(first, last));
+            Array array = _indexVariable.read(ranges);
             
-            int i = 0;
-            while(array.hasNext()) {
-                String s = array.next().toString(); //could be string or number
-                try {
-                    Date date = dateFormat.parse(s);
-                    d[i] = date.getTime();
-                } catch (ParseException e) {
-                    String msg = "Failed to parse time value: " + s;
-                    _logger.warn(msg);
-                    //throw new TSSException(msg, e);
-                    d[i] = Double.NaN;
-                }
-                i++;
+            if (_origFormat != null) d = parseTimes(array, _origFormat);
+            else {
+                int n = (int) array.getSize();
+                d = new double[n];
+                for (int i=0; i<n; i++) d[i] = array.getDouble(i);
             }
-
-        } else d = super.getValues();
+        } catch (Exception e) {
+            String msg = "Failed to read times for samples " + first + " to " + last;
+            _logger.error(msg, e);
+            throw new TSSException(msg, e);
+        }
         
         return d;
     }
@@ -337,8 +483,7 @@ public class TimeVariable extends IndependentVariable {
 
         //special handling for JuianDate since DateUnit does not support it.
         if (isJulian()) {
-            JulianDate jd = new JulianDate(date);
-            value = jd.getJulianDate();
+            value = JulianDate.fromMillisSinceUnixEpoch(date.getTime());
         } else if (isFormatted()) {
             value = date.getTime(); //Unix/Java time
         } else {
@@ -352,14 +497,39 @@ public class TimeVariable extends IndependentVariable {
      * Apply the format to the time value (in predefined units) and return as a String.
      */
     public String format(String format, double time) {
-        Date date = getValueAsDate(time);
+        if (Double.isNaN(time)) return "NaN";
+        long ms = (long) getJavaTime(time);
+        
+        //Use the compiled codec if it supports the format and time.
+        TimeCodec codec = TimeCodec.getCodec(format);
+        if (codec != null && codec.canFormat(ms)) {
+            _formatBuffer.setLength(0);
+            codec.format(ms, _formatBuffer);
+            return _formatBuffer.toString();
+        }
         
         DateFormat df = getDateFormat(format);
-        String formattedTime = df.format(date);
+        String formattedTime = df.format(new Date(ms));
 
         return formattedTime;
     }
     
+    /**
+     * Parse the formatted time as Java time. Use the compiled codec if it
+     * supports the format, otherwise (or if it fails) use SimpleDateFormat.
+     */
+    private double parseTime(String s, String format) throws ParseException {
+        TimeCodec codec = TimeCodec.getCodec(format);
+        if (codec != null) {
+            long ms = codec.parse(s);
+            if (ms != TimeCodec.INVALID) return ms;
+        }
+        
+        DateFormat dateFormat = getDateFormat(format);
+        Date date = dateFormat.parse(s);
+        return date.getTime();
+    }
+    
     /**
      * Get the DateFormat object for the given format string.
      */
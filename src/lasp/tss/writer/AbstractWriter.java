@@ -28,12 +28,20 @@
  */
 package lasp.tss.writer;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import lasp.tss.TSSException;
+import lasp.tss.TSSProperties;
+import lasp.tss.TimeSeriesDataset;
 import lasp.tss.util.ServerUtils;
+import lasp.tss.variable.TSSVariable;
+
+import org.apache.log4j.Logger;
 
 /**
  * Base class for Writers which are responsible for writing the Servlet response.
@@ -42,6 +50,9 @@ import lasp.tss.util.ServerUtils;
  */
 public abstract class AbstractWriter implements Writer { 
 
+    // Initialize a logger.
+    private static final Logger _logger = Logger.getLogger(AbstractWriter.class);
+
     /**
      * Each Writer maintains its own set of properties.
      * Typically (only?) from the tss.properties file.
@@ -56,11 +67,98 @@ public abstract class AbstractWriter implements Writer {
     public abstract String getContentType();
 
 
+    /**
+     * Stream that compresses the output, null if the output is not compressed.
+     */
+    private CompressedOutputStream _compressedOutput;
+    
     /**
      * No-op. Override to initialize the Writer before anything gets written.
      */
     public void init() {}
     
+    /**
+     * No-op. Override to flush the output.
+     */
+    public void flush() {}
+    
+    /**
+     * Complete the output after it has been written: flush it and
+     * finish the compression, if any.
+     */
+    public void finish() {
+        flush();
+        if (_compressedOutput != null) {
+            try {
+                _compressedOutput.finish();
+            } catch (IOException e) {
+                String msg = "Failed to finish the compressed output.";
+                throw new TSSException(msg, e);
+            }
+        }
+    }
+    
+    /**
+     * Release the resources held for the output (i.e. the compressor)
+     * whether or not it was finished. The server does this for every Writer.
+     */
+    public void release() {
+        if (_compressedOutput != null) _compressedOutput.release();
+    }
+    
+    /**
+     * Is the output compressed.
+     */
+    public boolean isCompressed() {
+        return _compressedOutput != null;
+    }
+    
+    /**
+     * Hook for the WriterFactory to set the stream that compresses the output.
+     */
+    public void setCompressedOutput(CompressedOutputStream out) {
+        _compressedOutput = out;
+    }
+    
+    /**
+     * Read the given block of time samples for each of the given variables.
+     * The variables will serve the time samples from these blocks.
+     */
+    protected void readBlock(List<TSSVariable> variables, int startIndex, int count) {
+        for (TSSVariable var : variables) {
+            var.readBlock(startIndex, count);
+        }
+    }
+    
+    /**
+     * Throw a RequestCancelledException if the request for the given dataset
+     * has been cancelled. Call this before each block of time samples.
+     * A failed write to the client cancels the request (see WriterFactory)
+     * so there is no need to flush the output with checkError.
+     */
+    protected void checkCancel(TimeSeriesDataset ds) {
+        ds.checkCancel();
+    }
+    
+    /**
+     * Return the number of time samples to read at a time.
+     * Defined by the "block.size" property for the writer,
+     * otherwise the global "block.size" property.
+     */
+    public int getBlockSize() {
+        int size = DataWriter.DEFAULT_BLOCK_SIZE;
+        String s = getProperty("block.size", TSSProperties.getProperty("block.size"));
+        if (s != null) {
+            try {
+                size = Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                _logger.warn("Invalid block.size: " + s);
+            }
+        }
+        if (size < 1) size = 1;
+        return size;
+    }
+    
     /**
      * Return the value for the Content-Description http header.
      */
@@ -48,11 +48,18 @@ public abstract class BinaryDataWriter extends BinaryWriter implements DataWrite
             
             writeHeader();
 
-            //Loop over time samples. write, flush, and check for errors
+            //Loop over time samples, reading a block of time samples for all variables at a time.
             int ntim = ds.getLength();
-            for (int itim = 0; itim < ntim; itim++) {
-                //delegate to the subclass to write each time sample
-                writeTimeSample(itim);
+            int blockSize = getBlockSize();
+            for (int start = 0; start < ntim; start += blockSize) {
+                //Stop if the request has been cancelled (e.g. it ran out of time).
+                checkCancel(ds);
+                int n = Math.min(blockSize, ntim - start);
+                readBlock(getVariables(), start, n);
+                for (int itim = start; itim < start + n; itim++) {
+                    //delegate to the subclass to write each time sample
+                    writeTimeSample(itim);
+                }
             }
             
             writeFooter();
@@ -73,6 +80,7 @@ public abstract class BinaryDataWriter extends BinaryWriter implements DataWrite
      */
     public void writeFooter() {}
 
+
     
   //----- DatasetWriter Methods ----------------------------------------------
 
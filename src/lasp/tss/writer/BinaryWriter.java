@@ -35,6 +35,7 @@ import java.nio.ByteBuffer;
 import javax.servlet.ServletOutputStream;
 
 import lasp.tss.TSSException;
+import lasp.tss.util.RequestCancelTask;
 
 /**
  * The BinaryWriter abstract class provides implementation for writing binary data to
@@ -78,6 +79,9 @@ public abstract class BinaryWriter extends AbstractWriter {
         try {
             _writer.write(bytes);
         } catch (IOException e) {
+            //Most likely the client has gone away, stop working on the request.
+            RequestCancelTask task = RequestCancelTask.getCurrent();
+            if (task != null) task.cancel("Unable to write to the client.");
             String msg = "Failed to write the byte data.";
             throw new TSSException(msg, e);
         }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.writer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Compress the output of a Writer as it is written to the ServletOutputStream
+ * with the "gzip" or "deflate" HTTP content coding.
+ * Compressed data are written as the buffer fills. If syncFlush is true,
+ * a flush also writes out what has been compressed so far, at some cost
+ * in compression. finish must be called to complete the output.
+ * release must be called in any case to free the native memory of the Deflater.
+ */
+public class CompressedOutputStream extends ServletOutputStream {
+
+    private DeflaterOutputStream _out;
+    private Deflater _deflater;
+    private boolean _finished;
+
+    /**
+     * Construct a stream to compress output with the given encoding ("gzip" or "deflate").
+     */
+    public CompressedOutputStream(OutputStream out, String encoding, int bufferSize, boolean syncFlush) throws IOException {
+        //Closing the compressed stream must not close the response.
+        out = new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        if (encoding.equals("gzip")) {
+            GzipStream gzip = new GzipStream(out, bufferSize, syncFlush);
+            _deflater = gzip.getDeflater();
+            _out = gzip;
+        } else {
+            _deflater = new Deflater();
+            _out = new DeflaterOutputStream(out, _deflater, bufferSize, syncFlush);
+        }
+    }
+
+    public void write(int b) throws IOException {
+        _out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        _out.write(b, off, len);
+    }
+
+    public void flush() throws IOException {
+        _out.flush();
+    }
+
+    /**
+     * Write what is left of the compressed data and release the Deflater.
+     * The underlying stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (_finished) return;
+        _finished = true;
+        try {
+            _out.close();
+        } finally {
+            _deflater.end();
+        }
+    }
+
+    /**
+     * Release the Deflater without writing any more. The output is left
+     * incomplete if it wasn't finished. This can be called more than once.
+     */
+    public void release() {
+        _finished = true;
+        _deflater.end();
+    }
+
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * GZIPOutputStream that lets us release its Deflater.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out, int bufferSize, boolean syncFlush) throws IOException {
+            super(out, bufferSize, syncFlush);
+        }
+
+        Deflater getDeflater() {
+            return def;
+        }
+    }
+}
@@ -39,6 +39,11 @@ import lasp.tss.variable.TSSVariable;
  */
 public interface DataWriter extends DatasetWriter {
     
+    /**
+     * Default number of time samples to read at a time.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+    
     /**
      * To be invoked before writing any time samples.
      */
@@ -1,6 +1,5 @@
 package lasp.tss.writer;
 
-import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -149,8 +148,8 @@ public class JsonWriter extends TextDataWriter {
             //TODO: test for time var == NaN, skip entire time step
             if (variable instanceof TimeVariable) {
                 TimeVariable tvar = (TimeVariable) variable;
-                Date date = tvar.getValueAsDate(timeIndex);
-                s = "" + date.getTime();
+                double ms = tvar.getJavaTime(timeIndex);
+                s = Double.isNaN(ms) ? "null" : "" + (long) ms; //missing time as null, like other values
             } else {
                 String[] values = variable.getStringValues(timeIndex); 
                 if (values == null) return null; //no data for this time sample
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.writer;
+
+import java.util.Map;
+
+import lasp.tss.iosp.GranuleCache;
+import lasp.tss.util.NcmlCache;
+import lasp.tss.util.RequestFlight;
+import lasp.tss.util.RequestLane;
+import lasp.tss.util.RequestMetrics;
+import lasp.tss.util.RequestTimer;
+import lasp.tss.util.ResponseCache;
+
+/**
+ * Write the server's metrics in the Prometheus text exposition format:
+ * request latency, bytes out, status codes, outcomes, time spent in each phase
+ * of the requests, and the state of the caches and request lanes.
+ */
+public class MetricsWriter extends TextWriter {
+
+    public String getContentType() { return "text/plain; version=0.0.4"; }
+
+    public void write() {
+        writeRequestMetrics();
+        writeCacheMetrics();
+        writeLaneMetrics();
+    }
+
+    private void writeRequestMetrics() {
+        double[] buckets = RequestMetrics.getBuckets();
+
+        header("tss_request_duration_seconds", "histogram", "Time to handle requests by dataset and output type.");
+        for (RequestMetrics.Series series : RequestMetrics.getSeries()) {
+            String labels = "dataset=\"" + escape(series.getDataset()) + "\",type=\"" + escape(series.getType()) + "\"";
+            long[] counts = series.getCumulativeCounts();
+            for (int i=0; i<buckets.length; i++) {
+                sample("tss_request_duration_seconds_bucket", labels + ",le=\"" + buckets[i] + "\"", counts[i]);
+            }
+            sample("tss_request_duration_seconds_bucket", labels + ",le=\"+Inf\"", series.getCount());
+            sample("tss_request_duration_seconds_sum", labels, series.getSeconds());
+            sample("tss_request_duration_seconds_count", labels, series.getCount());
+        }
+
+        header("tss_response_bytes_total", "counter", "Bytes written by dataset and output type.");
+        for (RequestMetrics.Series series : RequestMetrics.getSeries()) {
+            String labels = "dataset=\"" + escape(series.getDataset()) + "\",type=\"" + escape(series.getType()) + "\"";
+            sample("tss_response_bytes_total", labels, series.getBytes());
+        }
+
+        header("tss_requests_total", "counter", "Requests by status code.");
+        for (Map.Entry<Integer, Long> entry : RequestMetrics.getStatusCounts().entrySet()) {
+            sample("tss_requests_total", "status=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+
+        header("tss_request_outcomes_total", "counter", "Requests by dataset, output type and outcome (ok, error, cancelled, rejected).");
+        for (RequestMetrics.Series series : RequestMetrics.getSeries()) {
+            String labels = "dataset=\"" + escape(series.getDataset()) + "\",type=\"" + escape(series.getType()) + "\"";
+            for (Map.Entry<String, Long> entry : series.getOutcomeCounts().entrySet()) {
+                sample("tss_request_outcomes_total", labels + ",outcome=\"" + entry.getKey() + "\"", entry.getValue());
+            }
+        }
+
+        header("tss_coalesced_requests_total", "counter", "Requests that ran for others to follow (leader) or were served by following another (follower).");
+        sample("tss_coalesced_requests_total", "role=\"leader\"", RequestFlight.getLeaderCount());
+        sample("tss_coalesced_requests_total", "role=\"follower\"", RequestFlight.getFollowerCount());
+
+        header("tss_request_phase_seconds_total", "counter", "Time spent in each phase of the requests.");
+        for (String phase : RequestTimer.PHASES) {
+            sample("tss_request_phase_seconds_total", "phase=\"" + phase + "\"", RequestMetrics.getPhaseSeconds(phase));
+        }
+    }
+
+    private void writeCacheMetrics() {
+        header("tss_cache_hits_total", "counter", "Requests served from each cache.");
+        sample("tss_cache_hits_total", "cache=\"ncml\"", NcmlCache.getHitCount());
+        sample("tss_cache_hits_total", "cache=\"granule\"", GranuleCache.getHitCount());
+        sample("tss_cache_hits_total", "cache=\"response\"", ResponseCache.getHitCount());
+        sample("tss_cache_hits_total", "cache=\"response_disk\"", ResponseCache.getDiskHitCount());
+
+        header("tss_cache_misses_total", "counter", "Requests that each cache could not serve.");
+        sample("tss_cache_misses_total", "cache=\"ncml\"", NcmlCache.getMissCount());
+        sample("tss_cache_misses_total", "cache=\"granule\"", GranuleCache.getMissCount());
+        sample("tss_cache_misses_total", "cache=\"response\"", ResponseCache.getMissCount());
+
+        header("tss_cache_evictions_total", "counter", "Entries dropped from each cache to make room.");
+        sample("tss_cache_evictions_total", "cache=\"granule\"", GranuleCache.getEvictionCount());
+        sample("tss_cache_evictions_total", "cache=\"response\"", ResponseCache.getEvictionCount());
+
+        header("tss_cache_entries", "gauge", "Entries in each cache.");
+        sample("tss_cache_entries", "cache=\"ncml\"", NcmlCache.getSize());
+        sample("tss_cache_entries", "cache=\"granule\"", GranuleCache.getCount());
+        sample("tss_cache_entries", "cache=\"response\"", ResponseCache.getCount());
+
+        header("tss_cache_bytes", "gauge", "Estimated memory used by each cache.");
+        sample("tss_cache_bytes", "cache=\"granule\"", GranuleCache.getSize());
+        sample("tss_cache_bytes", "cache=\"response\"", ResponseCache.getSize());
+    }
+
+    private void writeLaneMetrics() {
+        header("tss_lane_active", "gauge", "Requests running in each lane.");
+        for (RequestLane lane : RequestLane.getLanes()) {
+            sample("tss_lane_active", "lane=\"" + escape(lane.getName()) + "\"", lane.getActiveCount());
+        }
+
+        header("tss_lane_waiting", "gauge", "Requests waiting for a turn in each lane.");
+        for (RequestLane lane : RequestLane.getLanes()) {
+            sample("tss_lane_waiting", "lane=\"" + escape(lane.getName()) + "\"", lane.getQueueLength());
+        }
+
+        header("tss_lane_admitted_total", "counter", "Requests let into each lane.");
+        for (RequestLane lane : RequestLane.getLanes()) {
+            sample("tss_lane_admitted_total", "lane=\"" + escape(lane.getName()) + "\"", lane.getAdmittedCount());
+        }
+
+        header("tss_lane_rejected_total", "counter", "Requests turned away from each lane.");
+        for (RequestLane lane : RequestLane.getLanes()) {
+            sample("tss_lane_rejected_total", "lane=\"" + escape(lane.getName()) + "\"", lane.getRejectedCount());
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    private void header(String name, String type, String help) {
+        println("# HELP " + name + " " + help);
+        println("# TYPE " + name + " " + type);
+    }
+
+    private void sample(String name, String labels, long value) {
+        println(name + "{" + labels + "} " + value);
+    }
+
+    private void sample(String name, String labels, double value) {
+        println(name + "{" + labels + "} " + value);
+    }
+
+    /**
+     * Escape a label value.
+     */
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -58,11 +58,18 @@ public abstract class TextDataWriter extends TextWriter implements DataWriter {
             
             writeHeader();
                 
-            //Loop over time samples. write
+            //Loop over time samples, reading a block of time samples for all variables at a time.
             int ntim = ds.getLength();
-            for (int itim = 0; itim < ntim; itim++) {
-                //delegate to the subclass to write each time sample
-                writeTimeSample(itim);
+            int blockSize = getBlockSize();
+            for (int start = 0; start < ntim; start += blockSize) {
+                //Stop if the request has been cancelled (e.g. the client went away).
+                checkCancel(ds);
+                int n = Math.min(blockSize, ntim - start);
+                readBlock(getVariables(), start, n);
+                for (int itim = start; itim < start + n; itim++) {
+                    //delegate to the subclass to write each time sample
+                    writeTimeSample(itim);
+                }
             }
             
             writeFooter();
@@ -105,6 +112,7 @@ public abstract class TextDataWriter extends TextWriter implements DataWriter {
      */
     public void writeFooter() {}
 
+
   //----- DatasetWriter Methods ----------------------------------------------
 
     private TimeSeriesDataset _dataset;
@@ -28,7 +28,10 @@
  */
 package lasp.tss.writer;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Properties;
 
@@ -41,6 +44,8 @@ import org.apache.log4j.Logger;
 import lasp.tss.TSSException;
 import lasp.tss.TSSProperties;
 import lasp.tss.TSSPublicException;
+import lasp.tss.util.RequestCancelTask;
+import lasp.tss.util.ServerUtils;
 
 /**
  * Factory to construct implementation of a Writer interface.
@@ -95,11 +100,14 @@ public class WriterFactory {
         if (cd == null) cd = "tss-" + type;
         response.setHeader("Content-Description", cd);
         
-        //Set date headers
+        //Set date header
+        //The server sets Last-Modified (and ETag) from the data sources when it can.
         long date = System.currentTimeMillis();
-        response.addDateHeader("Date", date);
-        response.addDateHeader("Last-Modified", date);
-        //TODO: use data publish date for Last-Modified? 
+        response.setDateHeader("Date", date);
+        
+        //Tell clients and proxies how long they may keep the response.
+        String cc = getCacheControl(type);
+        if (cc != null) response.setHeader("Cache-Control", cc);
         
         //Set other HTTP headers
         String dodsServer = TSSProperties.getProperty("server.dods");
@@ -107,10 +115,28 @@ public class WriterFactory {
         String server = TSSProperties.getProperty("server.tss");
         response.setHeader("Server", server); 
         
+        //Compress the output if the client accepts it.
+        //Responses differ by Accept-Encoding, let caches know.
+        //Once the response is committed (e.g. for an error page after some output)
+        //the Content-Encoding can't be set so don't compress.
+        String encoding = response.isCommitted() ? null : getContentEncoding(type, request);
+        if (isCompressed(type)) response.setHeader("Vary", "Accept-Encoding");
+        
         //Get the HttpServletResponse's OutputStream/Writer depending on whether we are writing binary or text.
         try {
-            if (writer instanceof TextWriter) {
-                PrintWriter pw = response.getWriter();
+            if (encoding != null) {
+                response.setHeader("Content-Encoding", encoding);
+                ServletOutputStream sout = response.getOutputStream();
+                CompressedOutputStream cout = new CompressedOutputStream(sout, encoding, getBufferSize(), isSyncFlush());
+                writer.setCompressedOutput(cout);
+                if (writer instanceof TextWriter) {
+                    PrintWriter pw = makePrintWriter(cout, response.getCharacterEncoding());
+                    ((TextWriter) writer).setOutput(pw);
+                } else if (writer instanceof BinaryWriter) {
+                    ((BinaryWriter) writer).setOutput(cout);
+                }
+            } else if (writer instanceof TextWriter) {
+                PrintWriter pw = makePrintWriter(response.getOutputStream(), response.getCharacterEncoding());
                 ((TextWriter) writer).setOutput(pw);
             } else if (writer instanceof BinaryWriter) {
                 ServletOutputStream sout = response.getOutputStream();
@@ -125,4 +151,122 @@ public class WriterFactory {
         return writer;
     }
 
+    /**
+     * Make a PrintWriter for text output to the given stream.
+     * PrintWriter hides IOExceptions until checkError, which flushes the output.
+     * A write that fails (most likely because the client has gone away) cancels
+     * the request instead, so the writer only needs to check the RequestCancelTask.
+     */
+    private static PrintWriter makePrintWriter(OutputStream out, String charset) throws IOException {
+        out = new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    this.out.write(b, off, len);
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+            }
+
+            public void flush() throws IOException {
+                try {
+                    this.out.flush();
+                } catch (IOException e) {
+                    cancel();
+                    throw e;
+                }
+            }
+            
+            private void cancel() {
+                RequestCancelTask task = RequestCancelTask.getCurrent();
+                if (task != null) task.cancel("Unable to write to the client.");
+            }
+        };
+        
+        return new PrintWriter(new OutputStreamWriter(out, charset));
+    }
+
+    /**
+     * Return the value of the Cache-Control HTTP header for the given output type.
+     * Defined by the writer.<suffix>.cacheControl property, or cache.control for all.
+     */
+    public static String getCacheControl(String type) {
+        String cc = TSSProperties.getProperty("writer." + type + ".cacheControl");
+        if (cc == null) cc = TSSProperties.getProperty("cache.control");
+        return cc;
+    }
+
+  //----- Compression -----
+
+    /**
+     * Return the content coding ("gzip" or "deflate") to use for the given output type
+     * based on the request's Accept-Encoding header. Return null if the output
+     * should not be compressed.
+     */
+    public static String getContentEncoding(String type, HttpServletRequest request) {
+        if (! isCompressed(type)) return null;
+        
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) return null;
+        
+        //Get the quality value for each coding we support.
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String s : accept.split(",")) {
+            String[] ss = s.split(";");
+            String coding = ss[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i=1; i<ss.length; i++) {
+                String param = ss[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            
+            if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = q;
+            else if (coding.equals("deflate")) deflate = q;
+            else if (coding.equals("*")) any = q;
+        }
+        
+        //Codings not named are acceptable if "*" is.
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        
+        String encoding = null;
+        if (gzip > 0 && gzip >= deflate) encoding = "gzip";
+        else if (deflate > 0) encoding = "deflate";
+        
+        return encoding;
+    }
+    
+    /**
+     * Should the output of the given type be compressed when the client accepts it.
+     * Defined by the writer.<suffix>.compress property, or compress for all.
+     */
+    private static boolean isCompressed(String type) {
+        String s = TSSProperties.getProperty("writer." + type + ".compress");
+        if (s == null) s = TSSProperties.getProperty("compress", "true");
+        return Boolean.parseBoolean(s.trim());
+    }
+    
+    /**
+     * Return the number of bytes to compress at a time.
+     */
+    private static int getBufferSize() {
+        return ServerUtils.getIntProperty("compress.buffer.size", 8192);
+    }
+    
+    /**
+     * Should a flush of the output write what has been compressed so far.
+     */
+    private static boolean isSyncFlush() {
+        String s = TSSProperties.getProperty("compress.flush", "false");
+        return Boolean.parseBoolean(s.trim());
+    }
+
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare reading a column of doubles from compressed chunks (as the ColumnarIOSP does)
+ * with reading the same doubles from a flat binary file (as the BinIOSP does, memory mapped).
+ * Each file is opened for every read, so the flat file is mapped each time rather than
+ * kept mapped between reads as the shared MappedDoubleFile would be.
+ * The data are made from a fixed seed so runs can be compared:
+ *
+ *   ant benchmark [-Dbenchmark.args="samples repeats"]
+ *
+ * For each kind of column this prints the bytes per value and the median time
+ * for a full read of each file after a warm up.
+ */
+public class ChunkCodecBenchmark {
+
+    /**
+     * Number of time samples in each chunk, as the ColumnarConverter makes them.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+        int repeats = (args.length > 1) ? Integer.parseInt(args[1]) : 11;
+
+        Random random = new Random(20100101);
+        double[] times = new double[n];
+        double[] measured = new double[n];
+        double[] noise = new double[n];
+        for (int i=0; i<n; i++) {
+            times[i] = 1262304000000.0 + 1000.0 * i + ((i % 1000 == 0) ? 7 : 0); //ms, a few glitches
+            measured[i] = Math.round(10000 * Math.sin(i / 5000.0) + random.nextGaussian()) / 100.0;
+            noise[i] = random.nextDouble();
+        }
+
+        System.out.println("samples: " + n + ", chunk size: " + CHUNK_SIZE + ", repeats: " + repeats);
+        System.out.println(String.format("%-10s %12s %12s %12s %12s", "column", "bytes/value", "chunks ms", "flat ms", "ratio"));
+        run("times", times, repeats);
+        run("measured", measured, repeats);
+        run("noise", noise, repeats);
+    }
+
+    private static void run(String name, double[] values, int repeats) throws IOException {
+        int n = values.length;
+        File flat = File.createTempFile("benchmark", ".bin");
+        File chunked = File.createTempFile("benchmark", ".chunks");
+        flat.deleteOnExit();
+        chunked.deleteOnExit();
+
+        //The flat file of big-endian doubles
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(flat), 65536));
+        try {
+            for (double d : values) out.writeDouble(d);
+        } finally {
+            out.close();
+        }
+
+        //The compressed chunks, one after another
+        int nchunk = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long[] offsets = new long[nchunk];
+        int[] lengths = new int[nchunk];
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunked), 65536));
+        try {
+            double[] chunk = new double[CHUNK_SIZE];
+            long offset = 0;
+            for (int ichunk=0; ichunk<nchunk; ichunk++) {
+                int count = Math.min(CHUNK_SIZE, n - ichunk * CHUNK_SIZE);
+                System.arraycopy(values, ichunk * CHUNK_SIZE, chunk, 0, count);
+                byte[] bytes = ChunkCodec.encode(chunk, count);
+                out.write(bytes);
+                offsets[ichunk] = offset;
+                lengths[ichunk] = bytes.length;
+                offset += bytes.length;
+            }
+        } finally {
+            out.close();
+        }
+
+        double[] data = new double[n];
+        long[] chunkTimes = new long[repeats];
+        long[] flatTimes = new long[repeats];
+        for (int i=-1; i<repeats; i++) { //the first is a warm up
+            long t0 = System.nanoTime();
+            readChunks(chunked, offsets, lengths, data);
+            long t1 = System.nanoTime();
+            if (i == -1 && ! Arrays.equals(values, data)) throw new IllegalStateException("The chunks don't match the values.");
+
+            Arrays.fill(data, 0);
+            long t2 = System.nanoTime();
+            readFlat(flat, data);
+            long t3 = System.nanoTime();
+            if (i == -1 && ! Arrays.equals(values, data)) throw new IllegalStateException("The flat file doesn't match the values.");
+
+            if (i >= 0) {
+                chunkTimes[i] = t1 - t0;
+                flatTimes[i] = t3 - t2;
+            }
+        }
+
+        double chunkMs = median(chunkTimes) / 1e6;
+        double flatMs = median(flatTimes) / 1e6;
+        System.out.println(String.format("%-10s %12.2f %12.1f %12.1f %12.2f",
+            name, (double) chunked.length() / n, chunkMs, flatMs, chunkMs / flatMs));
+
+        flat.delete();
+        chunked.delete();
+    }
+
+    /**
+     * Read every chunk as the ColumnarIOSP does: read its bytes, then decode them.
+     */
+    private static void readChunks(File file, long[] offsets, int[] lengths, double[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            double[] values = new double[CHUNK_SIZE];
+            for (int ichunk=0; ichunk<offsets.length; ichunk++) {
+                int count = Math.min(CHUNK_SIZE, data.length - ichunk * CHUNK_SIZE);
+                if (values.length != count) values = new double[count];
+                byte[] bytes = new byte[lengths[ichunk]];
+                raf.seek(offsets[ichunk]);
+                raf.readFully(bytes);
+                ChunkCodec.decode(bytes, values);
+                System.arraycopy(values, 0, data, ichunk * CHUNK_SIZE, count);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the flat file as the MappedDoubleFile does: map it, then read its doubles.
+     */
+    private static void readFlat(File file, double[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data.length * 8L);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            bb.asDoubleBuffer().get(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static double median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips through the ChunkCodec at the edges of each encoding.
+ * Values must come back with the same bits, including NaN and -0.0.
+ */
+public class ChunkCodecTest {
+
+    /**
+     * Encode and decode the values, make sure they are unchanged,
+     * and return the encoding that was used.
+     */
+    private static byte roundTrip(double... values) throws IOException {
+        byte[] bytes = ChunkCodec.encode(values, values.length);
+        double[] decoded = new double[values.length];
+        ChunkCodec.decode(bytes, decoded);
+        for (int i=0; i<values.length; i++) {
+            long expected = Double.doubleToRawLongBits(values[i]);
+            long actual = Double.doubleToRawLongBits(decoded[i]);
+            assertEquals("value " + i + " of " + values.length, expected, actual);
+        }
+        return bytes[0];
+    }
+
+    /**
+     * Regular times with one change in the spacing of the given size,
+     * enough of them that the delta encoding is the smallest.
+     */
+    private static double[] jump(long dod) {
+        double[] values = new double[64];
+        long delta = 1000;
+        long t = 1000000;
+        for (int i=0; i<values.length; i++) {
+            if (i == 32) delta += dod;
+            t += delta;
+            values[i] = t;
+        }
+        return values;
+    }
+
+  //----- DELTA ------------------------------------------------------------
+
+    @Test
+    public void regularTimes() throws IOException {
+        double[] values = new double[1000];
+        for (int i=0; i<values.length; i++) values[i] = 1262304000000.0 + 60000.0 * i;
+        assertEquals(ChunkCodec.DELTA, roundTrip(values));
+        //Mostly one bit per value
+        assertEquals(1 + 16 + 125, ChunkCodec.encode(values, values.length).length);
+    }
+
+    @Test
+    public void deltaOfDeltaTiers() throws IOException {
+        long[] edges = {
+            -63, 64, -64, 65,         //7 bits
+            -255, 256, -256, 257,     //9 bits
+            -2047, 2048, -2048, 2049, //12 bits
+            Integer.MIN_VALUE, Integer.MAX_VALUE, (long) Integer.MIN_VALUE - 1, (long) Integer.MAX_VALUE + 1, //32 bits
+            1L << 40, -(1L << 40)    //64 bits
+        };
+        for (long dod : edges) {
+            assertEquals("delta of delta " + dod, ChunkCodec.DELTA, roundTrip(jump(dod)));
+        }
+    }
+
+    @Test
+    public void deltaOfDeltaSizes() {
+        long[] dods = {0, -63, 64, -255, 256, -2047, 2048, Integer.MIN_VALUE, Integer.MAX_VALUE, 1L << 40};
+        for (long dod : dods) {
+            //A change in the spacing and back again right after it
+            double[] values = jump(dod);
+            for (int i=33; i<values.length; i++) values[i] -= dod * (i - 32);
+            
+            //The encoding, the first value and delta, then the changes with their prefixes
+            int nbit = 8 + 64 + 64 + (values.length - 4) + getBits(dod) + getBits(-dod);
+            byte[] bytes = ChunkCodec.encode(values, values.length);
+            assertEquals("delta of delta " + dod, ChunkCodec.DELTA, bytes[0]);
+            assertEquals("delta of delta " + dod, (nbit + 7) / 8, bytes.length);
+        }
+    }
+    
+    /**
+     * Return the number of bits that a delta of delta should take.
+     */
+    private static int getBits(long dod) {
+        if (dod == 0) return 1;
+        if (dod >= -63 && dod <= 64) return 2 + 7;
+        if (dod >= -255 && dod <= 256) return 3 + 9;
+        if (dod >= -2047 && dod <= 2048) return 4 + 12;
+        if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) return 5 + 32;
+        return 5 + 64;
+    }
+
+    @Test
+    public void largeWholeNumbers() throws IOException {
+        //From the smallest to the largest that are exact, a 64 bit change and back
+        long max = 1L << 52;
+        double[] values = new double[64];
+        for (int i=0; i<32; i++) values[i] = -max + i;
+        for (int i=32; i<64; i++) values[i] = max - 63 + i;
+        assertEquals(ChunkCodec.DELTA, roundTrip(values));
+    }
+
+    @Test
+    public void negativeZeroIsNotDelta() throws IOException {
+        //-0.0 is a whole number but doesn't survive a long.
+        byte encoding = roundTrip(0, 1, 2, -0.0, 4, 5);
+        assertEquals(true, encoding != ChunkCodec.DELTA);
+    }
+
+  //----- XOR --------------------------------------------------------------
+
+    @Test
+    public void slowlyChangingValues() throws IOException {
+        double[] values = new double[1000];
+        for (int i=0; i<values.length; i++) values[i] = Math.round(1000 * Math.sin(i / 100.0)) / 100.0;
+        assertEquals(ChunkCodec.XOR, roundTrip(values));
+    }
+
+    @Test
+    public void fullXorWindow() throws IOException {
+        //Differ in both the sign bit and the last bit: 64 meaningful bits.
+        double a = Double.longBitsToDouble(0x0000000000000001L);
+        double b = Double.longBitsToDouble(0x8000000000000000L);
+        double c = Double.longBitsToDouble(0xfffffffffffffffeL);
+        roundTrip(a, b, a, b, c, a, c);
+        //A full window followed by smaller ones that fit in it
+        roundTrip(a, b, b, 1.0, 1.5, 1.25, 1.0);
+    }
+
+    @Test
+    public void leadingZerosCap() throws IOException {
+        //The XOR has more than 31 leading zeros, which can only be stored as 31.
+        double[] values = new double[10];
+        long bits = Double.doubleToRawLongBits(1.0);
+        for (int i=0; i<values.length; i++) values[i] = Double.longBitsToDouble(bits ^ (1L << (i % 3)));
+        assertEquals(ChunkCodec.XOR, roundTrip(values));
+        //Leading zeros from 0 to 63
+        double[] values2 = new double[65];
+        values2[0] = 0;
+        for (int i=1; i<values2.length; i++) values2[i] = Double.longBitsToDouble(Long.MIN_VALUE >>> (i-1));
+        roundTrip(values2);
+    }
+
+    @Test
+    public void nanAndNegativeZero() throws IOException {
+        double otherNaN = Double.longBitsToDouble(0x7ff0000000000123L);
+        roundTrip(Double.NaN, 1.0, Double.NaN, Double.NaN, 2.0);
+        roundTrip(1.5, otherNaN, Double.NaN, otherNaN, 1.5);
+        roundTrip(0.0, -0.0, 0.0, -0.0, -0.0);
+        roundTrip(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE);
+        //All NaN
+        double[] nans = new double[100];
+        java.util.Arrays.fill(nans, Double.NaN);
+        assertEquals(ChunkCodec.XOR, roundTrip(nans));
+    }
+
+  //----- PLAIN ------------------------------------------------------------
+
+    @Test
+    public void randomValuesArePlain() throws IOException {
+        Random random = new Random(42);
+        double[] values = new double[1000];
+        for (int i=0; i<values.length; i++) values[i] = Double.longBitsToDouble(random.nextLong());
+        assertEquals(ChunkCodec.PLAIN, roundTrip(values));
+        assertEquals(1 + 8 * values.length, ChunkCodec.encode(values, values.length).length);
+    }
+
+  //----- Sizes ------------------------------------------------------------
+
+    @Test
+    public void emptyChunk() throws IOException {
+        byte[] bytes = ChunkCodec.encode(new double[0], 0);
+        assertEquals(1, bytes.length);
+        ChunkCodec.decode(bytes, new double[0]);
+        //Each encoding of nothing
+        for (byte encoding : new byte[] {ChunkCodec.PLAIN, ChunkCodec.DELTA, ChunkCodec.XOR}) {
+            ChunkCodec.decode(new byte[] {encoding}, new double[0]);
+        }
+    }
+
+    @Test
+    public void oneValue() throws IOException {
+        roundTrip(42);
+        roundTrip(0.1);
+        roundTrip(Double.NaN);
+        roundTrip(-0.0);
+        //One and two values are no smaller as deltas, decode them anyway.
+        assertEquals(42, decodeDelta(42)[0], 0);
+    }
+
+    @Test
+    public void twoValues() throws IOException {
+        roundTrip(42, -(double) (1L << 52));
+        roundTrip(0.1, 0.2);
+        double[] values = decodeDelta(42, -5);
+        assertEquals(42, values[0], 0);
+        assertEquals(37, values[1], 0);
+    }
+
+    /**
+     * Decode a DELTA chunk with the given first value and delta.
+     */
+    private static double[] decodeDelta(long first, long... delta) throws IOException {
+        java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(1 + 8 + 8 * delta.length);
+        bb.put(ChunkCodec.DELTA);
+        bb.putLong(first);
+        for (long d : delta) bb.putLong(d);
+        double[] values = new double[1 + delta.length];
+        ChunkCodec.decode(bb.array(), values);
+        return values;
+    }
+
+    @Test
+    public void partOfAnArray() throws IOException {
+        //Only the first count values are encoded, as for the last chunk of a column.
+        double[] values = {1, 2, 3, 4, 0.5, 0.25};
+        byte[] bytes = ChunkCodec.encode(values, 4);
+        double[] decoded = new double[4];
+        ChunkCodec.decode(bytes, decoded);
+        for (int i=0; i<4; i++) assertEquals(values[i], decoded[i], 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownEncoding() throws IOException {
+        ChunkCodec.decode(new byte[] {9, 0, 0}, new double[1]);
+    }
+}
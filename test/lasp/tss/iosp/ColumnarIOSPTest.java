@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lasp.tss.TestProperties;
+import lasp.tss.TimeSeriesDataset;
+import lasp.tss.variable.TimeIndex;
+import lasp.tss.writer.AbstractWriter;
+import lasp.tss.writer.DatasetWriter;
+import lasp.tss.writer.WriterFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Requests for a columnar file must give the same output whether or not
+ * chunks are skipped by their statistics (pushdown).
+ * The file has small chunks: one is all NaN, one has a NaN, and the last is short.
+ * The time index has a checkpoint every few samples so it is used across chunks.
+ */
+public class ColumnarIOSPTest {
+
+    private static final int CHUNK_SIZE = 4;
+    private static final int LENGTH = 22;
+    private static final int INDEX_INTERVAL = 3;
+
+    private static File _dir;
+
+    @BeforeClass
+    public static void setUpDataset() throws IOException {
+        _dir = File.createTempFile("columnar", "");
+        _dir.delete();
+        _dir.mkdirs();
+        TestProperties.load("dataset.dir", _dir.getAbsolutePath(), "compress", "false",
+            "writer.csv.class", "lasp.tss.writer.FormattedAsciiWriter",
+            "time.index.interval", "" + INDEX_INTERVAL);
+        TimeIndex.clear();
+
+        double[] times = new double[LENGTH];
+        double[] flux = new double[LENGTH];
+        for (int i=0; i<LENGTH; i++) {
+            times[i] = 1000 + 10 * i;
+            flux[i] = (i >= 8 && i < 12) || i == 13 ? Double.NaN : (i % 5) * 10 + i;
+        }
+
+        ColumnarWriter writer = new ColumnarWriter(new File(_dir, "cols.tsz"), CHUNK_SIZE, true);
+        writer.startVariable("time");
+        writer.write(times, 0, LENGTH);
+        writer.startVariable("flux");
+        writer.write(flux, 0, LENGTH);
+        writer.close();
+
+        writeNcml("cols", "");
+        writeNcml("cols_all", " pushdown=\"false\"");
+    }
+
+    @AfterClass
+    public static void tearDownDataset() {
+        for (File file : _dir.listFiles()) file.delete();
+        _dir.delete();
+    }
+
+    private static void writeNcml(String name, String attributes) throws IOException {
+        String ncml = "<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\""
+            + " location=\"cols.tsz\" iosp=\"lasp.tss.iosp.ColumnarIOSP\"" + attributes + ">\n"
+            + "<dimension name=\"time\"/>\n"
+            + "<variable name=\"time\" shape=\"time\" type=\"double\">"
+            + "<attribute name=\"units\" value=\"seconds since 1970-01-01\"/>"
+            + "</variable>\n"
+            + "<variable name=\"flux\" shape=\"time\" type=\"double\"/>\n"
+            + "</netcdf>\n";
+        OutputStream out = new FileOutputStream(new File(_dir, name + ".ncml"));
+        try {
+            out.write(ncml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+  //------------------------------------------------------------------------
+
+    /**
+     * Return the csv output for the given dataset and query.
+     */
+    private static String request(String dsname, String query) throws IOException {
+        HttpServletRequest request = makeRequest("/" + dsname + ".csv", query);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HttpServletResponse response = makeResponse(bytes);
+
+        TimeSeriesDataset dataset = new TimeSeriesDataset(request);
+        AbstractWriter writer = null;
+        try {
+            writer = WriterFactory.makeWriter("csv", request, response);
+            ((DatasetWriter) writer).setDataset(dataset);
+            writer.init();
+            writer.write();
+            writer.finish();
+        } finally {
+            if (writer != null) writer.release();
+            dataset.close();
+        }
+
+        return bytes.toString("UTF-8");
+    }
+
+    /**
+     * Compare the output with and without pushdown for the given query
+     * and return it.
+     */
+    private static String assertSame(String query) throws IOException {
+        String expected = request("cols_all", query);
+        String actual = request("cols", query);
+        assertEquals(query, expected, actual);
+        return actual;
+    }
+
+    /**
+     * Make a request with only the path and query.
+     */
+    private static HttpServletRequest makeRequest(final String path, final String query) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getPathInfo")) return path;
+                if (name.equals("getQueryString")) return query;
+                if (name.equals("getRequestURL")) return new StringBuffer("http://localhost/tss" + path);
+                return getDefault(method);
+            }
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(ColumnarIOSPTest.class.getClassLoader(),
+            new Class[] {HttpServletRequest.class}, handler);
+    }
+
+    /**
+     * Make a response that writes its output to the given stream and ignores the headers.
+     */
+    private static HttpServletResponse makeResponse(final OutputStream out) {
+        final ServletOutputStream sout = new ServletOutputStream() {
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+        };
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getOutputStream")) return sout;
+                if (name.equals("getCharacterEncoding")) return "UTF-8";
+                return getDefault(method);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(ColumnarIOSPTest.class.getClassLoader(),
+            new Class[] {HttpServletResponse.class}, handler);
+    }
+
+    private static Object getDefault(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    private static int countLines(String s) {
+        int n = 0;
+        for (String line : s.split("\n")) if (line.trim().length() > 0) n++;
+        return n;
+    }
+
+  //------------------------------------------------------------------------
+
+    @Test
+    public void everything() throws IOException {
+        assertEquals(LENGTH, countLines(assertSame(null)));
+        assertEquals(LENGTH, countLines(assertSame("time,flux")));
+    }
+
+    @Test
+    public void timeSelections() throws IOException {
+        //Within one chunk, across chunks, into the short last chunk, and none
+        assertEquals(2, countLines(assertSame("&time>=1010&time<1030")));
+        assertEquals(9, countLines(assertSame("&time>1020&time<=1110")));
+        assertEquals(3, countLines(assertSame("&time>=1190")));
+        assertEquals(1, countLines(assertSame("&time=1200")));
+        assertEquals(0, countLines(assertSame("&time>5000")));
+        assertSame("&time>=1970-01-01T00:17:00");
+    }
+
+    @Test
+    public void timeRangesInARow() throws IOException {
+        //Each keeps one chunk of more samples than the index interval.
+        //The samples of the first must not be used to find the times of the second.
+        assertEquals(2, countLines(assertSame("&time>=1010&time<1030")));
+        assertEquals(3, countLines(assertSame("&time>1040&time<=1070")));
+        assertEquals(2, countLines(assertSame("&time>=1010&time<1030")));
+    }
+
+    @Test
+    public void valueSelections() throws IOException {
+        //NaN is above everything, so the all NaN chunk passes only ">" selections.
+        assertTrue(countLines(assertSame("&flux>40")) > 0);
+        assertTrue(countLines(assertSame("&flux<20")) > 0);
+        assertSame("&flux>=10&flux<=30");
+        assertSame("&flux=21");
+        assertSame("&flux!=21");
+        assertEquals(0, countLines(assertSame("&flux<0")));
+    }
+
+    @Test
+    public void timeAndValueSelections() throws IOException {
+        assertSame("&time>=1050&flux>20");
+        assertSame("time&flux>45&time<1200");
+    }
+
+    @Test
+    public void hyperslabInProjection() throws IOException {
+        //Selections after a hyperslab depend on the samples before them.
+        assertEquals(4, countLines(assertSame("time,flux[2:3:11]")));
+        assertSame("time,flux[5:20]&flux>30");
+        assertSame("time[0:2:21],flux&time>1100");
+    }
+
+    @Test
+    public void selectionsAfterFilters() throws IOException {
+        assertSame("&time>1030&stride(2)&flux>20");
+        assertSame("&time~1033&flux>20");
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2010, Regents of the University of Colorado
+ * 
+ * All rights reserved. Redistribution and use in source and binary forms, 
+ * with or without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution. 
+ * Neither the name of the University of Colorado nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package lasp.tss.iosp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import lasp.tss.TestProperties;
+import lasp.tss.filter.BinningFilter;
+import lasp.tss.util.ConnectionPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ncml.NcMLReader;
+
+/**
+ * Read tables from an in-memory H2 database with the DatabaseIOSP,
+ * with and without streaming, and bin them in the database.
+ */
+public class DatabaseIOSPTest {
+
+    private static final String URL = "jdbc:h2:mem:tss_database_iosp;DB_CLOSE_DELAY=-1";
+
+    private static Connection _connection;
+
+    @BeforeClass
+    public static void setUpDatabase() throws Exception {
+        TestProperties.load("db.pool.size", "2", "db.stream", "false", "db.fetch.size", "1000",
+            "filter.binave.class", "lasp.tss.filter.BinningFilter");
+        Class.forName("org.h2.Driver");
+        _connection = DriverManager.getConnection(URL, "sa", "");
+
+        //Unique times, more rows than a few fetches
+        makeTable("unique_times");
+        for (int i=0; i<10; i++) insert("unique_times", i, 10 * i);
+
+        //Repeated times with different values
+        makeTable("repeated_times");
+        double[] times = {0, 1, 1, 2, 3, 3, 3, 4};
+        for (int i=0; i<times.length; i++) insert("repeated_times", times[i], i);
+        
+        //Integer columns with some NULLs, to bin
+        Statement stmt = _connection.createStatement();
+        stmt.execute("create table integers (T int, FLUX int)");
+        stmt.close();
+        for (int i=0; i<INTEGER_ROWS; i++) {
+            PreparedStatement insert = _connection.prepareStatement("insert into integers values (?, ?)");
+            insert.setInt(1, getIntegerTime(i));
+            double flux = getIntegerFlux(i);
+            if (Double.isNaN(flux)) insert.setNull(2, Types.INTEGER);
+            else insert.setInt(2, (int) flux);
+            insert.executeUpdate();
+            insert.close();
+        }
+    }
+    
+    private static final int INTEGER_ROWS = 40;
+    
+    private static int getIntegerTime(int i) {
+        return 3 * i;
+    }
+    
+    /**
+     * The flux of the given row in the integers table, NaN for NULL.
+     */
+    private static double getIntegerFlux(int i) {
+        return (i % 9 == 4) ? Double.NaN : (i * 7) % 13;
+    }
+
+    @AfterClass
+    public static void tearDownDatabase() throws SQLException {
+        Statement stmt = _connection.createStatement();
+        stmt.execute("drop all objects");
+        stmt.close();
+        _connection.close();
+    }
+
+    private static void makeTable(String table) throws SQLException {
+        Statement stmt = _connection.createStatement();
+        stmt.execute("create table " + table + " (T double, FLUX double)");
+        stmt.close();
+    }
+
+    private static void insert(String table, double time, double flux) throws SQLException {
+        PreparedStatement stmt = _connection.prepareStatement("insert into " + table + " values (?, ?)");
+        stmt.setDouble(1, time);
+        stmt.setDouble(2, flux);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    /**
+     * Open the given table with the given attributes on the netcdf element.
+     */
+    private static NetcdfDataset open(String table, String attributes) throws IOException {
+        String ncml = "<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\""
+            + " location=\"/dev/null\" iosp=\"lasp.tss.iosp.DatabaseIOSP\""
+            + " jdbcDriver=\"org.h2.Driver\" connectionString=\"" + URL + "\" dbUser=\"sa\" dbPassword=\"\""
+            + " dbTable=\"" + table + "\" " + attributes + ">"
+            + "<dimension name=\"time\" isUnlimited=\"true\"/>"
+            + "<variable name=\"time\" orgName=\"T\" shape=\"time\" type=\"double\">"
+            + "<attribute name=\"units\" value=\"seconds since 1970-01-01\"/>"
+            + "</variable>"
+            + "<variable name=\"flux\" orgName=\"FLUX\" shape=\"time\" type=\"double\"/>"
+            + "</netcdf>";
+        return NcMLReader.readNcML(new StringReader(ncml), null);
+    }
+
+    /**
+     * Send the given message to the DatabaseIOSP under the NcML.
+     */
+    private static Object sendIospMessage(NetcdfDataset ncds, Object message) {
+        NetcdfFile ncfile = ncds.getReferencedFile();
+        if (ncfile == null) ncfile = ncds;
+        return ncfile.sendIospMessage(message);
+    }
+
+    private static double[] read(NetcdfDataset ncds, String name) throws IOException {
+        Variable var = ncds.findVariable(name);
+        return (double[]) var.read().get1DJavaArray(double.class);
+    }
+
+    private static double[] read(NetcdfDataset ncds, String name, int origin, int count) throws Exception {
+        Variable var = ncds.findVariable(name);
+        return (double[]) var.read(new int[] {origin}, new int[] {count}).get1DJavaArray(double.class);
+    }
+
+  //------------------------------------------------------------------------
+
+    @Test
+    public void readAll() throws IOException {
+        NetcdfDataset ncds = open("unique_times", "");
+        try {
+            assertArrayEquals(new double[] {0,1,2,3,4,5,6,7,8,9}, read(ncds, "time"), 0);
+            assertArrayEquals(new double[] {0,10,20,30,40,50,60,70,80,90}, read(ncds, "flux"), 0);
+        } finally {
+            ncds.close();
+        }
+    }
+
+    @Test
+    public void connectionsAreReused() throws IOException {
+        //Make sure the pool has a connection.
+        open("unique_times", "").close();
+        long created = ConnectionPool.getCreatedCount();
+        long reused = ConnectionPool.getReusedCount();
+
+        for (int i=0; i<3; i++) {
+            NetcdfDataset ncds = open("unique_times", "");
+            try {
+                assertEquals(10, read(ncds, "flux").length);
+            } finally {
+                ncds.close();
+            }
+        }
+
+        assertEquals(created, ConnectionPool.getCreatedCount());
+        assertEquals(reused + 3, ConnectionPool.getReusedCount());
+    }
+
+    @Test
+    public void streamInChunksOfFetchSize() throws Exception {
+        NetcdfDataset ncds = open("unique_times", "stream=\"true\" fetchSize=\"3\"");
+        try {
+            assertArrayEquals(new double[] {0,1,2,3,4,5,6,7,8,9}, read(ncds, "time"), 0);
+            //Forward across chunks, then back to the start
+            assertArrayEquals(new double[] {20,30}, read(ncds, "flux", 2, 2), 0);
+            assertArrayEquals(new double[] {40,50,60,70}, read(ncds, "flux", 4, 4), 0);
+            assertArrayEquals(new double[] {90}, read(ncds, "flux", 9, 1), 0);
+            assertArrayEquals(new double[] {0,10}, read(ncds, "flux", 0, 2), 0);
+            assertArrayEquals(new double[] {0,10,20,30,40,50,60,70,80,90}, read(ncds, "flux"), 0);
+        } finally {
+            ncds.close();
+        }
+    }
+
+    @Test
+    public void streamingMatchesReadingAll() throws Exception {
+        NetcdfDataset all = open("unique_times", "");
+        NetcdfDataset streamed = open("unique_times", "stream=\"true\" fetchSize=\"4\"");
+        try {
+            assertArrayEquals(read(all, "time"), read(streamed, "time"), 0);
+            assertArrayEquals(read(all, "flux", 3, 5), read(streamed, "flux", 3, 5), 0);
+        } finally {
+            all.close();
+            streamed.close();
+        }
+    }
+
+    @Test
+    public void repeatedTimesAreNotStreamed() throws Exception {
+        NetcdfDataset all = open("repeated_times", "");
+        NetcdfDataset streamed = open("repeated_times", "stream=\"true\" fetchSize=\"2\"");
+        try {
+            double[] times = read(all, "time");
+            assertEquals(8, times.length);
+            assertArrayEquals(times, read(streamed, "time"), 0);
+            assertArrayEquals(read(all, "flux"), read(streamed, "flux"), 0);
+            assertArrayEquals(read(all, "flux", 4, 3), read(streamed, "flux", 4, 3), 0);
+        } finally {
+            all.close();
+            streamed.close();
+        }
+    }
+
+    @Test
+    public void rowAddedWhileStreaming() throws Exception {
+        makeTable("growing");
+        for (int i=0; i<6; i++) insert("growing", 2 * i, i);
+
+        //The times are read when the dataset is opened.
+        NetcdfDataset ncds = open("growing", "stream=\"true\" fetchSize=\"2\"");
+        try {
+            insert("growing", 3, -1); //between the 2nd and 3rd time
+            read(ncds, "flux", 0, 6);
+            fail("The data should no longer line up with the times.");
+        } catch (Exception e) {
+            assertTrue(getMessages(e), getMessages(e).contains("no longer match"));
+        } finally {
+            ncds.close();
+        }
+    }
+
+    @Test
+    public void binInTheDatabase() throws Exception {
+        //With a time selection before the filter and the range of bins given
+        assertSameBins("&amp;time>=3&amp;binave(10,0,100)", new BinAggregation("flux", 10, 0, 100), 3);
+        //From the first to the last time
+        assertSameBins("&amp;binave(10)", new BinAggregation("flux", 10, Double.NaN, Double.NaN), 0);
+    }
+
+    /**
+     * Bin the integers table in the database for a request with the given query
+     * and compare the bins with the BinningFilter's for the rows with times from tmin.
+     */
+    private static void assertSameBins(String query, BinAggregation agg, int tmin) throws IOException {
+        //The samples that the filter would get, NULL as NaN
+        List<Integer> rows = new ArrayList<Integer>();
+        for (int i=0; i<INTEGER_ROWS; i++) if (getIntegerTime(i) >= tmin) rows.add(i);
+        double[][] data = new double[2][rows.size()];
+        for (int j=0; j<rows.size(); j++) {
+            data[0][j] = getIntegerTime(rows.get(j));
+            data[1][j] = getIntegerFlux(rows.get(j));
+        }
+        double width = agg.getBinWidth();
+        boolean range = ! Double.isNaN(agg.getMin());
+        double[][] expected = range ? BinningFilter.bin(width, data, agg.getMin(), agg.getMax()) 
+            : BinningFilter.bin(width, data);
+        
+        long nread = DatabaseIOSP.getRowsRead();
+        NetcdfDataset ncds = open("integers", "query=\"" + query + "\"");
+        try {
+            //Opening the dataset only counts the rows.
+            assertEquals(nread + 1, DatabaseIOSP.getRowsRead());
+            
+            double[][] binned = (double[][]) sendIospMessage(ncds, agg);
+            for (int i=0; i<expected.length; i++) assertArrayEquals(query, expected[i], binned[i], 1e-9);
+            
+            //A row for each bin with samples, and one for the range of times if it wasn't given
+            int nbin = 0;
+            for (double count : expected[5]) if (count > 0) nbin++;
+            assertEquals(nread + 1 + nbin + (range ? 0 : 1), DatabaseIOSP.getRowsRead());
+            
+            //Only the first request is binned. After that the data are read.
+            assertEquals(null, sendIospMessage(ncds, agg));
+            assertArrayEquals(data[1], read(ncds, "flux"), 0);
+            assertArrayEquals(data[0], read(ncds, "time"), 0);
+        } finally {
+            ncds.close();
+        }
+    }
+
+    private static String getMessages(Throwable t) {
+        StringBuilder sb = new StringBuilder();
+        for (; t != null; t = t.getCause()) sb.append(t.getMessage()).append("; ");
+        return sb.toString();
+    }
+}